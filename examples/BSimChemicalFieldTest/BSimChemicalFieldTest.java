@@ -10,6 +10,7 @@ import bsim.BSim;
 import bsim.BSimChemicalField;
 import bsim.BSimTicker;
 import bsim.draw.BSimP3DDrawer;
+import bsim.field.BSimFieldScheduler;
 import bsim.particle.BSimBacterium;
 
 /**
@@ -41,6 +42,9 @@ public class BSimChemicalFieldTest {
 		final double decayRate = 0.9;
 		final double diffusivity = 890; // (microns)^2/sec
 		final BSimChemicalField field = new BSimChemicalField(sim, new int[]{10,10,10}, diffusivity, decayRate);
+		// dt is above the field's stable step, so let the scheduler sub-cycle it
+		final BSimFieldScheduler fields = new BSimFieldScheduler(sim);
+		fields.add(field);
 //		field.linearZ(0,c);
 			
 		/*********************************************************
@@ -75,7 +79,7 @@ public class BSimChemicalFieldTest {
 					b.action();		
 					b.updatePosition();
 				}
-				field.update(); 
+				fields.update(); 
 			}		
 		});
 
@@ -11,6 +11,7 @@ import bsim.draw.BSimDrawer;
 import bsim.draw.BSimP3DDrawer;
 import bsim.export.BSimLogger;
 import bsim.export.BSimPngExporter;
+import bsim.field.BSimMultiSpeciesField;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import processing.core.PConstants;
@@ -103,18 +104,15 @@ public class BSimChenOscillatorExample {
         sim.setBound(simX, simY, simZ);		// Simulation Boundaries
 
         /**
-         * OK, so we need to set up the global parameters from inputs.
+         * OK, so we need to set up the parameters of this run from inputs.
          * Would it be good to do this from a file?
          */
-        double def_D_H = ChenParameters.p.get("D_H");
-        ChenParameters.p.put("D_H", def_D_H*qsPars.get(0));
-        double def_D_I = ChenParameters.p.get("D_I");
-        ChenParameters.p.put("D_I", def_D_I*qsPars.get(1));
+        final ChenParameters params = new ChenParameters();
+        params.scale("D_H", qsPars.get(0));
+        params.scale("D_I", qsPars.get(1));
 
-        double def_phi_H = ChenParameters.p.get("phi_H");
-        ChenParameters.p.put("phi_H", def_phi_H*qsPars.get(2));
-        double def_phi_I = ChenParameters.p.get("phi_I");
-        ChenParameters.p.put("phi_I", def_phi_I*qsPars.get(3));
+        params.scale("phi_H", qsPars.get(2));
+        params.scale("phi_I", qsPars.get(3));
 
 
         /*********************************************************
@@ -135,8 +133,11 @@ public class BSimChenOscillatorExample {
 
         double external_decay = mu_e/60.0;
 
-        BSimChemicalField h_e_field = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
-        BSimChemicalField i_e_field = new BSimChemicalField(sim, new int[] {(int) simX, (int)simY, 1}, external_diffusivity, external_decay);
+        // H and I share the boxes and are diffused in one sweep
+        final BSimMultiSpeciesField external_fields = new BSimMultiSpeciesField(sim, new int[] {(int) simX, (int)simY, 1},
+                new double[] {external_diffusivity, external_diffusivity}, new double[] {external_decay, external_decay});
+        BSimChemicalField h_e_field = external_fields.species(0);
+        BSimChemicalField i_e_field = external_fields.species(1);
 
         // ICs as in Chen paper (as in original DDEs)
         h_e_field.setConc(10.0);
@@ -152,7 +153,7 @@ public class BSimChenOscillatorExample {
         // Track all of the bacteria in the simulation, for use of common methods etc
         final ArrayList<BSimCapsuleBacterium> bacteriaAll = new ArrayList();
 
-//        PopulationGenerator popGen = new PopulationGenerator(sim, bacteriaAll, bacteriaActivators, bacteriaRepressors, h_e_field, i_e_field);
+//        PopulationGenerator popGen = new PopulationGenerator(sim, bacteriaAll, bacteriaActivators, bacteriaRepressors, h_e_field, i_e_field, params);
 //
 //        popGen.mixedAsBlock(nActivatorStart, nRepressorStart);
 
@@ -180,7 +181,7 @@ public class BSimChenOscillatorExample {
             ActivatorBacterium bac = new ActivatorBacterium(sim,
                     new Vector3d(pos.x - bL*Math.sin(angle), pos.y - bL*Math.cos(angle), pos.z),
                     new Vector3d(bL*Math.sin(angle) + pos.x, bL*Math.cos(angle) + pos.y, pos.z),
-                    h_e_field, i_e_field, ICs);
+                    h_e_field, i_e_field, params, ICs);
 
             bac.L = bL;
 
@@ -210,7 +211,7 @@ public class BSimChenOscillatorExample {
             RepressorBacterium bac = new RepressorBacterium (sim,
                     new Vector3d(pos.x - bL*Math.sin(angle), pos.y - bL*Math.cos(angle), pos.z),
                     new Vector3d(bL*Math.sin(angle) + pos.x, bL*Math.cos(angle) + pos.y, pos.z),
-                    h_e_field, i_e_field, ICs);
+                    h_e_field, i_e_field, params, ICs);
 
             bac.L = bL;
 
@@ -255,8 +256,7 @@ public class BSimChenOscillatorExample {
                 // ********************************************** Chemical fields
                 startTimeAction = System.nanoTime();
 
-                h_e_field.update();
-                i_e_field.update();
+                external_fields.update();
 
                 endTimeAction = System.nanoTime();
                 if((sim.getTimestep() % LOG_INTERVAL) == 0) {
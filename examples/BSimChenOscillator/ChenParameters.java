@@ -4,6 +4,10 @@ import java.util.HashMap;
 import java.util.Map;
 
 /**
+ * Quorum sensing parameters of one run of the Chen oscillator.
+ *
+ * Each simulation makes its own instance and hands it to its bacteria and their GRNs, so that runs with
+ * different parameters (e.g. members of a BSimEnsemble) do not see each other's values.
  */
 public class ChenParameters {
 
@@ -20,9 +24,10 @@ public class ChenParameters {
      *
      */
 
-    public static Map<String, Double> p;
+    public final Map<String, Double> p;
 
-    static {
+    /** The default parameters. */
+    public ChenParameters() {
         p = new HashMap<String, Double>();
 
         p.put("D_H", 3.0);
@@ -32,4 +37,24 @@ public class ChenParameters {
         p.put("phi_I", 2.0);
     }
 
+    /** A copy of other, which can then be changed independently. */
+    public ChenParameters(ChenParameters other) {
+        p = new HashMap<String, Double>(other.p);
+    }
+
+    public double get(String name) {
+        Double value = p.get(name);
+        if(value == null) throw new IllegalArgumentException("ChenParameters - unknown parameter " + name);
+        return value;
+    }
+
+    public void set(String name, double value) {
+        p.put(name, value);
+    }
+
+    /** Multiplies a parameter by a factor. */
+    public void scale(String name, double factor) {
+        set(name, get(name)*factor);
+    }
+
 }
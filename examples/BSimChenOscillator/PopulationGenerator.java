@@ -33,11 +33,14 @@ public class PopulationGenerator {
     private BSimChemicalField h_e_field;
     private BSimChemicalField i_e_field;
 
+    // Parameters shared by the bacteria of this simulation
+    private ChenParameters params;
+
     /**
      * Initialise the generator for a given simulation
      */
     public PopulationGenerator(BSim _sim, ArrayList _bacteriaAll, ArrayList _bacteriaActivators, ArrayList _bacteriaRepressors,
-                               BSimChemicalField _h_e_field, BSimChemicalField _i_e_field){
+                               BSimChemicalField _h_e_field, BSimChemicalField _i_e_field, ChenParameters _params){
         this.sim = _sim;
 
         this.bacRng = new Random();
@@ -53,6 +56,7 @@ public class PopulationGenerator {
 
         this.h_e_field = _h_e_field;
         this.i_e_field = _i_e_field;
+        this.params = _params;
     }
 
     /**
@@ -89,7 +93,7 @@ public class PopulationGenerator {
             double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
             ActivatorBacterium bac = new ActivatorBacterium(sim, p1, p2,
-                    h_e_field, i_e_field, ICs);
+                    h_e_field, i_e_field, params, ICs);
 
             bac.initialise(bL, p1, p2);
 
@@ -110,7 +114,7 @@ public class PopulationGenerator {
             double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
             RepressorBacterium bac = new RepressorBacterium(sim, p1, p2,
-                    h_e_field, i_e_field, ICs);
+                    h_e_field, i_e_field, params, ICs);
 
             bac.initialise(bL, p1, p2);
 
@@ -148,7 +152,7 @@ public class PopulationGenerator {
             double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
             ActivatorBacterium bac = new ActivatorBacterium(sim, p1, p2,
-                    h_e_field, i_e_field, ICs);
+                    h_e_field, i_e_field, params, ICs);
 
             bac.initialise(bL, p1, p2);
 
@@ -169,7 +173,7 @@ public class PopulationGenerator {
             double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
             RepressorBacterium bac = new RepressorBacterium(sim, p1, p2,
-                    h_e_field, i_e_field, ICs);
+                    h_e_field, i_e_field, params, ICs);
 
             bac.initialise(bL, p1, p2);
 
@@ -31,18 +31,22 @@ public class RepressorBacterium extends BSimCapsuleBacterium {
 
     public double[] grn_state;
 
-    public RepressorBacterium(BSim sim, Vector3d px1, Vector3d px2, BSimChemicalField _H_e, BSimChemicalField _I_e, double[] _ICs){
+    protected ChenParameters params;
+
+    public RepressorBacterium(BSim sim, Vector3d px1, Vector3d px2, BSimChemicalField _H_e, BSimChemicalField _I_e, ChenParameters _params, double[] _ICs){
         super(sim, px1, px2);
 
-        D_H = ChenParameters.p.get("D_H");
-        D_I = ChenParameters.p.get("D_I");
+        this.params = _params;
+
+        D_H = params.get("D_H");
+        D_I = params.get("D_I");
 
         // ---------
         // Set up the GRN
 
 //        double[] ICs = {10, 1, 10, 10, 10, 10, 10, 0};
 
-        RepressorDDE new_grn = new RepressorDDE(_ICs);
+        RepressorDDE new_grn = new RepressorDDE(params, _ICs);
         this.setGrnAndSolver(new_grn);
 
         //        int timeIndex = grn_state.length - 1;
@@ -178,14 +182,14 @@ public class RepressorBacterium extends BSimCapsuleBacterium {
         child_state[child_state.length - 1] = 0;
 
         // Set the new GRN for this cell.
-        RepressorDDE new_grn = new RepressorDDE(new_state);
+        RepressorDDE new_grn = new RepressorDDE(params, new_state);
         this.setGrnAndSolver(new_grn);
 
         // Set the child cell.
         ////
         // TODO? Ideally initialise all four co-ordinates, otherwise this operation is order-dependent
         // (this.xi could be overwritten before being passed to child for ex.)
-        RepressorBacterium child = new RepressorBacterium(sim, x1_child, new Vector3d(this.x2), H_e_field, I_e_field, child_state);
+        RepressorBacterium child = new RepressorBacterium(sim, x1_child, new Vector3d(this.x2), H_e_field, I_e_field, params, child_state);
         this.initialise(L1, this.x1, x2_new);
         ///
         child.L = L2;
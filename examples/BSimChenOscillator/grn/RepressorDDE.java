@@ -11,12 +11,12 @@ public class RepressorDDE implements DelayDifferentialEquation {
     private double H_external = 10.0;
     private double I_external = 10.0;
 
-    public RepressorDDE(double[] _ICs){
-        D_H = ChenParameters.p.get("D_H");
-        D_I = ChenParameters.p.get("D_I");
+    public RepressorDDE(ChenParameters params, double[] _ICs){
+        D_H = params.get("D_H");
+        D_I = params.get("D_I");
 
-        phi_H = ChenParameters.p.get("phi_H");
-        phi_I = ChenParameters.p.get("phi_I");
+        phi_H = params.get("phi_H");
+        phi_I = params.get("phi_I");
 
         this.initialConditions = _ICs;
         System.arraycopy(_ICs, 0, this.initialConditions, 0, _ICs.length);
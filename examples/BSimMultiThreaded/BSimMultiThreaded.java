@@ -40,66 +40,24 @@ public class BSimMultiThreaded {
 		
 		if (useMultiThreading) {
 			/**
-			 * Create the worker to be used by the threaded ticker. This needs to figure out 
-			 * which part of the simulation it needs to update based on the threadID it is
-			 * given.
+			 * Create a fork/join ticker. Each parallel phase is split into chunks of the
+			 * population that idle threads steal from each other, so cells that take longer
+			 * to update do not hold up the other threads.
 			 */
-			class MyWorker extends BSimThreadedTickerWorker {
-				public MyWorker (int threadID, int threads) {
-					super(threadID, threads);
-				}
-				
-				public void threadedTick(int threadID, int threads) {
-					//System.out.println("Running the threaded ticker: Thread " + threadID + " of " + threads);
-					
-					// Find the block range to be processed by the thread
-					int block = bacteria.size() / threads;
-					int startIndex = block * threadID;
-					int endIndex;
-					if (threadID == threads-1) { endIndex = bacteria.size(); }
-					else { endIndex = startIndex + block;}
-					
-					// Process the block
-					BSimBacterium b;
-					for (int i = startIndex; i < endIndex; i++) {
-						b = bacteria.get(i);
-						b.action();
-						b.updatePosition();
-					}
-				}
-			}
-			
-			/**
-			 * Once the worker has been defined we can create the threaded ticker. This needs
-			 * to include a createWorker function that links to the worker we defined previously.
-			 */
-			class MyTicker extends BSimThreadedTicker {
-				public MyTicker (int totalThreads) { super(totalThreads); }
-				
-				/**
-				 * These are the functions that are over written for the sequential operations
-				 * and to create the parallel worker threads.
-				 */
-				public void sequentialBefore() { 
-					// System.out.println("Running sequentialBefore()"); 
-				}
-				public void sequentialAfter() { 
-					// System.out.println("Running sequentialAfter()");
+			sim.setTicker(new BSimForkJoinTicker(2) {
+				@Override
+				public void tick() {
+					forEach("bacteria", bacteria, new Action<BSimBacterium>() {
+						public void run(BSimBacterium b) {
+							b.action();
+							b.updatePosition();
+						}
+					});
 					long curTime = System.nanoTime();
-					System.out.println("Running time for time step (BSimThreadedTicker): " + (curTime - oldTime));
+					System.out.println("Running time for time step (BSimForkJoinTicker): " + (curTime - oldTime));
 					oldTime = curTime;
 				}
-				public BSimThreadedTickerWorker createWorker (int threadID, int threads) {
-					MyWorker w = new MyWorker(threadID, threads);
-					return (BSimThreadedTickerWorker)w;
-				}
-			}
-			
-			/**
-			 * Create my new threaded ticker using 2 threads and attach to simulation
-			 */
-			MyTicker ticker = new MyTicker(2);
-			sim.setTicker((BSimTicker)ticker);
+			});
 		}
 		else {
 			
@@ -5,6 +5,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.text.DecimalFormat;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.JFrame;
 import javax.vecmath.Vector3d;
@@ -37,6 +38,10 @@ public class BSim {
 	private BSimTicker ticker;
 	private BSimDrawer drawer;
 	private Vector<BSimExporter> exporters = new Vector<BSimExporter>();	
+	private BSimRandom random = new BSimRandom();
+	private AtomicLong streams = new AtomicLong();
+	private BSimProgress progress = new BSimProgress();
+	private BSimProfiler profiler;
 
 	/** Set the timestep (secs). */
 	public void setDt(double d) { dt = d; }
@@ -62,6 +67,17 @@ public class BSim {
 	public void setDrawer(BSimDrawer bSimDrawer) { drawer = bSimDrawer;	}
 	/** Add an exporter to be called during simulation. */
 	public void addExporter(BSimExporter e) { exporters.add(e); }	
+	/** Set the reporter of progress during export(), or null for none. */
+	public void setProgress(BSimProgress p) { progress = p; }
+	/** Set the profiler of the phases of each tick during export(), or null for none. */
+	public void setProfiler(BSimProfiler p) { profiler = p; }
+	/** Set whether export() reports progress on the console. */
+	public void setVerbose(boolean b) { progress = (b ? new BSimProgress() : null); }
+	/**
+	 * Set the seed of the random number streams. Agents created afterwards in the same
+	 * order receive the same streams (see newStream()), so the run is reproducible.
+	 */
+	public void setSeed(long seed) { random = new BSimRandom(seed); streams.set(0); }
 	
 	/** Return the timestep. */
 	public double getDt() { return dt; }
@@ -87,6 +103,20 @@ public class BSim {
 	public double getVisc() { return visc; }
 	/** Return the temperature of the environment. */
 	public double getTemperature() { return temperature; }
+	/** Return the reporter of progress, or null. */
+	public BSimProgress getProgress() { return progress; }
+	/** Return the profiler, or null. */
+	public BSimProfiler getProfiler() { return profiler; }
+	/** Return the seed of the random number streams. */
+	public long getSeed() { return random.getSeed(); }
+	/** Return the root random number stream of the simulation, from which keyed streams are derived (e.g. one per worker thread). */
+	public BSimRandom getRandom() { return random; }
+	/**
+	 * Return a new random number stream for an agent. The n-th stream handed out after
+	 * setSeed() is always the same, so agents should be created in a fixed order, and
+	 * agents born during a parallel phase should split() the stream of their parent.
+	 */
+	public BSimRandom newStream() { return random.stream(streams.getAndIncrement()); }
 	
 	private int timestep;
 
@@ -123,21 +153,43 @@ public class BSim {
 	 */
 	public void export() {						
 		for(BSimExporter exporter : exporters) exporter.before();		
+		ticker.setProgress(progress);
+		ticker.setProfiler(profiler);
+		if(progress != null) progress.start(this);
 
 		// Increment integer timesteps than adding to double time to avoid rouding issues
 		for(timestep = 0; timestep <= timesteps(simulationTime); timestep++) {			
+			long b0 = allocated(), t0 = clock();
 			ticker.tick();	
-			System.out.println(getFormattedTime());
+			long t1 = clock(), b1 = allocated();
+			if(progress != null) progress.tick(this);
 			for(BSimExporter exporter : exporters)
 				if(timestep % timesteps(exporter.getDt()) == 0) exporter.during();
+			if(profiler != null) {
+				long t2 = clock(), b2 = allocated();
+				profiler.record("tick", t1 - t0, (b0 < 0 ? -1 : b1 - b0), -1);
+				profiler.record("export", t2 - t1, (b0 < 0 ? -1 : b2 - b1), -1);
+			}
 		}		
 
 		for(BSimExporter exporter : exporters) exporter.after();
 
 		// Any clean-up that is required for the ticker (especially in threaded case)
 		ticker.finish();
+		if(progress != null) progress.finish(this);
+		if(profiler != null) profiler.finish();
 	}	
 		
+	/** Returns the time (ns) if profiling, 0 otherwise. */
+	private long clock() {
+		return (profiler == null ? 0 : System.nanoTime());
+	}
+	
+	/** Returns the bytes allocated by this thread if profiling, -1 otherwise. */
+	private long allocated() {
+		return (profiler == null ? -1 : profiler.allocatedBytes());
+	}
+	
 	/**
 	 * Returns the number of complete timesteps in the duration d.
 	 */
@@ -1,7 +1,16 @@
 package bsim;
 
+import java.util.Arrays;
+
 import javax.vecmath.Vector3d;
 
+import bsim.field.BSimAdiSolver;
+import bsim.field.BSimDiffusionKernel;
+import bsim.field.BSimDoubleStorage;
+import bsim.field.BSimFieldSources;
+import bsim.field.BSimFieldStorage;
+import bsim.field.BSimMultigridSolver;
+
 /**
  * Standard chemical field (uniform division of space) .
  * Uses regular division of the three-dimensional space into boxes that
@@ -10,6 +19,24 @@ import javax.vecmath.Vector3d;
  */
 public class BSimChemicalField {
 	
+	/**
+	 * Schemes that can be used to diffuse the field.
+	 */
+	public static enum DiffusionMode {
+		/**
+		 * Forward Euler (default). Stable while D*dt/dx^2 stays small.
+		 */ EXPLICIT,
+		/**
+		 * Alternating direction implicit Crank-Nicolson. Stable for any dt, so the
+		 * field can keep the agent timestep at full resolution.
+		 */ ADI,
+		/**
+		 * Quasi-static field: each update solves for the steady state
+		 * D*lap(c) - decayRate*c + sources = 0 with multigrid, where the sources are the
+		 * chemical added since the previous update spread over dt. For chemicals that
+		 * diffuse much faster than the cells change; needs decay or a leaky boundary.
+		 */ STEADY_STATE }
+	
 	/* 1 molecule/(micron)^3 = 1.7 nM = 1.7 nanomol/L */
 	/* 1 mM = 6e5 molecules/(micron)^3 */
 	
@@ -19,8 +46,12 @@ public class BSimChemicalField {
 	protected double diffusivity; // (microns)^2/s
 	/** Fraction of chemical decaying per second, quantity(t+dt) = quantity(t)*(1-decayRate*dt). */
 	protected double decayRate; // 1/seconds 
-	/** The quantity of chemical in the box (i,j,k). */
-	protected double[][][] quantity; // number of molecules
+	/** The quantity of chemical in the box (i,j,k), stored at index(i,j,k). */
+	protected BSimFieldStorage storage; // number of molecules
+	/** Work storage the next state is written into by the kernel, then swapped with storage. */
+	protected BSimFieldStorage next;
+	/** Arrays behind storage and next if they are double storage (null otherwise), for the implicit solvers. */
+	protected double[] quantity, scratch;
 	/** sim.getBound(). */
 	protected Vector3d bound;
 	/** Number of boxes in each dimension. */
@@ -29,6 +60,25 @@ public class BSimChemicalField {
 	protected double[] box = new double[3]; // microns
 	/** Volume of each box (microns^3). */
 	protected double boxVolume;
+	/** Explicit diffusion kernel. */
+	protected BSimDiffusionKernel kernel;
+	/** Implicit (ADI) solver, created when first needed. */
+	protected BSimAdiSolver adi;
+	/** Scheme used by update() and diffuse(). */
+	protected DiffusionMode mode = DiffusionMode.EXPLICIT;
+	/** Steady state solver, created when first needed. */
+	protected BSimMultigridSolver multigrid;
+	/**
+	 * Field after the previous steady state solve, or as last set by setConc(); anything
+	 * above it is new production. Null until the first solve.
+	 */
+	protected double[] steadyBase;
+	/* Kernel coefficients, reused between steps */
+	private double[] kernelK = new double[3];
+	private double[] kernelLeak = new double[6];
+	private double[] steadyLeak = new double[6];
+	/** Deferred sources that addQuantity() records into, if any. */
+	protected BSimFieldSources sources;
 	
 	/**
 	 * Constructor that creates a new chemical field with attached to a particular simulation and
@@ -39,6 +89,25 @@ public class BSimChemicalField {
 	 * @param decayRate Decay rate of the chemical (molecules/s).
 	 */
 	public BSimChemicalField(BSim sim, int[] boxes, double diffusivity, double decayRate) {
+		this(sim, boxes, diffusivity, decayRate, BSimFieldStorage.Type.DOUBLE);
+	}
+	
+	/**
+	 * Constructor for a chemical field held in a particular type of storage (e.g. float or
+	 * off-heap for very large fields). The implicit and steady state modes need DOUBLE storage.
+	 * @param storageType Storage backend for the boxes.
+	 */
+	public BSimChemicalField(BSim sim, int[] boxes, double diffusivity, double decayRate, BSimFieldStorage.Type storageType) {
+		this(sim, boxes, diffusivity, decayRate, storageType.create(boxes[0]*boxes[1]*boxes[2]));
+		this.next = storage.create();
+		arrays();
+	}
+	
+	/**
+	 * Constructor for a field over existing storage (e.g. one species of a multi-species
+	 * field). No work storage is allocated; subclasses that step the field must create next.
+	 */
+	protected BSimChemicalField(BSim sim, int[] boxes, double diffusivity, double decayRate, BSimFieldStorage storage) {
 		this.sim = sim;
 		this.bound = sim.getBound();
 		this.boxes = boxes;
@@ -46,7 +115,9 @@ public class BSimChemicalField {
 		box[1] = bound.y/(double)boxes[1];
 		box[2] = bound.z/(double)boxes[2];
 		boxVolume = box[0]*box[1]*box[2];
-		this.quantity = new double[boxes[0]][boxes[1]][boxes[2]]; 
+		this.storage = storage;
+		arrays();
+		this.kernel = new BSimDiffusionKernel(boxes);
 		this.diffusivity = diffusivity;
 		this.decayRate = decayRate;
 	}	
@@ -56,6 +127,11 @@ public class BSimChemicalField {
 	/** Return the size of each box (x,y,z) in microns. */
 	public double[] getBox() { return box; }	
 	
+	/** Returns the position of the box (x,y,z) in the flat quantity array. */
+	public int index(int x, int y, int z) {
+		return (x*boxes[1] + y)*boxes[2] + z;
+	}
+	
 	/**
 	 * Creates a linear concentration gradient in the direction specified by 'axis' (x=0, y=1, z=2)
 	 */
@@ -75,50 +151,148 @@ public class BSimChemicalField {
 					setConc(index[0], index[1], index[2], startConc + index[axis]*grad);
 	}
 	
-	/** Adds a quantity of chemical to the box containing position v. */
+	/**
+	 * Adds a quantity of chemical to the box containing position v. If the field's
+	 * sources are deferred (see BSimFieldSources) and the calling thread is bound to
+	 * a lane, the quantity is recorded and added when the sources are applied.
+	 */
 	public void addQuantity(Vector3d v, double q) {
-		int[] b = boxCoords(v);
-		addQuantity(b[0],b[1],b[2],q);
+		int idx = boxIndex(v);
+		if (sources == null || !sources.record(this, idx, q)) addQuantity(idx, q);
 	}
-	/** Adds a quantity of chemical to the box (x,y,z). */
+	/** Adds a quantity of chemical to the box (x,y,z), deferred as for addQuantity(Vector3d, double). */
 	public void addQuantity(int x, int y, int z, double q) {
-		quantity[x][y][z] += q;
-		if(quantity[x][y][z] < 0) quantity[x][y][z] = 0;
+		int idx = index(x,y,z);
+		if (sources == null || !sources.record(this, idx, q)) addQuantity(idx, q);
+	}
+	/** Adds quantities q[i] to the boxes at positions idx[i] of the quantity array, in order (i < count). */
+	public void addQuantities(int[] idx, double[] q, int count) {
+		for (int i = 0; i < count; i++) addQuantity(idx[i], q[i]);
+	}
+	/** Adds a quantity of chemical to the box at position idx of the quantity array. */
+	protected void addQuantity(int idx, double q) {
+		double v = storage.get(idx) + q;
+		storage.set(idx, (v < 0 ? 0 : v));
 	}
 	
 	/** Sets the concentration of the box containing position v. */
 	public void setConc(Vector3d v, double c) {
-		int[] b = boxCoords(v);
-		setConc(b[0],b[1],b[2],c);
+		int idx = boxIndex(v);
+		storage.set(idx, c*boxVolume);
+		if (steadyBase != null) steadyBase[idx] = c*boxVolume;
 	}
 	/** Sets the concentration of the box (x,y,z). */
 	public void setConc(int x, int y, int z, double c) {
-		quantity[x][y][z] = c*boxVolume;
+		int idx = index(x,y,z);
+		storage.set(idx, c*boxVolume);
+		if (steadyBase != null) steadyBase[idx] = c*boxVolume;
 	}
 	/** Sets the concentration of the field */
 	public void setConc(double c) {		
-		for(int i=0;i<boxes[0];i++)
-			for(int j=0;j<boxes[1];j++)
-				for(int k=0;k<boxes[2];k++) quantity[i][j][k] = c*boxVolume;
+		storage.fill(c*boxVolume);
+		if (steadyBase != null) Arrays.fill(steadyBase, c*boxVolume);
 	}
 	
 	/** Gets the concentration of the field at the position v in molecules/(micron)^3. */
 	public double getConc(Vector3d v) {
-		int[] b = boxCoords(v);
-		return getConc(b[0],b[1],b[2]);
+		return storage.get(boxIndex(v))/boxVolume;
 	}	
 	/** Gets the concentration of the field in the box (x,y,z) in molecules/(micron)^3. */
 	public double getConc(int i, int j, int k) {
-		return quantity[i][j][k]/boxVolume;
+		return storage.get(index(i,j,k))/boxVolume;
+	}
+	
+	/**
+	 * Returns the concentration at (x,y,z), interpolated trilinearly between the centres
+	 * of the eight nearest boxes. Wrapping directions interpolate across the boundary;
+	 * solid directions hold the value of the boundary boxes beyond their centres.
+	 */
+	public double sampleTrilinear(double x, double y, double z) {
+		double u = x/box[0] - 0.5, v = y/box[1] - 0.5, w = z/box[2] - 0.5;
+		int i0 = lower(u, 0), j0 = lower(v, 1), k0 = lower(w, 2);
+		int i1 = upper(i0, 0), j1 = upper(j0, 1), k1 = upper(k0, 2);
+		double fx = fraction(u, i0, 0), fy = fraction(v, j0, 1), fz = fraction(w, k0, 2);
+		double c00 = lerp(getConc(i0,j0,k0), getConc(i0,j0,k1), fz);
+		double c01 = lerp(getConc(i0,j1,k0), getConc(i0,j1,k1), fz);
+		double c10 = lerp(getConc(i1,j0,k0), getConc(i1,j0,k1), fz);
+		double c11 = lerp(getConc(i1,j1,k0), getConc(i1,j1,k1), fz);
+		return lerp(lerp(c00, c01, fy), lerp(c10, c11, fy), fx);
+	}
+	/** Returns the interpolated concentration at position v (see sampleTrilinear(double, double, double)). */
+	public double sampleTrilinear(Vector3d v) {
+		return sampleTrilinear(v.x, v.y, v.z);
+	}
+	/**
+	 * Interpolated concentrations at count positions (x[i],y[i],z[i]) into out[i].
+	 */
+	public void sampleTrilinear(double[] x, double[] y, double[] z, double[] out, int count) {
+		for(int i=0;i<count;i++) out[i] = sampleTrilinear(x[i], y[i], z[i]);
+	}
+	
+	/**
+	 * Sets out to the gradient (molecules/(micron)^4) of the interpolated concentration at
+	 * (x,y,z). The gradient is zero along directions of length one and beyond the
+	 * centres of the boundary boxes of solid directions.
+	 */
+	public void gradient(double x, double y, double z, Vector3d out) {
+		double u = x/box[0] - 0.5, v = y/box[1] - 0.5, w = z/box[2] - 0.5;
+		int i0 = lower(u, 0), j0 = lower(v, 1), k0 = lower(w, 2);
+		int i1 = upper(i0, 0), j1 = upper(j0, 1), k1 = upper(k0, 2);
+		double fx = fraction(u, i0, 0), fy = fraction(v, j0, 1), fz = fraction(w, k0, 2);
+		double c000 = getConc(i0,j0,k0), c001 = getConc(i0,j0,k1), c010 = getConc(i0,j1,k0), c011 = getConc(i0,j1,k1);
+		double c100 = getConc(i1,j0,k0), c101 = getConc(i1,j0,k1), c110 = getConc(i1,j1,k0), c111 = getConc(i1,j1,k1);
+		/* Derivatives of the interpolant along each axis, zero where the fraction is clamped */
+		double dx = lerp(lerp(c100 - c000, c101 - c001, fz), lerp(c110 - c010, c111 - c011, fz), fy);
+		double dy = lerp(lerp(c010 - c000, c011 - c001, fz), lerp(c110 - c100, c111 - c101, fz), fx);
+		double dz = lerp(lerp(c001 - c000, c011 - c010, fy), lerp(c101 - c100, c111 - c110, fy), fx);
+		out.x = (inside(u, 0) ? dx/box[0] : 0);
+		out.y = (inside(v, 1) ? dy/box[1] : 0);
+		out.z = (inside(w, 2) ? dz/box[2] : 0);
+	}
+	/** Sets out to the gradient of the interpolated concentration at position v. */
+	public void gradient(Vector3d v, Vector3d out) {
+		gradient(v.x, v.y, v.z, out);
+	}
+	/**
+	 * Gradients at count positions (x[i],y[i],z[i]) into out[3*i], out[3*i+1], out[3*i+2].
+	 */
+	public void gradient(double[] x, double[] y, double[] z, double[] out, int count) {
+		Vector3d g = new Vector3d();
+		for(int i=0;i<count;i++) {
+			gradient(x[i], y[i], z[i], g);
+			out[3*i] = g.x;
+			out[3*i+1] = g.y;
+			out[3*i+2] = g.z;
+		}
+	}
+	
+	/* Interpolation along axis d at u = position/dx - 0.5 (in units of box centres) */
+	private int lower(double u, int d) {
+		int n = boxes[d];
+		if(n == 1) return 0;
+		int i = (int)Math.floor(u);
+		if(!sim.getSolid()[d]) return Math.floorMod(i, n);
+		return (i < 0 ? 0 : (i > n - 2 ? n - 2 : i));
+	}
+	private int upper(int i, int d) {
+		return (boxes[d] == 1 ? 0 : (i + 1) % boxes[d]);
+	}
+	private double fraction(double u, int i, int d) {
+		if(boxes[d] == 1) return 0;
+		if(!sim.getSolid()[d]) return u - Math.floor(u);
+		double f = u - i;
+		return (f < 0 ? 0 : (f > 1 ? 1 : f));
+	}
+	private boolean inside(double u, int d) {
+		return boxes[d] > 1 && (!sim.getSolid()[d] || (u >= 0 && u <= boxes[d] - 1));
+	}
+	private static double lerp(double a, double b, double f) {
+		return a + f*(b - a);
 	}
 	
 	/** Returns the total quantity of chemical in the field. */
 	public double totalQuantity() {
-		double t = 0;
-		for(int i=0;i<boxes[0];i++)
-			for(int j=0;j<boxes[1];j++)
-				for(int k=0;k<boxes[2];k++) t += quantity[i][j][k];
-		return t;
+		return storage.sum();
 	}
 	
 	/** Returns the integer coordinates of the box containing the position v. */ 
@@ -136,35 +310,137 @@ public class BSimChemicalField {
 		return new int[] {x, y, z};	
 	}
 	
+	/** Returns the position in the quantity array of the box containing the position v. */
+	public int boxIndex(Vector3d v) {
+		int x = (int)(v.x/box[0]);
+		int y = (int)(v.y/box[1]);
+		int z = (int)(v.z/box[2]);
+		x = (x >= boxes[0] ? boxes[0]-1 : (x < 0 ? 0 : x));
+		y = (y >= boxes[1] ? boxes[1]-1 : (y < 0 ? 0 : y));
+		z = (z >= boxes[2] ? boxes[2]-1 : (z < 0 ? 0 : z));
+		return (x*boxes[1] + y)*boxes[2] + z;
+	}
+	
 	/**
 	 * Update the chemical field by diffusing and decaying the chemical present.
+	 * Decay is applied in the same pass over the field as diffusion.
 	 */
 	public void update() {
-		diffuse();
-		decay();
+		update(sim.getDt());
+	}
+	/** Update the chemical field over a step of length dt (see BSimFieldScheduler). */
+	public void update(double dt) {
+		step(dt, true);
 	}
 	
 	/**
 	 * Decay the chemical present in the field.
 	 */
 	public void decay() {
-		for(int i=0;i<boxes[0];i++)
-			for(int j=0;j<boxes[1];j++)
-				for(int k=0;k<boxes[2];k++) quantity[i][j][k] *= (1 - decayRate*sim.getDt());
+		decay(sim.getDt());
+	}
+	/** Decay the chemical present in the field over a step of length dt. */
+	public void decay(double dt) {
+		storage.scale(decayFactor(dt));
 	}	
 	
 	/**
 	 * Diffuse the chemical present in the field.
 	 */
 	public void diffuse() {
-		double[][][] before = quantity;
-		/* Index of the box in positive (negative) .. direction, taking account of the boundary conditions */
-		int xAbove, xBelow, yAbove, yBelow, zAbove, zBelow;
-		/* Quantity of chemical leaving the box in the positive (negative) .. direction */
-		double qxAbove, qxBelow, qyAbove, qyBelow, qzAbove, qzBelow;
-		/* Flags for leakiness at borders */
+		diffuse(sim.getDt());
+	}
+	/** Diffuse the chemical present in the field over a step of length dt. */
+	public void diffuse(double dt) {
+		step(dt, false);
+	}
+	
+	/**
+	 * Returns the largest dt for which update(dt) is stable and keeps every box
+	 * non-negative. In the explicit mode a box keeps 1 - 4*D*dt*sum(1/dx^2) of its
+	 * chemical per step (less the leak through a missing face, plus the exchange
+	 * that face no longer makes), and decay keeps 1 - decayRate*dt; both must stay
+	 * non-negative. The implicit modes are stable for any dt.
+	 */
+	public double getStableDt() {
+		if(mode != DiffusionMode.EXPLICIT) return Double.POSITIVE_INFINITY;
+		boolean solid[] = sim.getSolid();
 		boolean leaky[] = sim.getLeaky();
-		double  leakyRate[] = sim.getLeakyRate();
+		double leakyRate[] = sim.getLeakyRate();
+		double rate = 0;
+		for(int d=0;d<3;d++) {
+			double hi = (solid[d] && leaky[2*d] ? leakyRate[2*d] : 0);
+			double lo = (solid[d] && leaky[2*d+1] ? leakyRate[2*d+1] : 0);
+			double h2 = Math.pow(box[d],2);
+			if(boxes[d] > 1) rate += Math.max(4*diffusivity, 2*diffusivity + Math.max(hi, lo))/h2;
+			else rate += (hi + lo)/h2;
+		}
+		double dt = (rate > 0 ? 1/rate : Double.POSITIVE_INFINITY);
+		return (decayRate > 0 ? Math.min(dt, 1/decayRate) : dt);
+	}
+	
+	/**
+	 * Diffuses the field over a step of length dt with the current diffusion mode,
+	 * decaying it in the same pass if withDecay is set.
+	 */
+	protected void step(double dt, boolean withDecay) {
+		configureKernel(dt);
+		double scale = (withDecay ? decayFactor(dt) : 1);
+		switch(mode) {
+		case STEADY_STATE:
+			steadyState(dt, withDecay);
+			return;
+		case ADI:
+			requireDoubles();
+			getAdiSolver().configure(kernelK, sim.getSolid(), kernelLeak);
+			adi.step(quantity, scratch, scale);
+			break;
+		default:
+			kernel.step(storage, next, scale);
+		}
+		swap();
+	}
+	
+	/**
+	 * Replaces the field by the steady state for the chemical added since the last
+	 * solve, taken as a constant source over dt. The previous solution is the starting
+	 * guess, so the cost follows how much the sources have changed. On the first call
+	 * the field as it stands is the starting guess, not a source; likewise values set
+	 * with setConc() replace the starting guess of their boxes instead of counting as
+	 * production.
+	 */
+	protected void steadyState(double dt, boolean withDecay) {
+		boolean leaky[] = sim.getLeaky();
+		double leakyRate[] = sim.getLeakyRate();
+		for(int i=0;i<6;i++) steadyLeak[i] = (leaky[i] ? leakyRate[i] : 0);
+		requireDoubles();
+		getMultigridSolver().configure(diffusivity, (withDecay ? decayRate : 0), sim.getSolid(), steadyLeak);
+		if(steadyBase == null) steadyBase = quantity.clone();
+		/* Source per unit volume and second into scratch, previous solution (as concentration) into quantity */
+		for(int i=0;i<quantity.length;i++) {
+			scratch[i] = (quantity[i] - steadyBase[i])/(dt*boxVolume);
+			quantity[i] = steadyBase[i]/boxVolume;
+		}
+		multigrid.solve(quantity, scratch);
+		for(int i=0;i<quantity.length;i++) {
+			double q = quantity[i]*boxVolume;
+			quantity[i] = (q > 0 ? q : 0);
+			steadyBase[i] = quantity[i];
+		}
+	}
+	
+	/**
+	 * Fraction of chemical left after decaying for dt. The explicit mode uses 1 - decayRate*dt;
+	 * the implicit mode uses exp(-decayRate*dt), which stays positive for any dt.
+	 */
+	protected double decayFactor(double dt) {
+		return (mode == DiffusionMode.EXPLICIT ? 1 - decayRate*dt : Math.exp(-decayRate*dt));
+	}
+	
+	/**
+	 * Sets the kernel coefficients for a step of length dt from the simulation boundaries.
+	 */
+	protected void configureKernel(double dt) {
 		/*
 		 * Flux of molecules crossing in the positive x-direction (Fick's law)
 		 * 	J = -D(dC/dx) = -D*(C(x+dx)-C(x))/dx =  -D*(N(x+dx)-N(x))/((dx)^2*dy*dz)  molecules/(micron)^2/sec
@@ -172,97 +448,66 @@ public class BSimChemicalField {
 		 * 	xAbove = J*(dy*dz)*dt = -((D*dt)/(dx)^2)*(N(x+dx)-N(x)) = -kX*(N(x+dx)-N(x))
 		 * where kX = (D*dt)/(dx)^2 is a dimensionless constant
 		 */
-		double normX = sim.getDt()/Math.pow(box[0],2);
-		double normY = sim.getDt()/Math.pow(box[1],2);
-		double normZ = sim.getDt()/Math.pow(box[2],2);
-		double kX = diffusivity*normX;
-		double kY = diffusivity*normY;
-		double kZ = diffusivity*normZ;
-		for(int i=0;i<boxes[0];i++)
-			for(int j=0;j<boxes[1];j++)
-				for(int k=0;k<boxes[2];k++) {	
-					/* Is this box the last box? 
-					 * 	If so, is the boundary solid? If so, there is no box above, else, the box 'above' is the first box
-					 * 	Else, the box above is the next box */
-					xAbove = (i == boxes[0]-1 ? (sim.getSolid()[0] ? -1 : 0) : i+1);
-					xBelow = (i == 0 ? (sim.getSolid()[0] ? -1 : boxes[0]-1) : i-1);
-					yAbove = (j == boxes[1]-1 ? (sim.getSolid()[1] ? -1 : 0) : j+1);
-					yBelow = (j == 0 ? (sim.getSolid()[1] ? -1 : boxes[1]-1) : j-1);
-					zAbove = (k == boxes[2]-1 ? (sim.getSolid()[2] ? -1 : 0) : k+1);
-					zBelow = (k == 0 ? (sim.getSolid()[2] ? -1 : boxes[2]-1) : k-1);
-					
-					if(xAbove != -1) {
-						/* Calculate the quantity of chemical leaving the box in this direction */
-						qxAbove = -kX*(before[xAbove][j][k]-before[i][j][k]);
-						/* Add that quantity to the box above */ 
-						quantity[xAbove][j][k] += qxAbove;
-						/* Remove it from this box */
-						quantity[i][j][k] -= qxAbove;
-					} else {
-						if (leaky[0]) {
-							/* Calculate the quantity of chemical leaving the box in this direction (0 outside box if leaky)*/
-							qxAbove = normX*leakyRate[0]*before[i][j][k];
-							/* Remove it from this box */
-							quantity[i][j][k] -= qxAbove;
-						}
-					}
-					
-					if(xBelow != -1) {
-						qxBelow = -kX*(before[xBelow][j][k]-before[i][j][k]);
-						quantity[xBelow][j][k] += qxBelow;
-						quantity[i][j][k] -= qxBelow;
-					} else {
-						if (leaky[1]) {
-							qxBelow = normX*leakyRate[1]*before[i][j][k];
-							quantity[i][j][k] -= qxBelow;
-						}
-					}
-					
-					if(yAbove != -1) {
-						qyAbove = -kY*(before[i][yAbove][k]-before[i][j][k]);
-						quantity[i][yAbove][k] += qyAbove;
-						quantity[i][j][k] -= qyAbove;
-					} else {
-						if (leaky[2]) {
-							qyAbove = normY*leakyRate[2]*before[i][j][k];
-							quantity[i][j][k] -= qyAbove;
-						}
-					}
-					
-					if(yBelow != -1) {
-						qyBelow = -kY*(before[i][yBelow][k]-before[i][j][k]);
-						quantity[i][yBelow][k] += qyBelow;
-						quantity[i][j][k] -= qyBelow;
-					} else {
-						if (leaky[3]) {
-							qyBelow = normY*leakyRate[3]*before[i][j][k];
-							quantity[i][j][k] -= qyBelow;
-						}
-					}
-					
-					if(zAbove != -1) {
-						qzAbove = -kZ*(before[i][j][zAbove]-before[i][j][k]);
-						quantity[i][j][zAbove] += qzAbove;
-						quantity[i][j][k] -= qzAbove;
-					} else {
-						if (leaky[4]) {
-							qzAbove = normZ*leakyRate[4]*before[i][j][k];
-							quantity[i][j][k] -= qzAbove;
-						}
-					}
-					
-					if(zBelow != -1) {
-						qzBelow = -kZ*(before[i][j][zBelow]-before[i][j][k]);
-						quantity[i][j][zBelow] += qzBelow;
-						quantity[i][j][k] -= qzBelow;
-					} else {
-						if (leaky[3]) {
-							qzBelow = normZ*leakyRate[5]*before[i][j][k];
-							quantity[i][j][k] -= qzBelow;
-						}
-					}
-					
-				}
+		boolean leaky[] = sim.getLeaky();
+		double leakyRate[] = sim.getLeakyRate();
+		for(int d=0;d<3;d++) {
+			double norm = dt/Math.pow(box[d],2);
+			kernelK[d] = diffusivity*norm;
+			kernelLeak[2*d] = (leaky[2*d] ? norm*leakyRate[2*d] : 0);
+			kernelLeak[2*d+1] = (leaky[2*d+1] ? norm*leakyRate[2*d+1] : 0);
+		}
+		kernel.configure(kernelK, sim.getSolid(), kernelLeak);
+	}
+	
+	/** Makes the work storage the current field after a kernel step. */
+	protected void swap() {
+		BSimFieldStorage t = storage;
+		storage = next;
+		next = t;
+		arrays();
+	}
+	
+	/** Updates quantity and scratch from storage and next. */
+	protected void arrays() {
+		quantity = (storage instanceof BSimDoubleStorage ? ((BSimDoubleStorage)storage).array() : null);
+		scratch = (next instanceof BSimDoubleStorage ? ((BSimDoubleStorage)next).array() : null);
+	}
+	
+	/** Checks that the field is held in double storage, as the implicit and steady state solvers need. */
+	protected void requireDoubles() {
+		if(quantity == null || scratch == null)
+			throw new IllegalStateException("Diffusion mode " + mode + " needs DOUBLE field storage");
+	}
+	
+	/** Set the deferred sources that addQuantity() records into (null to add directly); see BSimFieldSources.add(). */
+	public void setSources(BSimFieldSources s) { sources = s; }
+	/** Return the deferred sources of the field, or null. */
+	public BSimFieldSources getSources() { return sources; }
+	
+	/** Return the storage holding the boxes of the field. */
+	public BSimFieldStorage getStorage() { return storage; }
+	
+	/** Set the scheme used by update() and diffuse(). */
+	public void setDiffusionMode(DiffusionMode m) { mode = m; }
+	/** Return the scheme used by update() and diffuse(). */
+	public DiffusionMode getDiffusionMode() { return mode; }
+	
+	/** Return the explicit diffusion kernel, e.g. to set its ForkJoinPool. */
+	public BSimDiffusionKernel getKernel() { return kernel; }
+	
+	/** Return the steady state (multigrid) solver, creating it if needed. */
+	public BSimMultigridSolver getMultigridSolver() {
+		if(multigrid == null) multigrid = new BSimMultigridSolver(boxes, box);
+		return multigrid;
+	}
+	
+	/** Return the number of V-cycles taken by the last steady state update. */
+	public int getSteadyIterations() { return (multigrid == null ? 0 : multigrid.getCycles()); }
+	
+	/** Return the implicit (ADI) solver, creating it if needed. */
+	public BSimAdiSolver getAdiSolver() {
+		if(adi == null) adi = new BSimAdiSolver(boxes, kernel);
+		return adi;
 	}
 	
 }
@@ -0,0 +1,190 @@
+package bsim;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent simulations (an ensemble, e.g. a parameter sweep)
+ * concurrently in one JVM.
+ * Every member gets a BSim of its own, seeded from the ensemble seed and its index,
+ * so the results of a member do not depend on which other members run alongside
+ * it. Members run as tasks of one pool, which is the thread budget of the whole
+ * ensemble; a member that uses a BSimForkJoinTicker on getPool() shares that
+ * budget instead of starting threads of its own:
+ * <pre>
+ * BSimEnsemble&lt;Double&gt; sweep = new BSimEnsemble&lt;Double&gt;(8);
+ * sweep.setSeed(1234);
+ * List&lt;Double&gt; periods = sweep.run(100, new BSimEnsemble.Member&lt;Double&gt;() {
+ *     public Double run(BSim sim, int index) {
+ *         ... // set up sim for parameter set index, with its own agents and fields
+ *         sim.export();
+ *         return measuredPeriod;
+ *     }
+ * });
+ * sweep.writeResults("sweep.csv");
+ * </pre>
+ * Members must not share mutable state (static fields, global parameter maps),
+ * since they run at the same time.
+ */
+public class BSimEnsemble<R> {
+
+	/** One simulation of the ensemble. */
+	public interface Member<R> {
+		/**
+		 * Sets up and runs the simulation sim for the member index, returning its result.
+		 * The per-tick console output of sim is turned off.
+		 */
+		R run(BSim sim, int index) throws Exception;
+	}
+
+	/** Pool the members run in. */
+	protected ForkJoinPool pool;
+	/** Whether the pool was created by (and is shut down with) this ensemble. */
+	protected boolean ownPool;
+	/** Seed from which the seeds of the members are derived. */
+	protected long seed = System.nanoTime();
+	/** Whether to print a line when a member finishes. */
+	protected boolean progress = true;
+
+	/** Results of the last run, per member (null for failed members). */
+	protected List<R> results = new ArrayList<R>();
+	/** Error raised by each member of the last run, or null. */
+	protected Throwable[] errors = new Throwable[0];
+	/** Wall-clock time of each member of the last run (ns). */
+	protected long[] nanos = new long[0];
+	/** Number of members of the last run that have finished. */
+	protected AtomicInteger finished = new AtomicInteger();
+
+	/** Creates an ensemble with a pool of one thread per available processor. */
+	public BSimEnsemble() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Creates an ensemble with a pool of the given number of threads. */
+	public BSimEnsemble(int threads) {
+		this(new ForkJoinPool(threads));
+		this.ownPool = true;
+	}
+
+	/** Creates an ensemble that runs in an existing pool, which shutdown() leaves running. */
+	public BSimEnsemble(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** Set the seed from which the seeds of the members are derived. */
+	public void setSeed(long s) { seed = s; }
+	/** Set whether a line is printed when a member finishes. */
+	public void setProgress(boolean b) { progress = b; }
+	/** Return the pool the members run in, to be shared by their tickers. */
+	public ForkJoinPool getPool() { return pool; }
+	/** Return the seed of the member index, which depends only on the ensemble seed and index. */
+	public long getSeed(int index) { return new BSimRandom(seed).stream(index).nextLong(); }
+	/** Return the number of members of the current or last run that have finished. */
+	public int getFinished() { return finished.get(); }
+
+	/**
+	 * Runs members 0 to n-1 concurrently and returns their results in order. A member
+	 * that throws is recorded as failed (see getError()) and the others carry on.
+	 */
+	public List<R> run(final int n, final Member<R> member) {
+		final Object[] out = new Object[n];
+		errors = new Throwable[n];
+		nanos = new long[n];
+		finished.set(0);
+		final long start = System.nanoTime();
+		List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(n);
+		for (int i = 0; i < n; i++) {
+			final int index = i;
+			tasks.add(pool.submit(new Runnable() {
+				public void run() {
+					long t = System.nanoTime();
+					try {
+						BSim sim = new BSim();
+						sim.setSeed(getSeed(index));
+						sim.setVerbose(false);
+						out[index] = member.run(sim, index);
+					} catch (Throwable e) {
+						errors[index] = e;
+					}
+					nanos[index] = System.nanoTime() - t;
+					int done = finished.incrementAndGet();
+					if (progress) {
+						System.out.println("Ensemble - member " + index + (errors[index] == null ? " finished" : " failed")
+								+ " (" + done + "/" + n + ", " + (float)((System.nanoTime() - start)*1e-9) + " s)");
+					}
+				}
+			}));
+		}
+		for (ForkJoinTask<?> t : tasks) t.join();
+		@SuppressWarnings("unchecked")
+		List<R> r = (List<R>)Arrays.asList(out);
+		results = r;
+		return results;
+	}
+
+	/** Returns the results of the last run, per member (null for failed members). */
+	public List<R> getResults() { return results; }
+	/** Returns the error raised by a member of the last run, or null if it succeeded. */
+	public Throwable getError(int index) { return errors[index]; }
+	/** Returns the wall-clock time taken by a member of the last run in seconds. */
+	public double getTime(int index) { return nanos[index]*1e-9; }
+
+	/** Returns the number of failed members of the last run. */
+	public int getFailed() {
+		int n = 0;
+		for (Throwable e : errors) if (e != null) n++;
+		return n;
+	}
+
+	/**
+	 * Writes one line per member of the last run: index, seed, time (s), status and
+	 * result (its toString(), or the error). The result is quoted as a CSV field,
+	 * so it may contain commas, quotes and line breaks.
+	 */
+	public void writeResults(String filename) {
+		try {
+			BufferedWriter w = new BufferedWriter(new FileWriter(new File(filename)));
+			try {
+				w.write("index,seed,time,status,result");
+				w.newLine();
+				for (int i = 0; i < errors.length; i++) {
+					boolean ok = (errors[i] == null);
+					w.write(i + "," + getSeed(i) + "," + getTime(i) + "," + (ok ? "ok" : "failed") + ","
+							+ quote(String.valueOf(ok ? results.get(i) : errors[i])));
+					w.newLine();
+				}
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Quotes a CSV field, doubling any quotes inside it. */
+	static String quote(String field) {
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Shuts down the pool if it belongs to this ensemble.
+	 */
+	public void shutdown() {
+		if (!ownPool || pool.isShutdown()) return;
+		pool.shutdown();
+		try {
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
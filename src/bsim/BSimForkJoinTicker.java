@@ -0,0 +1,226 @@
+package bsim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-threaded ticker based on a ForkJoinPool.
+ * Agent lists are split adaptively (BSimParallel.forRangeAdaptive) and idle
+ * threads steal unfinished chunks, so expensive agents (dividing cells, large
+ * GRNs) are spread over the pool instead of stalling one fixed block. All state
+ * belongs to the ticker, so several simulations can run in one JVM, and the pool
+ * is shut down by finish().
+ * <p>
+ * tick() is written as a sequence of named phases, each of which is timed:
+ * <pre>
+ * sim.setTicker(new BSimForkJoinTicker() {
+ *     public void tick() {
+ *         forEach("action", bacteria, new Action&lt;BSimBacterium&gt;() {
+ *             public void run(BSimBacterium b) {
+ *                 b.action();
+ *                 b.updatePosition();
+ *             }
+ *         });
+ *         phase("field", new Runnable() {
+ *             public void run() { field.update(); }
+ *         });
+ *     }
+ * });
+ * </pre>
+ * Agents in a parallel phase must only modify their own state (see
+ * bsim.field.BSimFieldSources for adding chemical to fields).
+ */
+public abstract class BSimForkJoinTicker extends BSimTicker {
+
+	/** Default smallest number of agents handled as one chunk. */
+	public static int DEFAULT_MIN_CHUNK = 8;
+
+	/** Work done on one agent in a parallel phase. */
+	public interface Action<T> {
+		void run(T agent);
+	}
+
+	/** Timings of one phase. */
+	protected static class Phase {
+		/** Name of the phase. */
+		String name;
+		/** Number of times the phase has run. */
+		long calls;
+		/** Total and longest wall-clock time (ns). */
+		long nanos, maxNanos;
+		/** Time spent by all threads inside agent actions (ns), for parallel phases. */
+		LongAdder busy = new LongAdder();
+		/** Whether the phase runs in parallel. */
+		boolean parallel;
+	}
+
+	/** Pool the parallel phases run in. */
+	protected ForkJoinPool pool;
+	/** Whether the pool was created by (and is shut down with) this ticker. */
+	protected boolean ownPool;
+	/** Smallest number of agents handled as one chunk. */
+	protected int minChunk = DEFAULT_MIN_CHUNK;
+	/** Timings per phase, in the order the phases first ran. */
+	protected Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+
+	/** Creates a ticker with its own pool of one thread per available processor. */
+	public BSimForkJoinTicker() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Creates a ticker with its own pool of the given number of threads. */
+	public BSimForkJoinTicker(int threads) {
+		this(new ForkJoinPool(threads));
+		this.ownPool = true;
+	}
+
+	/** Creates a ticker that runs in an existing pool, which finish() leaves running. */
+	public BSimForkJoinTicker(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** Return the pool the parallel phases run in. */
+	public ForkJoinPool getPool() { return pool; }
+	/** Return the number of threads used by parallel phases. */
+	public int getThreads() { return pool.getParallelism(); }
+	/** Set the smallest number of agents handled as one chunk (larger for very cheap agents). */
+	public void setMinChunk(int n) { minChunk = Math.max(1, n); }
+
+	/**
+	 * Runs action on every agent of the list in parallel, as the phase called name.
+	 * The list must not be modified during the phase. Births queued in a BSimPopulation
+	 * by an agent are ordered by the agent's position in the list.
+	 */
+	public <T> void forEach(String name, List<T> agents, final Action<? super T> action) {
+		final Phase phase = phase(name, true);
+		final List<T> list = (agents instanceof RandomAccess ? agents : new ArrayList<T>(agents));
+		final LongAdder bytes = (allocated() < 0 ? null : new LongAdder());
+		long start = System.nanoTime();
+		BSimParallel.forRangeAdaptive(pool, 0, list.size(), minChunk, new BSimParallel.Range() {
+			public void run(int from, int to) {
+				long b = (bytes == null ? -1 : allocated());
+				long t = System.nanoTime();
+				// Restored afterwards: an action that waits on the pool may run a chunk of another phase here
+				int[] parent = BSimPopulation.running.get();
+				int saved = parent[0];
+				try {
+					for (int i = from; i < to; i++) {
+						parent[0] = i;
+						action.run(list.get(i));
+					}
+				} finally {
+					parent[0] = saved;
+				}
+				phase.busy.add(System.nanoTime() - t);
+				if (b >= 0) bytes.add(allocated() - b);
+			}
+		});
+		record(phase, start, (bytes == null ? -1 : bytes.sum()), list.size());
+	}
+
+	/** Runs body in the calling thread as the phase called name. */
+	public void phase(String name, Runnable body) {
+		Phase phase = phase(name, false);
+		long b = allocated();
+		long start = System.nanoTime();
+		body.run();
+		record(phase, start, (b < 0 ? -1 : allocated() - b), -1);
+	}
+
+	/**
+	 * Returns the timings of a phase, creating them when it first runs. Phases may run
+	 * concurrently (see BSimPipeline), so the timings are updated under the ticker's lock.
+	 */
+	protected synchronized Phase phase(String name, boolean parallel) {
+		Phase p = phases.get(name);
+		if (p == null) {
+			p = new Phase();
+			p.name = name;
+			p.parallel = parallel;
+			phases.put(name, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Adds the time since start to a phase, and reports it with the bytes allocated
+	 * (-1 if unknown) and the agents handled (-1 if not relevant).
+	 */
+	protected void record(Phase p, long start, long bytes, int agents) {
+		long t = System.nanoTime() - start;
+		synchronized (this) {
+			p.calls++;
+			p.nanos += t;
+			if (t > p.maxNanos) p.maxNanos = t;
+		}
+		report(p.name, t, bytes, agents);
+	}
+
+	/** Returns the total wall-clock time spent in a phase in seconds (0 if it has not run). */
+	public synchronized double getPhaseTime(String name) {
+		Phase p = phases.get(name);
+		return (p == null ? 0 : p.nanos*1e-9);
+	}
+
+	/**
+	 * Returns the fraction of the pool's capacity used by agent actions during a parallel
+	 * phase: 1 when every thread was busy for the whole phase, lower when threads waited
+	 * for the last chunks (load imbalance) or the phase was dominated by scheduling.
+	 */
+	public synchronized double getUtilisation(String name) {
+		Phase p = phases.get(name);
+		if (p == null || !p.parallel || p.nanos == 0) return 0;
+		return p.busy.sum()/((double)p.nanos*pool.getParallelism());
+	}
+
+	/** Clears the timings of all phases. */
+	public synchronized void resetTimings() {
+		phases.clear();
+	}
+
+	/**
+	 * Returns one line per phase with its calls, total, mean and longest time, and for
+	 * parallel phases the utilisation of the pool.
+	 */
+	public synchronized String report() {
+		StringBuilder sb = new StringBuilder();
+		String nl = System.getProperty("line.separator");
+		for (Map.Entry<String, Phase> e : phases.entrySet()) {
+			Phase p = e.getValue();
+			sb.append(e.getKey()).append(": ").append(p.calls).append(" calls, ")
+				.append((float)(p.nanos*1e-9)).append(" s total, ")
+				.append((float)(p.calls > 0 ? p.nanos*1e-6/p.calls : 0)).append(" ms mean, ")
+				.append((float)(p.maxNanos*1e-6)).append(" ms max");
+			if (p.parallel) sb.append(", utilisation ").append((float)getUtilisation(e.getKey()));
+			sb.append(nl);
+		}
+		sb.append("threads: ").append(pool.getParallelism()).append(", steals: ").append(pool.getStealCount()).append(nl);
+		return sb.toString();
+	}
+
+	/**
+	 * Shuts down the pool if it belongs to this ticker, waiting for running tasks to end.
+	 */
+	public void shutdown() {
+		if (!ownPool || pool.isShutdown()) return;
+		pool.shutdown();
+		try {
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Shuts down the pool at the end of the simulation. */
+	@Override
+	public void finish() {
+		shutdown();
+		super.finish();
+	}
+}
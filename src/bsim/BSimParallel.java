@@ -0,0 +1,125 @@
+package bsim;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join loop helper.
+ * Splits an index range into chunks that are run as tasks in a ForkJoinPool.
+ * Idle threads steal unfinished chunks, so uneven chunks (e.g. boundary slabs
+ * or expensive agents) do not stall the whole loop.
+ */
+public class BSimParallel {
+
+	/** Body of a parallel loop, called with sub-ranges [from, to) of the full range. */
+	public interface Range {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Runs body over [from, to), splitting the range in halves until a chunk is no
+	 * larger than grain. Runs in the calling thread if pool is null or the range
+	 * is not larger than a single chunk.
+	 * @param pool Pool to run the chunks in (null for sequential).
+	 * @param from First index (inclusive).
+	 * @param to Last index (exclusive).
+	 * @param grain Largest chunk that is not split further.
+	 * @param body Loop body.
+	 */
+	public static void forRange(ForkJoinPool pool, int from, int to, int grain, Range body) {
+		if (to <= from) return;
+		if (grain < 1) grain = 1;
+		if (pool == null || pool.getParallelism() < 2 || to - from <= grain) {
+			body.run(from, to);
+			return;
+		}
+		pool.invoke(new RangeTask(body, from, to, grain));
+	}
+
+	/**
+	 * Runs body over [from, to), splitting adaptively: a task keeps handing the upper
+	 * half of its range to the pool while few of its forked chunks are waiting to be
+	 * stolen, and runs the rest itself. Chunks stay large when the threads are busy
+	 * and shrink (down to minGrain) where idle threads are stealing, so expensive
+	 * items in one part of the range are spread over the pool.
+	 * @param minGrain Smallest chunk that is split further.
+	 */
+	public static void forRangeAdaptive(ForkJoinPool pool, int from, int to, int minGrain, Range body) {
+		if (to <= from) return;
+		if (minGrain < 1) minGrain = 1;
+		if (pool == null || pool.getParallelism() < 2 || to - from <= minGrain) {
+			body.run(from, to);
+			return;
+		}
+		pool.invoke(new AdaptiveTask(body, from, to, minGrain));
+	}
+
+	/**
+	 * Returns a grain that splits [0, n) into roughly four chunks per thread of the pool.
+	 */
+	public static int grain(ForkJoinPool pool, int n) {
+		int p = (pool == null ? 1 : pool.getParallelism());
+		return Math.max(1, n/(4*p));
+	}
+
+	@SuppressWarnings("serial")
+	private static class RangeTask extends RecursiveAction {
+		private final Range body;
+		private final int from, to, grain;
+
+		RangeTask(Range body, int from, int to, int grain) {
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				body.run(from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RangeTask(body, from, mid, grain), new RangeTask(body, mid, to, grain));
+			}
+		}
+	}
+
+	/** Forked chunks a task may leave queued before it stops splitting. */
+	private static final int SURPLUS = 2;
+
+	@SuppressWarnings("serial")
+	private static class AdaptiveTask extends RecursiveAction {
+		private final Range body;
+		private final int from, minGrain;
+		private int to;
+		/* Upper halves forked by this task, most recent first */
+		private AdaptiveTask next;
+
+		AdaptiveTask(Range body, int from, int to, int minGrain) {
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.minGrain = minGrain;
+		}
+
+		@Override
+		protected void compute() {
+			AdaptiveTask forked = null;
+			while (to - from > minGrain && getSurplusQueuedTaskCount() <= SURPLUS) {
+				int mid = (from + to) >>> 1;
+				AdaptiveTask t = new AdaptiveTask(body, mid, to, minGrain);
+				t.next = forked;
+				forked = t;
+				t.fork();
+				to = mid;
+			}
+			body.run(from, to);
+			/* Run the halves nobody stole here, wait for the others */
+			for (AdaptiveTask t = forked; t != null; t = t.next) {
+				if (t.tryUnfork()) t.compute();
+				else t.join();
+			}
+		}
+	}
+}
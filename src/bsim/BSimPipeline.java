@@ -0,0 +1,199 @@
+package bsim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import bsim.field.BSimMultiSpeciesField;
+
+/**
+ * Tick pipeline whose phases declare what they read and write.
+ * Phases are added in the order a sequential tick would run them. Each one
+ * declares the objects (agent lists, chemical fields, ...) it reads and writes,
+ * and run() starts every phase as soon as the earlier phases it conflicts with
+ * have finished. Two phases conflict if one writes an object the other reads or
+ * writes, so phases that touch different objects, e.g. the updates of two
+ * fields, run concurrently while the result is that of the sequential order.
+ * A phase that declares nothing conflicts with every other phase.
+ * <p>
+ * Phases run in the pool of a BSimForkJoinTicker and are timed by it:
+ * <pre>
+ * final BSimForkJoinTicker ticker = new BSimForkJoinTicker() {
+ *     public void tick() { pipeline.run(); }
+ * };
+ * pipeline = new BSimPipeline(ticker);
+ * pipeline.addForEach("action", bacteria, actionOfEachCell).reads(hField, iField).writes(bacteria, sources);
+ * pipeline.add("sources", applySources).writes(sources, hField, iField);
+ * pipeline.add("h field", updateH).writes(hField);
+ * pipeline.add("i field", updateI).writes(iField);
+ * pipeline.addForEach("grow", bacteria, growEachCell).writes(bacteria);
+ * </pre>
+ * Here the two field updates run at the same time, and alongside growth.
+ * Declarations are not checked: a phase that touches an undeclared object
+ * can race with the phases running next to it.
+ */
+public class BSimPipeline {
+
+	/** Ticker whose pool runs the phases and which records their timings. */
+	protected BSimForkJoinTicker ticker;
+	/** Phases in sequential order. */
+	protected List<Step> steps = new ArrayList<Step>();
+	/** Whether the dependencies of the phases are up to date. */
+	protected boolean planned;
+
+	/** A phase of the pipeline, with the objects it reads and writes. */
+	public class Step {
+		protected String name;
+		protected Runnable body;
+		protected Set<Object> reads = identitySet(), writes = identitySet();
+		/** Phases this one must follow regardless of what they touch. */
+		protected List<Step> after = new ArrayList<Step>();
+		/** Earlier phases this one waits for (computed by plan()). */
+		protected List<Step> depends = new ArrayList<Step>();
+		/** Position in steps. */
+		protected int index;
+
+		/** Declares objects the phase reads (species views count as their multi-species field). */
+		public Step reads(Object... objects) {
+			for (Object o : objects) reads.add(BSimMultiSpeciesField.owner(o));
+			planned = false;
+			return this;
+		}
+		/** Declares objects the phase modifies. */
+		public Step writes(Object... objects) {
+			for (Object o : objects) writes.add(BSimMultiSpeciesField.owner(o));
+			planned = false;
+			return this;
+		}
+		/** Makes the phase wait for earlier phases even if they touch nothing in common. */
+		public Step after(Step... earlier) {
+			for (Step s : earlier) {
+				assert (s.index < index) : "Pipeline - a phase can only follow earlier phases";
+				after.add(s);
+			}
+			planned = false;
+			return this;
+		}
+		/** Returns the name of the phase. */
+		public String getName() { return name; }
+
+		/** Whether this phase declares nothing, and so conflicts with every phase. */
+		boolean undeclared() {
+			return reads.isEmpty() && writes.isEmpty();
+		}
+	}
+
+	/**
+	 * Creates an empty pipeline that runs in the pool of ticker.
+	 */
+	public BSimPipeline(BSimForkJoinTicker ticker) {
+		this.ticker = ticker;
+	}
+
+	/**
+	 * Adds a phase that runs body once, in a single thread.
+	 */
+	public Step add(final String name, final Runnable body) {
+		Step s = new Step();
+		s.name = name;
+		s.body = new Runnable() {
+			public void run() { ticker.phase(name, body); }
+		};
+		s.index = steps.size();
+		steps.add(s);
+		planned = false;
+		return s;
+	}
+
+	/**
+	 * Adds a phase that runs action on every agent of the list in parallel
+	 * (BSimForkJoinTicker.forEach()). The phase is declared to write the list.
+	 */
+	public <T> Step addForEach(final String name, final List<T> agents, final BSimForkJoinTicker.Action<? super T> action) {
+		Step s = add(name, null);
+		s.body = new Runnable() {
+			public void run() { ticker.forEach(name, agents, action); }
+		};
+		s.writes(agents);
+		return s;
+	}
+
+	/**
+	 * Works out which earlier phases each phase must wait for.
+	 */
+	protected void plan() {
+		for (Step s : steps) {
+			s.depends.clear();
+			for (int j = 0; j < s.index; j++) {
+				Step e = steps.get(j);
+				if (s.after.contains(e) || conflict(e, s)) s.depends.add(e);
+			}
+		}
+		planned = true;
+	}
+
+	/** Whether two phases touch a common object that at least one of them writes. */
+	protected boolean conflict(Step a, Step b) {
+		if (a.undeclared() || b.undeclared()) return true;
+		for (Object o : a.writes) if (b.reads.contains(o) || b.writes.contains(o)) return true;
+		for (Object o : b.writes) if (a.reads.contains(o)) return true;
+		return false;
+	}
+
+	/**
+	 * Runs one tick of the pipeline, returning when every phase has finished. With
+	 * a single thread the phases run in the order they were added. An exception in a
+	 * phase stops the phases that depend on it and is rethrown here.
+	 */
+	public void run() {
+		if (!planned) plan();
+		if (ticker.getThreads() < 2) {
+			for (Step s : steps) s.body.run();
+			return;
+		}
+		CompletableFuture<?>[] done = new CompletableFuture<?>[steps.size()];
+		for (Step s : steps) {
+			if (s.depends.isEmpty()) {
+				done[s.index] = CompletableFuture.runAsync(s.body, ticker.getPool());
+			} else {
+				CompletableFuture<?>[] deps = new CompletableFuture<?>[s.depends.size()];
+				for (int i = 0; i < deps.length; i++) deps[i] = done[s.depends.get(i).index];
+				done[s.index] = CompletableFuture.allOf(deps).thenRunAsync(s.body, ticker.getPool());
+			}
+		}
+		try {
+			CompletableFuture.allOf(done).join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns one line per phase naming the earlier phases it waits for.
+	 */
+	public String describe() {
+		if (!planned) plan();
+		StringBuilder sb = new StringBuilder();
+		String nl = System.getProperty("line.separator");
+		for (Step s : steps) {
+			sb.append(s.name);
+			if (!s.depends.isEmpty()) {
+				sb.append(" after ");
+				for (int i = 0; i < s.depends.size(); i++) sb.append(i > 0 ? ", " : "").append(s.depends.get(i).name);
+			}
+			sb.append(nl);
+		}
+		return sb.toString();
+	}
+
+	private static Set<Object> identitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	}
+}
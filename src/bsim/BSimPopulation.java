@@ -0,0 +1,278 @@
+package bsim;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Population of agents with cheap removal and thread-safe births and deaths.
+ * The agents are kept in an array, so the population can be handed to
+ * BSimForkJoinTicker.forEach() like any list. Removal moves the last agent into
+ * the gap (O(1), the order of the other agents is not kept), and each agent
+ * keeps the id it received when it joined, whatever its position.
+ * <p>
+ * During a parallel phase agents must not change the population directly.
+ * Instead they call born() and died() (or add to the write-only lists births()
+ * and deaths(), which can be given to BSimBacterium.setChildList()). These append
+ * to a queue of the calling thread without locks, and commit() applies the queued
+ * changes at the tick boundary:
+ * <pre>
+ * BSimPopulation&lt;BSimBacterium&gt; bacteria = new BSimPopulation&lt;BSimBacterium&gt;();
+ * ... bacterium.setChildList(bacteria.births());
+ * public void tick() {
+ *     forEach("action", bacteria, ...);  // may call bacteria.died(b) or replicate()
+ *     bacteria.commit();
+ * }
+ * </pre>
+ * Births are appended ordered by the position of their parent, the agent that was
+ * being run by BSimForkJoinTicker.forEach() when it was queued, and in the order
+ * each parent queued them; so the order does not depend on the threads, provided
+ * the births of a commit() come from one forEach() phase. Births queued outside
+ * forEach() come last, in the order of the queues. Deaths are applied in the
+ * order of the positions of the agents that died.
+ */
+public class BSimPopulation<T> extends AbstractList<T> implements RandomAccess {
+
+	/** Position and id of an agent. */
+	protected static class Slot {
+		int index;
+		long id;
+	}
+
+	/** An agent queued to join, and the position of its parent. */
+	protected static class Birth<T> {
+		T agent;
+		int parent;
+	}
+
+	/** Births and deaths queued by one thread. */
+	protected static class Queue<T> {
+		List<Birth<T>> births = new ArrayList<Birth<T>>();
+		List<T> deaths = new ArrayList<T>();
+	}
+
+	/** Parent given to births queued outside a forEach() phase, which come last. */
+	protected static final int NO_PARENT = Integer.MAX_VALUE;
+
+	/**
+	 * Position, in the list of a BSimForkJoinTicker.forEach() phase, of the agent the
+	 * calling thread is running (NO_PARENT outside such a phase).
+	 */
+	static final ThreadLocal<int[]> running = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() { return new int[] {NO_PARENT}; }
+	};
+
+	protected static final Comparator<Birth<?>> BY_PARENT = new Comparator<Birth<?>>() {
+		public int compare(Birth<?> a, Birth<?> b) { return Integer.compare(a.parent, b.parent); }
+	};
+
+	/** Agents, in positions 0 to size-1. */
+	protected Object[] agents = new Object[16];
+	protected int size;
+	/** Slot of each agent. */
+	protected IdentityHashMap<T, Slot> slots = new IdentityHashMap<T, Slot>();
+	/** Next id to hand out. */
+	protected AtomicLong nextId = new AtomicLong();
+
+	/** Queue of each thread that has used this population, and of the calling thread. */
+	protected ConcurrentLinkedQueue<Queue<T>> queues = new ConcurrentLinkedQueue<Queue<T>>();
+	protected ThreadLocal<Queue<T>> queue = new ThreadLocal<Queue<T>>() {
+		@Override
+		protected Queue<T> initialValue() {
+			Queue<T> q = new Queue<T>();
+			queues.add(q);
+			return q;
+		}
+	};
+
+	/** Write-only views that queue births and deaths when added to. */
+	protected final List<T> births = new Pending(true), deaths = new Pending(false);
+	/** Births and deaths of all queues, sorted by commit(). */
+	protected List<Birth<T>> merged = new ArrayList<Birth<T>>();
+	protected List<T> dying = new ArrayList<T>();
+	/** Orders agents by their position (non-members first). */
+	protected final Comparator<T> byPosition = new Comparator<T>() {
+		public int compare(T a, T b) { return Integer.compare(indexOf(a), indexOf(b)); }
+	};
+
+	/** Creates an empty population. */
+	public BSimPopulation() {}
+
+	/** Creates a population holding the given agents, in order. */
+	public BSimPopulation(Collection<? extends T> c) {
+		addAll(c);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T get(int i) {
+		if (i >= size) throw new IndexOutOfBoundsException("Population - index " + i + " of " + size);
+		return (T)agents[i];
+	}
+
+	@Override
+	public int size() { return size; }
+
+	/**
+	 * Adds an agent at the end straight away. Not thread-safe: use born() during a
+	 * parallel phase.
+	 */
+	@Override
+	public boolean add(T agent) {
+		if (slots.containsKey(agent)) throw new IllegalArgumentException("Population - agent is already a member");
+		if (size == agents.length) agents = Arrays.copyOf(agents, 2*size);
+		Slot s = new Slot();
+		s.index = size;
+		s.id = nextId.getAndIncrement();
+		slots.put(agent, s);
+		agents[size++] = agent;
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Removes the agent at position i, moving the last agent into its place.
+	 * Not thread-safe: use died() during a parallel phase.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public T remove(int i) {
+		T agent = get(i);
+		slots.remove(agent);
+		int last = --size;
+		if (i != last) {
+			agents[i] = agents[last];
+			slots.get((T)agents[i]).index = i;
+		}
+		agents[last] = null;
+		modCount++;
+		return agent;
+	}
+
+	/** Removes an agent in O(1), moving the last agent into its place. */
+	@Override
+	public boolean remove(Object agent) {
+		Slot s = slots.get(agent);
+		if (s == null) return false;
+		remove(s.index);
+		return true;
+	}
+
+	/** Removes all the given agents, each in O(1). */
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		boolean changed = false;
+		for (Object o : c) changed |= remove(o);
+		return changed;
+	}
+
+	@Override
+	public boolean contains(Object agent) { return slots.containsKey(agent); }
+
+	@Override
+	public int indexOf(Object agent) {
+		Slot s = slots.get(agent);
+		return (s == null ? -1 : s.index);
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(agents, 0, size, null);
+		size = 0;
+		slots.clear();
+		modCount++;
+	}
+
+	/** Returns the id an agent received when it joined, or -1 if it is not a member. */
+	public long getId(T agent) {
+		Slot s = slots.get(agent);
+		return (s == null ? -1 : s.id);
+	}
+
+	/** Queues an agent to join at the next commit(). Thread-safe. */
+	public void born(T agent) {
+		Birth<T> b = new Birth<T>();
+		b.agent = agent;
+		b.parent = running.get()[0];
+		queue.get().births.add(b);
+	}
+
+	/** Queues an agent to leave at the next commit(). Thread-safe. */
+	public void died(T agent) {
+		queue.get().deaths.add(agent);
+	}
+
+	/**
+	 * Returns a write-only list whose add() calls born(), e.g. for
+	 * BSimBacterium.setChildList(). Reading it throws UnsupportedOperationException.
+	 */
+	public List<T> births() { return births; }
+	/** Returns a write-only list whose add() calls died(). */
+	public List<T> deaths() { return deaths; }
+
+	/**
+	 * Applies the queued deaths ordered by position, then the queued births ordered by
+	 * parent, and empties the queues. Must be called between parallel phases. Returns the change in size.
+	 */
+	public int commit() {
+		int before = size;
+		for (Queue<T> q : queues) {
+			dying.addAll(q.deaths);
+			q.deaths.clear();
+		}
+		// Removal moves agents around, so the deaths are applied in a fixed order
+		Collections.sort(dying, byPosition);
+		for (T agent : dying) remove(agent);
+		dying.clear();
+		for (Queue<T> q : queues) {
+			merged.addAll(q.births);
+			q.births.clear();
+		}
+		// Stable, so each parent's births keep the order they were queued in
+		Collections.sort(merged, BY_PARENT);
+		for (Birth<T> b : merged) add(b.agent);
+		merged.clear();
+		return size - before;
+	}
+
+	/** Returns the number of queued births and deaths. Only exact between phases. */
+	public int getPending() {
+		int n = 0;
+		for (Queue<T> q : queues) n += q.births.size() + q.deaths.size();
+		return n;
+	}
+
+	/**
+	 * Write-only list that queues births or deaths, for code that adds agents to a
+	 * List (e.g. BSimBacterium.replicate()). Only add() and addAll() are supported:
+	 * get(), size() and everything built on them (iteration, isEmpty(), contains(),
+	 * toString()) throw UnsupportedOperationException, since the queued agents are
+	 * spread over the threads. Use getPending() to count them between phases.
+	 */
+	protected class Pending extends AbstractList<T> {
+		final boolean birth;
+		Pending(boolean birth) { this.birth = birth; }
+		@Override
+		public boolean add(T agent) {
+			if (birth) born(agent);
+			else died(agent);
+			return true;
+		}
+		@Override
+		public T get(int i) { throw writeOnly(); }
+		@Override
+		public int size() { throw writeOnly(); }
+		UnsupportedOperationException writeOnly() {
+			return new UnsupportedOperationException("Population - queued " + (birth ? "births" : "deaths") + " are write-only");
+		}
+	}
+}
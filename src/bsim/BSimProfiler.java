@@ -0,0 +1,241 @@
+package bsim;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profiler of the phases of a tick.
+ * For each named phase it keeps the distribution of its duration, the bytes it
+ * allocated and the number of agents it handled. Set on a simulation with
+ * BSim.setProfiler(), it times every tick and the exporters, and receives the
+ * phases of the ticker: those of BSimThreadedTicker and BSimForkJoinTicker are
+ * reported automatically, and other tickers can time their own with
+ * BSimTicker.profile(). The summary is written to a file at the end of
+ * BSim.export() (JSON if the name ends with .json, CSV otherwise):
+ * <pre>
+ * sim.setProfiler(new BSimProfiler("profile.csv"));
+ * </pre>
+ * Durations are kept in a log-linear histogram (values within about 3%), so
+ * percentiles cost a fixed amount of memory whatever the number of ticks.
+ * Allocation is measured per thread (com.sun.management.ThreadMXBean where the JVM
+ * supports it) and is not available (-1) otherwise.
+ */
+public class BSimProfiler {
+
+	/**
+	 * Histogram of non-negative values with buckets of constant relative width
+	 * (1/32 of the value), in the manner of HdrHistogram.
+	 */
+	public static class Histogram {
+		/** Bits of precision: each power of two is split into 2^SUB_BITS buckets. */
+		static final int SUB_BITS = 5, SUB = 1 << SUB_BITS;
+
+		protected long[] counts = new long[(64 - SUB_BITS + 1)*SUB];
+		protected long count, sum, min = Long.MAX_VALUE, max;
+
+		/** Adds a value. */
+		public synchronized void record(long v) {
+			if (v < 0) v = 0;
+			counts[index(v)]++;
+			count++;
+			sum += v;
+			if (v < min) min = v;
+			if (v > max) max = v;
+		}
+
+		public synchronized long getCount() { return count; }
+		public synchronized long getMax() { return max; }
+		public synchronized long getMin() { return (count == 0 ? 0 : min); }
+		public synchronized double getMean() { return (count == 0 ? 0 : (double)sum/count); }
+		public synchronized long getTotal() { return sum; }
+
+		/**
+		 * Returns the value below which a fraction p (0 to 1) of the values lie, as
+		 * the upper end of its bucket (never more than the largest value).
+		 */
+		public synchronized long getPercentile(double p) {
+			if (count == 0) return 0;
+			long rank = Math.max(1, (long)Math.ceil(p*count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) return Math.min(upper(i), max);
+			}
+			return max;
+		}
+
+		/** Bucket of a value. */
+		static int index(long v) {
+			if (v < SUB) return (int)v;
+			int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+			return (shift + 1)*SUB + (int)((v >>> shift) - SUB);
+		}
+
+		/** Largest value of a bucket. */
+		static long upper(int i) {
+			if (i < SUB) return i;
+			int shift = i/SUB - 1;
+			return ((long)(SUB + i%SUB) << shift) + (1L << shift) - 1;
+		}
+	}
+
+	/** Statistics of one phase. */
+	protected static class Phase {
+		String name;
+		/** Durations (ns). */
+		Histogram nanos = new Histogram();
+		/** Bytes allocated in total, or -1 if unknown. */
+		long bytes;
+		/** Agents handled in total, and the number of calls reporting agents. */
+		long agents, agentCalls;
+	}
+
+	/** File the summary is written to, or null. */
+	protected String filename;
+	/** Statistics per phase, in the order the phases first ran. */
+	protected Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+	/** Allocation counter of the JVM, or null if not supported. */
+	protected com.sun.management.ThreadMXBean threads;
+
+	/** Creates a profiler that does not write a summary (see getSummary()). */
+	public BSimProfiler() {
+		this(null);
+	}
+
+	/** Creates a profiler that writes its summary to a file at the end of the simulation. */
+	public BSimProfiler(String filename) {
+		this.filename = filename;
+		java.lang.management.ThreadMXBean t = ManagementFactory.getThreadMXBean();
+		if (t instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean s = (com.sun.management.ThreadMXBean)t;
+			if (s.isThreadAllocatedMemorySupported()) {
+				s.setThreadAllocatedMemoryEnabled(true);
+				threads = s;
+			}
+		}
+	}
+
+	/** Returns the bytes allocated so far by the calling thread, or -1 if unknown. */
+	public long allocatedBytes() {
+		return (threads == null ? -1 : threads.getThreadAllocatedBytes(Thread.currentThread().getId()));
+	}
+
+	/**
+	 * Runs body as the phase called name, handling the given number of agents (-1 if
+	 * not relevant), and records its duration and allocation.
+	 */
+	public void profile(String name, int agents, Runnable body) {
+		long b = allocatedBytes();
+		long t = System.nanoTime();
+		body.run();
+		long nanos = System.nanoTime() - t;
+		record(name, nanos, (b < 0 ? -1 : allocatedBytes() - b), agents);
+	}
+
+	/**
+	 * Records one run of a phase: its duration (ns), the bytes it allocated (-1 if
+	 * unknown) and the agents it handled (-1 if not relevant). May be called from any thread.
+	 */
+	public synchronized void record(String name, long nanos, long bytes, int agents) {
+		Phase p = phases.get(name);
+		if (p == null) {
+			p = new Phase();
+			p.name = name;
+			phases.put(name, p);
+		}
+		p.nanos.record(nanos);
+		if (bytes < 0 || p.bytes < 0) p.bytes = -1;
+		else p.bytes += bytes;
+		if (agents >= 0) {
+			p.agents += agents;
+			p.agentCalls++;
+		}
+	}
+
+	/** Returns the duration histogram of a phase (ns), or null if it has not run. */
+	public synchronized Histogram getHistogram(String name) {
+		Phase p = phases.get(name);
+		return (p == null ? null : p.nanos);
+	}
+
+	/** Clears the statistics of all phases. */
+	public synchronized void reset() {
+		phases.clear();
+	}
+
+	/**
+	 * Returns the summary as CSV: one line per phase with the number of calls, the
+	 * mean number of agents, the total time (ms), the mean, median, 90th and 99th
+	 * percentile and longest time (us) and the bytes allocated per call.
+	 */
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		String nl = System.getProperty("line.separator");
+		sb.append("phase,calls,agents,total_ms,mean_us,p50_us,p90_us,p99_us,max_us,bytes_per_call").append(nl);
+		for (Object[] row : rows()) {
+			for (int i = 0; i < row.length; i++) sb.append(i > 0 ? "," : "").append(row[i]);
+			sb.append(nl);
+		}
+		return sb.toString();
+	}
+
+	/** Returns the summary as a JSON array with one object per phase (see getSummary()). */
+	public String getSummaryJson() {
+		String[] keys = {"phase", "calls", "agents", "total_ms", "mean_us", "p50_us", "p90_us", "p99_us", "max_us", "bytes_per_call"};
+		StringBuilder sb = new StringBuilder("[");
+		List<Object[]> rows = rows();
+		for (int r = 0; r < rows.size(); r++) {
+			sb.append(r > 0 ? ",\n  {" : "\n  {");
+			Object[] row = rows.get(r);
+			for (int i = 0; i < row.length; i++) {
+				sb.append(i > 0 ? ", " : "").append('"').append(keys[i]).append("\": ");
+				if (i == 0) sb.append('"').append(row[i].toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+				else sb.append(row[i]);
+			}
+			sb.append('}');
+		}
+		return sb.append("\n]\n").toString();
+	}
+
+	/** Values of the summary, one row per phase. */
+	protected synchronized List<Object[]> rows() {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (Phase p : phases.values()) {
+			Histogram h = p.nanos;
+			long calls = h.getCount();
+			rows.add(new Object[] {
+				p.name, calls,
+				(p.agentCalls > 0 ? (float)((double)p.agents/p.agentCalls) : -1),
+				(float)(h.getTotal()*1e-6), (float)(h.getMean()*1e-3),
+				(float)(h.getPercentile(0.5)*1e-3), (float)(h.getPercentile(0.9)*1e-3),
+				(float)(h.getPercentile(0.99)*1e-3), (float)(h.getMax()*1e-3),
+				(p.bytes < 0 ? -1 : p.bytes/Math.max(calls, 1))
+			});
+		}
+		return rows;
+	}
+
+	/**
+	 * Writes the summary to the file, if one was given. Called at the end of BSim.export().
+	 */
+	public void finish() {
+		if (filename == null) return;
+		try {
+			BufferedWriter w = new BufferedWriter(new FileWriter(new File(filename)));
+			try {
+				w.write(filename.endsWith(".json") ? getSummaryJson() : getSummary());
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
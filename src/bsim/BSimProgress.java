@@ -0,0 +1,117 @@
+package bsim;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress and telemetry of a running simulation.
+ * BSim.export() calls start(), then tick() after every timestep and finish() at
+ * the end. A line with the simulated time, the fraction done and the rate in
+ * timesteps per second is printed at most once per interval of wall-clock time,
+ * so the loop stays cheap whatever the number of timesteps. Tickers report the
+ * time spent in their phases through BSimTicker.report(), and the totals are
+ * printed by finish().
+ * <p>
+ * Override report() and finish() to send the figures elsewhere (a log, a GUI),
+ * use setInterval(0) to print every timestep, or BSim.setProgress(null) for no
+ * output at all (batch runs).
+ */
+public class BSimProgress {
+
+	/** Default wall-clock time between two progress lines (secs). */
+	public static double DEFAULT_INTERVAL = 1.0;
+
+	/** Wall-clock time between two progress lines (ns). */
+	protected long interval;
+	/** Stream the progress is printed to. */
+	protected PrintStream out = System.out;
+	/** Wall-clock time of the start and of the last report (ns). */
+	protected long startNanos, lastNanos;
+	/** Timesteps run in total and at the last report. */
+	protected long ticks, lastTicks;
+	/** Timesteps per second since the last report. */
+	protected double recentRate;
+	/** Total time reported per phase (ns). */
+	protected Map<String, LongAdder> phases = new ConcurrentHashMap<String, LongAdder>();
+
+	/** Creates a console reporter with the default interval. */
+	public BSimProgress() {
+		this(DEFAULT_INTERVAL);
+	}
+
+	/** Creates a console reporter printing at most once per interval (secs). */
+	public BSimProgress(double interval) {
+		setInterval(interval);
+	}
+
+	/** Set the wall-clock time between two progress lines (secs). */
+	public void setInterval(double s) { interval = (long)(s*1e9); }
+	/** Set the stream the progress is printed to. */
+	public void setOutput(PrintStream p) { out = p; }
+
+	/** Called before the first timestep. */
+	public void start(BSim sim) {
+		ticks = lastTicks = 0;
+		recentRate = 0;
+		phases.clear();
+		startNanos = lastNanos = System.nanoTime();
+	}
+
+	/** Called after each timestep; reports if the interval has passed. */
+	public void tick(BSim sim) {
+		ticks++;
+		long now = System.nanoTime();
+		if (now - lastNanos < interval) return;
+		recentRate = (ticks - lastTicks)/Math.max((now - lastNanos)*1e-9, 1e-9);
+		lastNanos = now;
+		lastTicks = ticks;
+		report(sim);
+	}
+
+	/**
+	 * Adds time spent in a phase of a tick (ns). May be called from any thread.
+	 */
+	public void phase(String name, long nanos) {
+		LongAdder a = phases.get(name);
+		if (a == null) {
+			LongAdder b = new LongAdder();
+			a = phases.putIfAbsent(name, b);
+			if (a == null) a = b;
+		}
+		a.add(nanos);
+	}
+
+	/** Prints a progress line. */
+	protected void report(BSim sim) {
+		int total = sim.timesteps(sim.getSimulationTime()) + 1;
+		out.println("Time " + sim.getFormattedTime() + " (" + (int)(100.0*(sim.getTimestep() + 1)/total) + "%), "
+				+ (int)recentRate + " timesteps/s");
+	}
+
+	/** Called after the last timestep; prints the totals. */
+	public void finish(BSim sim) {
+		out.println("Simulation done: " + ticks + " timesteps in " + (float)getElapsed() + " s ("
+				+ (int)getTicksPerSecond() + " timesteps/s)");
+		for (Map.Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(phases).entrySet()) {
+			out.println("  " + e.getKey() + ": " + (float)(e.getValue().sum()*1e-9) + " s");
+		}
+	}
+
+	/** Return the number of timesteps run. */
+	public long getTicks() { return ticks; }
+	/** Return the wall-clock time since start() (secs). */
+	public double getElapsed() { return (System.nanoTime() - startNanos)*1e-9; }
+	/** Return the mean number of timesteps per second since start(). */
+	public double getTicksPerSecond() { return ticks/Math.max(getElapsed(), 1e-9); }
+	/** Return the number of timesteps per second at the last report. */
+	public double getRecentTicksPerSecond() { return recentRate; }
+
+	/** Return the total time reported for a phase (secs). */
+	public double getPhaseTime(String name) {
+		LongAdder a = phases.get(name);
+		return (a == null ? 0 : a.sum()*1e-9);
+	}
+}
@@ -0,0 +1,186 @@
+package bsim;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Seeded, splittable random number stream.
+ * Values are produced by a counter-based generator (SplitMix64): the n-th value of
+ * a stream is a hash of its key and n, so a stream is cheap to create, holds no
+ * shared state and takes no locks. Streams are meant to be owned by one agent or
+ * one worker thread each:
+ * <ul>
+ * <li>stream(key) returns the stream with the given key, which depends only on the
+ * seed and the key (not on how many values have been drawn before);</li>
+ * <li>split() returns a new stream derived from the next values of this one, e.g. for
+ * the daughter of a dividing cell.</li>
+ * </ul>
+ * If every agent draws from its own stream (see BSim.newStream()) the results of a
+ * run depend only on the seed, whatever the order in which threads run the agents.
+ * Per-worker streams (stream(threadID)) give the same results for a given seed and
+ * number of threads.
+ * <p>
+ * It extends java.util.Random so that it can replace existing generators, but it is
+ * not thread-safe: a stream must only be used by one thread at a time.
+ */
+public class BSimRandom extends Random {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Golden-ratio increment of SplitMix64. */
+	public static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	/** Source of seeds for unseeded streams. */
+	private static final AtomicLong SEEDER = new AtomicLong(System.nanoTime());
+	/** Unseeded stream of each thread, used by code that has no stream of its own. */
+	private static final ThreadLocal<BSimRandom> CURRENT = new ThreadLocal<BSimRandom>() {
+		@Override
+		protected BSimRandom initialValue() { return new BSimRandom(); }
+	};
+
+	/** Seed the stream was created from. */
+	private long seed;
+	/** Counter and increment of the generator. */
+	private long state, gamma;
+	/** Second value of the last pair of Gaussian samples. */
+	private double nextGaussian;
+	private boolean haveNextGaussian;
+
+	/** Creates a stream with a seed that differs from call to call. */
+	public BSimRandom() {
+		this(mix64(SEEDER.addAndGet(GOLDEN_GAMMA)) ^ System.nanoTime());
+	}
+
+	/** Creates the stream with the given seed. */
+	public BSimRandom(long seed) {
+		setSeed(seed);
+	}
+
+	private BSimRandom(long seed, long state, long gamma) {
+		this.seed = seed;
+		this.state = state;
+		this.gamma = gamma;
+	}
+
+	/**
+	 * Returns an unseeded stream belonging to the calling thread, for code that does
+	 * not have a stream of its own. Its values are not reproducible.
+	 */
+	public static BSimRandom current() {
+		return CURRENT.get();
+	}
+
+	/** Restarts the stream from a seed. */
+	@Override
+	public void setSeed(long seed) {
+		this.seed = seed;
+		this.state = mix64(seed);
+		this.gamma = GOLDEN_GAMMA;
+		this.haveNextGaussian = false;
+	}
+
+	/** Returns the seed the stream was created from. */
+	public long getSeed() { return seed; }
+
+	/**
+	 * Returns the stream with the given key. It depends only on the seed of this
+	 * stream and the key, and streams with different keys are independent.
+	 */
+	public BSimRandom stream(long key) {
+		long k = mix64(seed + mix64(key + 1)*GOLDEN_GAMMA);
+		return new BSimRandom(k, mix64(k), mixGamma(k + GOLDEN_GAMMA));
+	}
+
+	/**
+	 * Returns a new independent stream, advancing this one by two values.
+	 */
+	public BSimRandom split() {
+		long k = nextLong();
+		return new BSimRandom(k, mix64(k), mixGamma(nextLong()));
+	}
+
+	@Override
+	protected int next(int bits) {
+		return (int)(nextLong() >>> (64 - bits));
+	}
+
+	@Override
+	public long nextLong() {
+		return mix64(state += gamma);
+	}
+
+	@Override
+	public int nextInt() {
+		return (int)(nextLong() >>> 32);
+	}
+
+	/** Returns a value uniformly distributed in [0, 1). */
+	@Override
+	public double nextDouble() {
+		return (nextLong() >>> 11)*0x1.0p-53;
+	}
+
+	/**
+	 * Returns a normally distributed value (mean 0, standard deviation 1), using the
+	 * polar method. Unlike Random.nextGaussian() it takes no lock.
+	 */
+	@Override
+	public double nextGaussian() {
+		if (haveNextGaussian) {
+			haveNextGaussian = false;
+			return nextGaussian;
+		}
+		double v1, v2, s;
+		do {
+			v1 = 2*nextDouble() - 1;
+			v2 = 2*nextDouble() - 1;
+			s = v1*v1 + v2*v2;
+		} while (s >= 1 || s == 0);
+		double m = Math.sqrt(-2*Math.log(s)/s);
+		nextGaussian = v2*m;
+		haveNextGaussian = true;
+		return v1*m;
+	}
+
+	/**
+	 * Returns a value from the gamma distribution with shape k and scale theta
+	 * (Marsaglia and Tsang's method; shapes below 1 are boosted by a uniform power).
+	 */
+	public double nextGamma(double k, double theta) {
+		assert (k > 0) : "Random - the shape of a gamma distribution must be positive";
+		if (k < 1) {
+			double u = nextDouble();
+			return nextGamma(k + 1, theta)*Math.pow(u, 1/k);
+		}
+		double d = k - 1.0/3, c = 1/Math.sqrt(9*d);
+		while (true) {
+			double x, v;
+			do {
+				x = nextGaussian();
+				v = 1 + c*x;
+			} while (v <= 0);
+			v = v*v*v;
+			double u = nextDouble();
+			double x2 = x*x;
+			if (u < 1 - 0.0331*x2*x2 || Math.log(u) < 0.5*x2 + d*(1 - v + Math.log(v))) return d*v*theta;
+		}
+	}
+
+	/**
+	 * SplitMix64 finaliser. (mix64(s += GOLDEN_GAMMA) steps a generator whose state
+	 * is a single long, e.g. one held in an array per agent.)
+	 */
+	public static long mix64(long z) {
+		z = (z ^ (z >>> 30))*0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27))*0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/** Returns an odd increment with enough bit transitions for a good stream. */
+	private static long mixGamma(long z) {
+		z = (z ^ (z >>> 33))*0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33))*0xc4ceb9fe1a85ec53L;
+		z = (z ^ (z >>> 33)) | 1L;
+		int n = Long.bitCount(z ^ (z >>> 1));
+		return (n < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z);
+	}
+}
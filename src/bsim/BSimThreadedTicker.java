@@ -1,6 +1,8 @@
 package bsim;
 
 import java.util.Vector;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Multi-threaded ticker.
@@ -8,7 +10,8 @@ import java.util.Vector;
  * updating of appropriate parts of a simulation. Care must be taken to ensure
  * that data structures are not updated and read by two different threads. A
  * user must define a BSimThreadedTickerWorker object that captures how the
- * ticker should split up the update task.
+ * ticker should split up the update task. Work is split into fixed blocks; see
+ * BSimForkJoinTicker for a ticker that balances uneven work between threads.
  */
 public abstract class BSimThreadedTicker extends BSimTicker {
 	
@@ -18,6 +21,10 @@ public abstract class BSimThreadedTicker extends BSimTicker {
 	protected Vector<BSimThreadedTickerWorker> workers;
 	/** A local working for the main thread to call directly. */
 	protected BSimThreadedTickerWorker myWorker;
+	/** Threads running the other workers. */
+	protected Vector<Thread> workerThreads;
+	/** Bytes allocated by all workers during the current threaded block, if profiling. */
+	final LongAdder threadedBytes = new LongAdder();
 	
 	/**
 	 * Constructor that creates a threaded ticker that uses a fixed size pool of threads. These are
@@ -30,24 +37,54 @@ public abstract class BSimThreadedTicker extends BSimTicker {
 		this.threads = threads;
 		// Create a pool of worker threads
 		workers = new Vector<BSimThreadedTickerWorker>(threads);
+		workerThreads = new Vector<Thread>(threads);
+		// Barriers belong to this ticker, so that several simulations can run at once
+		CyclicBarrier start = new CyclicBarrier(threads);
+		CyclicBarrier end = new CyclicBarrier(threads);
 		myWorker = createWorker(0, threads);
+		myWorker.setShared(this, start, end);
 		for (int i = 1; i < threads; i++) { 
 			BSimThreadedTickerWorker worker = createWorker(i, threads);
+			worker.setShared(this, start, end);
 			workers.add(worker);
 			Thread t = new Thread(worker);
+			t.setDaemon(true);
+			workerThreads.add(t);
 			t.start();
 		}
 	}
 	
+	/**
+	 * Stops the worker threads at the end of the simulation.
+	 */
+	@Override
+	public void finish() {
+		for (Thread t : workerThreads) t.interrupt();
+		super.finish();
+	}
+	
 	/**
 	 * Called at each time step by the BSim simulation object. Runs the sequential before, the
 	 * workers code, and then the sequential after.
 	 */
 	@Override
 	final public void tick() {
+		if (progress == null && profiler == null) {
+			sequentialBefore();
+			myWorker.run(); // This will automatically trigger and wait for all other workers to finish
+			sequentialAfter();
+			return;
+		}
+		long b0 = allocated(), t0 = System.nanoTime();
 		sequentialBefore();
-		myWorker.run(); // This will automatically trigger and wait for all other workers to finish
+		long b1 = allocated(), t1 = System.nanoTime();
+		myWorker.run();
+		long t2 = System.nanoTime(), b2 = allocated();
 		sequentialAfter();
+		long t3 = System.nanoTime(), b3 = allocated();
+		report("sequentialBefore", t1 - t0, (b0 < 0 ? -1 : b1 - b0), -1);
+		report("threaded", t2 - t1, (b0 < 0 ? -1 : threadedBytes.sumThenReset()), -1);
+		report("sequentialAfter", t3 - t2, (b0 < 0 ? -1 : b3 - b2), -1);
 	}
 	
 	/**
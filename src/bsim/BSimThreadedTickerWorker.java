@@ -13,10 +13,12 @@ public abstract class BSimThreadedTickerWorker implements Runnable {
 	protected int threadID;
 	/** Total number of threads in the pool. */
 	protected int threads;
-	/** Shared barrier to enable synchronisation of all threads at start of update. */
-	protected static CyclicBarrier barrier1;
-	/** Shared barrier to enable synchronisation of all threads at end of update. */
-	protected static CyclicBarrier barrier2;
+	/** Barrier shared with the other workers of the ticker, to synchronise all threads at start of update. */
+	protected CyclicBarrier barrier1;
+	/** Barrier shared with the other workers of the ticker, to synchronise all threads at end of update. */
+	protected CyclicBarrier barrier2;
+	/** The ticker running this worker, which collects the bytes it allocates. */
+	BSimThreadedTicker ticker;
 	
 	/**
 	 * Constructor to create a new worker for the BSimThreadedTicker.
@@ -26,10 +28,13 @@ public abstract class BSimThreadedTickerWorker implements Runnable {
 	public BSimThreadedTickerWorker(int threadID, int threads) {
 		this.threadID = threadID;
 		this.threads = threads;
-		if (threadID == 0) {
-			barrier1 = new CyclicBarrier(threads);
-			barrier2 = new CyclicBarrier(threads);
-		}
+	}
+	
+	/** Set the ticker and the barriers shared by its workers (called by BSimThreadedTicker). */
+	void setShared(BSimThreadedTicker ticker, CyclicBarrier start, CyclicBarrier end) {
+		this.ticker = ticker;
+		barrier1 = start;
+		barrier2 = end;
 	}
 	
 	/**
@@ -41,7 +46,7 @@ public abstract class BSimThreadedTickerWorker implements Runnable {
 			try {
 				barrier1.await(); // Make sure all threads are ready to start
 				barrier1.reset();
-				threadedTick(threadID, threads); // Run the worker
+				measuredTick(); // Run the worker
 				barrier2.await(); // Wait until other threads are done
 				barrier2.reset();
 			}
@@ -51,7 +56,7 @@ public abstract class BSimThreadedTickerWorker implements Runnable {
 			while (true) {
 				try {
 					barrier1.await(); // Wait on trigger
-					threadedTick(threadID, threads); // Run the worker
+					measuredTick(); // Run the worker
 					barrier2.await(); // Wait until other threads are done
 				}
 				catch (Exception e) { break; }
@@ -59,6 +64,16 @@ public abstract class BSimThreadedTickerWorker implements Runnable {
 		}
 	}
 	
+	/**
+	 * Runs threadedTick(), adding the bytes this thread allocates to the ticker's
+	 * total if it is being profiled.
+	 */
+	private void measuredTick() {
+		long b = ticker.allocated();
+		threadedTick(threadID, threads);
+		if (b >= 0) ticker.threadedBytes.add(ticker.allocated() - b);
+	}
+	
 	/**
 	 * Run each timestep in parallel, use the threadID to figure
 	 * out which part of the problem to work on. threads is the
@@ -5,6 +5,11 @@ package bsim;
  * Used to update the simulation state at each timestep.
  */
 public abstract class BSimTicker {
+	/** Reporter of progress set by BSim.export(), or null. */
+	protected BSimProgress progress;
+	/** Profiler set by BSim.export(), or null. */
+	protected BSimProfiler profiler;
+	
 	/**
 	 * Run each timestep, this is where you should update particle properties
 	 * by calling interaction(), action() and updatePosition() methods
@@ -17,6 +22,50 @@ public abstract class BSimTicker {
 	 * for multithreaded examples)
 	 */
 	public void finish(){
-		System.out.println("Simulation done.");
+	}
+	
+	/** Set the reporter that phase timings are sent to. */
+	public void setProgress(BSimProgress p) { progress = p; }
+	/** Set the profiler that phase statistics are sent to. */
+	public void setProfiler(BSimProfiler p) { profiler = p; }
+	/** Return the profiler, or null. */
+	public BSimProfiler getProfiler() { return profiler; }
+	
+	/**
+	 * Runs body as the phase called name of the tick, handling the given number of
+	 * agents (-1 if not relevant). Its time and allocation are reported if there
+	 * is a reporter or a profiler.
+	 */
+	protected void profile(String name, int agents, Runnable body) {
+		if (progress == null && profiler == null) {
+			body.run();
+			return;
+		}
+		long b = allocated();
+		long t = System.nanoTime();
+		body.run();
+		long nanos = System.nanoTime() - t;
+		report(name, nanos, (b < 0 ? -1 : allocated() - b), agents);
+	}
+	
+	/**
+	 * Reports the time (ns) spent in a phase of the tick, if there is a reporter.
+	 */
+	protected void report(String phase, long nanos) {
+		report(phase, nanos, -1, -1);
+	}
+	
+	/**
+	 * Reports the time (ns), the bytes allocated (-1 if unknown) and the agents
+	 * handled (-1 if not relevant) by a phase of the tick.
+	 */
+	protected void report(String phase, long nanos, long bytes, int agents) {
+		if (progress != null) progress.phase(phase, nanos);
+		if (profiler != null) profiler.record(phase, nanos, bytes, agents);
+	}
+	
+	/** Returns the bytes allocated so far by the calling thread if profiling, or -1. */
+	protected long allocated() {
+		return (profiler == null ? -1 : profiler.allocatedBytes());
 	}
 }
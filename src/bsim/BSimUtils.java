@@ -4,8 +4,6 @@ import java.io.File;
 import java.util.Calendar;
 import java.util.Random;
 
-import javax.vecmath.AxisAngle4d;
-import javax.vecmath.Matrix3d;
 import javax.vecmath.Vector3d;
 
 /**
@@ -24,72 +22,31 @@ public class BSimUtils {
 	 */
 	
 	public static double sampleNormal(double mean, double stdev) {
-	    
-		final double GaussianNumber  = rng.nextGaussian();
-		final double normalVariable = GaussianNumber;
-		final double scaledVariable = stdev*normalVariable + mean;
-		
-		return scaledVariable;
-			
-		}
-	
-	/** Shared random number generator. */
-	private static Random rng = new Random();
+		return stdev*BSimRandom.current().nextGaussian() + mean;
+	}
 	
 	/**
-	 * Sample from a gamma distribution. See: 
-	 * http://vyshemirsky.blogspot.com/2007/11/sample-from-gamma-distribution-in-java.html
+	 * Sample from a gamma distribution with shape k and scale theta, using the stream
+	 * of the calling thread (see BSimRandom.nextGamma() for reproducible samples).
 	 */
-	public static synchronized double sampleGamma(double k, double theta) {
-		boolean accept = false;
-		if (k < 1) {
-			// Weibull algorithm
-			double c = (1 / k);
-			double d = ((1 - k) * Math.pow(k, (k / (1 - k))));
-			double u, v, z, e, x;
-			do {
-				u = rng.nextDouble();
-				v = rng.nextDouble();
-				z = -Math.log(u);
-				e = -Math.log(v);
-				x = Math.pow(z, c);
-				if ((z + e) >= (d + x)) {
-					accept = true;
-				}
-			} while (!accept);
-			return (x * theta);
-		} else {
-			// Cheng's algorithm
-			double b = (k - Math.log(4));
-			double c = (k + Math.sqrt(2 * k - 1));
-			double lam = Math.sqrt(2 * k - 1);
-			double cheng = (1 + Math.log(4.5));
-			double u, v, x, y, z, r;
-			do {
-				u = rng.nextDouble();
-				v = rng.nextDouble();
-				y = ((1 / lam) * Math.log(v / (1 - v)));
-				x = (k * Math.exp(y));
-				z = (u * v * v);
-				r = (b + (c * y) - x);
-				if ((r >= ((4.5 * z) - cheng)) ||
-						(r >= Math.log(z))) {
-					accept = true;
-				}
-			} while (!accept);
-			return (x * theta);
-		}
+	public static double sampleGamma(double k, double theta) {
+		return BSimRandom.current().nextGamma(k, theta);
 	}
 	
 	/**
 	 * Rotates the vector v by an angle theta in a random direction perpendicular to v.
 	 */
-	public static synchronized void rotatePerp(Vector3d v, double theta) {		
+	public static void rotatePerp(Vector3d v, double theta) {
+		rotatePerp(v, theta, BSimRandom.current());
+	}
+	
+	/**
+	 * Rotates the vector v by an angle theta in a direction perpendicular to v drawn from rng.
+	 */
+	public static void rotatePerp(Vector3d v, double theta, Random rng) {
 		/* Obtain a random direction perpendicular to v */		
-		Vector3d random = new Vector3d(0.5-Math.random(),0.5-Math.random(),0.5-Math.random());
-		Vector3d randomPerp = new Vector3d();
-		randomPerp.cross(v, random);		
-		rotate(v, randomPerp, theta);
+		double rx = 0.5-rng.nextDouble(), ry = 0.5-rng.nextDouble(), rz = 0.5-rng.nextDouble();
+		rotate(v, v.y*rz - v.z*ry, v.z*rx - v.x*rz, v.x*ry - v.y*rx, theta);
 		// Ensure the vector is unit
 		v.normalize();
 	}
@@ -97,13 +54,23 @@ public class BSimUtils {
 	/**
 	 * Rotates the vector v towards the specified axis by an angle theta.
 	 */
-	public static synchronized void rotate(Vector3d v, Vector3d axis, double theta) {
-		/* Generate the rotation matrix for rotating about the axis by an angle theta */
-		Matrix3d r = new Matrix3d();
-		r.set(new AxisAngle4d(axis, theta));
-		
-		/* Apply the rotation */			
-		r.transform(v);
+	public static void rotate(Vector3d v, Vector3d axis, double theta) {
+		rotate(v, axis.x, axis.y, axis.z, theta);
+	}
+	
+	/**
+	 * Rotates the vector v about the axis (ax,ay,az) by an angle theta (Rodrigues' formula,
+	 * the same rotation as an AxisAngle4d matrix) without creating any objects.
+	 */
+	public static void rotate(Vector3d v, double ax, double ay, double az, double theta) {
+		double mag = Math.sqrt(ax*ax + ay*ay + az*az);
+		if (mag < 1e-10) return;
+		ax /= mag; ay /= mag; az /= mag;
+		double c = Math.cos(theta), s = Math.sin(theta), t = (1 - c)*(ax*v.x + ay*v.y + az*v.z);
+		double x = c*v.x + s*(ay*v.z - az*v.y) + t*ax;
+		double y = c*v.y + s*(az*v.x - ax*v.z) + t*ay;
+		double z = c*v.z + s*(ax*v.y - ay*v.x) + t*az;
+		v.set(x, y, z);
 	}
 	
 	/**
@@ -1,10 +1,10 @@
 package bsim.capsule;
 
 import bsim.BSim;
+import bsim.BSimRandom;
 import bsim.ode.BSimOdeSystem;
 
 import javax.vecmath.Vector3d;
-import java.util.Random;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -15,7 +15,8 @@ public class BSimCapsuleBacterium {
 
     public final long id = NEXT_ID.getAndIncrement();
 
-    protected Random rng = new Random();
+    /** Random number stream of this bacterium (see BSim.newStream()). */
+    protected BSimRandom rng;
 
     public Vector3d x1 = new Vector3d(0,0,0);
     public Vector3d x2 = new Vector3d(0,0,0);
@@ -105,6 +106,7 @@ public class BSimCapsuleBacterium {
         (this.xi will be overwritten before being passed to child for ex.)
          */
         BSimCapsuleBacterium child = new BSimCapsuleBacterium(sim, x1_child, new Vector3d(this.x2));
+        child.rng = rng.split();
         this.initialise(L1, this.x1, x2_new);
         ///
         child.L = L2;
@@ -214,6 +216,25 @@ public class BSimCapsuleBacterium {
     }
 
     public void computeNeighbourForce(BSimCapsuleBacterium neighbour_bac){
+        double[] f = new double[CONTACT_SIZE];
+        if(contactForce(neighbour_bac, f, 0)) {
+            this.x1force.x += f[0]; this.x1force.y += f[1]; this.x1force.z += f[2];
+            this.x2force.x += f[3]; this.x2force.y += f[4]; this.x2force.z += f[5];
+            neighbour_bac.x1force.x += f[6]; neighbour_bac.x1force.y += f[7]; neighbour_bac.x1force.z += f[8];
+            neighbour_bac.x2force.x += f[9]; neighbour_bac.x2force.y += f[10]; neighbour_bac.x2force.z += f[11];
+        }
+    }
+
+    /** Number of values written by contactForce(). */
+    public static final int CONTACT_SIZE = 12;
+
+    /**
+     * Computes the contact force between this bacterium and a neighbour without applying it, so that contacts
+     * can be computed in parallel: writes the forces on this.x1, this.x2, neighbour_bac.x1 and neighbour_bac.x2
+     * (x, y, z of each) to f[offset] to f[offset + 11], and returns false if they do not touch (f is not written).
+     * Reads only the positions of the two bacteria.
+     */
+    public boolean contactForce(BSimCapsuleBacterium neighbour_bac, double[] f, int offset){
 //        System.out.println("Neighbour Force");
         /*
         Vector returned (dP) is from the second bac, heading to the first
@@ -393,11 +414,15 @@ public class BSimCapsuleBacterium {
                 // ***********
                 dP.normalize();
 
-                this.x1force.scaleAdd((1.0 - sc) * repulsionStrength, dP, this.x1force);
-                this.x2force.scaleAdd(sc * repulsionStrength, dP, this.x2force);
-
-                neighbour_bac.x1force.scaleAdd(-(1.0 - tc) * repulsionStrength, dP, neighbour_bac.x1force);
-                neighbour_bac.x2force.scaleAdd(-tc * repulsionStrength, dP, neighbour_bac.x2force);
+                double s1 = (1.0 - sc) * repulsionStrength;
+                double s2 = sc * repulsionStrength;
+                double t1 = -(1.0 - tc) * repulsionStrength;
+                double t2 = -tc * repulsionStrength;
+                f[offset] = s1 * dP.x; f[offset + 1] = s1 * dP.y; f[offset + 2] = s1 * dP.z;
+                f[offset + 3] = s2 * dP.x; f[offset + 4] = s2 * dP.y; f[offset + 5] = s2 * dP.z;
+                f[offset + 6] = t1 * dP.x; f[offset + 7] = t1 * dP.y; f[offset + 8] = t1 * dP.z;
+                f[offset + 9] = t2 * dP.x; f[offset + 10] = t2 * dP.y; f[offset + 11] = t2 * dP.z;
+                return true;
 
 
 //                this.x1force.scaleAdd((1.1 - sc) * repulsionStrength, dP, this.x1force);
@@ -413,6 +438,7 @@ public class BSimCapsuleBacterium {
                 // ***********
             }
         }
+        return false;
     }
 
     public void applyForces(BSimCapsuleBacterium neighbour_bac){
@@ -495,6 +521,7 @@ public class BSimCapsuleBacterium {
         x1 = _x1;
         x2 = _x2;
         sim = _sim;
+        rng = sim.newStream();
         setBrownianForceMagnitude();
 
         Vector3d u = new Vector3d();
@@ -514,9 +541,10 @@ public class BSimCapsuleBacterium {
      * you should call setBrownianForceMagnitude() again
      */
     public void brownianForce() {
-        Vector3d f = new Vector3d(rng.nextGaussian(), rng.nextGaussian(), rng.nextGaussian());
-        f.scale(brownianForceMagnitude);
-        x1force.add(f);
-        x2force.add(f);
+        double fx = brownianForceMagnitude*rng.nextGaussian();
+        double fy = brownianForceMagnitude*rng.nextGaussian();
+        double fz = brownianForceMagnitude*rng.nextGaussian();
+        x1force.x += fx; x1force.y += fy; x1force.z += fz;
+        x2force.x += fx; x2force.y += fy; x2force.z += fz;
     }
 }
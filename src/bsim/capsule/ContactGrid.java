@@ -0,0 +1,309 @@
+package bsim.capsule;
+
+import bsim.BSim;
+
+import javax.vecmath.Vector3d;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Contact detection for capsules: a uniform grid over the x-y plane, kept up to date incrementally, and a
+ * Verlet list of the pairs of bacteria that may be in contact, built from the grid with a skin margin.
+ * Bacteria are referred to by their position in the list (their 'slot') at the last update. The cell width
+ * follows the longest capsule in the population.
+ */
+public class ContactGrid {
+
+    List<BSimCapsuleBacterium> allBacteria;
+    Vector3d simDims;
+    int nX;
+    int nY;
+    double gridCellWidth;
+    double originX;
+    double originY;
+
+    /*
+    The grid is a cell list kept in flat int arrays, indexed by the position of a bacterium in the list
+    (its 'slot'): cellHead[cell] is the first slot in a grid cell, cellNext/cellPrev link the slots of the
+    same cell, and slotCell is the cell each slot is currently linked into (-1 if none).
+    binned[slot] is the bacterium that was binned in that slot, so that from one update to the next only
+    the bacteria that changed grid cell (or slot, after births and removals) are moved between lists.
+     */
+    int[] cellHead = new int[0];
+    int[] cellNext = new int[0];
+    int[] cellPrev = new int[0];
+    int[] slotCell = new int[0];
+    BSimCapsuleBacterium[] binned = new BSimCapsuleBacterium[0];
+    int nBinned;
+
+    /*
+    Verlet pair list: the pairs (pairFirst[i], pairSecond[i]) of slots whose midpoints were within the contact
+    range plus the skin when the list was built, at the midpoints (listX, listY, listZ) and lengths (listL).
+    It can be reused until a bacterium has moved (plus half its growth) more than half the skin.
+    The pairs of each slot are listed in slotPairs[slotPairStart[slot]..slotPairStart[slot+1]) as
+    2*pair + (0 if it is the first of the pair, 1 if the second), in the order of the pair list.
+     */
+    int[] pairFirst = new int[0];
+    int[] pairSecond = new int[0];
+    int nPairs;
+    double[] listX = new double[0];
+    double[] listY = new double[0];
+    double[] listZ = new double[0];
+    double[] listL = new double[0];
+    double skin = DEFAULT_SKIN;
+    long pairListBuilds;
+    int[] slotPairStart = new int[1];
+    int[] slotPairs = new int[0];
+
+    /** Default skin of the pair list (um). */
+    public static final double DEFAULT_SKIN = 0.5;
+
+    /** Lower limit of the grid cell width (um), for empty or degenerate populations. */
+    static final double MIN_CELL_WIDTH = 1.0;
+
+    public ContactGrid(List<BSimCapsuleBacterium> _allBacteria, BSim _sim){
+        this.allBacteria = _allBacteria;
+        this.simDims = _sim.getBound();
+
+        // The grid is sized from the bacteria on the first update.
+        // Care; if the cells are too small, it is actually possible for cells to not be able to collide with a
+        // cell that is outside of its grid box's neighbours, even though they're slightly overlapping.
+    }
+
+    /**
+     * Smallest grid cell width such that all pairs of bacteria that may be in contact (the bounding-sphere
+     * test of computeNeighbourForce: midpoint distance < (L1 + L2)/2 + r1 + r2), plus the skin of the pair
+     * list, are in neighbouring cells.
+     */
+    double requiredCellWidth() {
+        double maxL = 0, maxRadius = 0;
+        for(BSimCapsuleBacterium b : allBacteria){
+            if(b.L > maxL) maxL = b.L;
+            if(b.radius > maxRadius) maxRadius = b.radius;
+        }
+        return Math.max(maxL + 2*maxRadius + skin, MIN_CELL_WIDTH);
+    }
+
+    /**
+     * (Re)builds an empty grid with cells at least minWidth wide, splitting the domain into a whole number of
+     * cells, with one extra row of cells on each side of the domain in case there's an open edge.
+     */
+    void resizeGrid(double minWidth) {
+        double simX = simDims.x;
+        double simY = simDims.y;
+
+        // We want the cell size to be >= minimum width (at least one cell if the domain is narrower).
+        this.nX = Math.max(1, (int)Math.floor(simX/minWidth));
+        this.nY = Math.max(1, (int)Math.floor(simY/minWidth));
+
+        // TODO: max(simX/nX, simY/nX)? in case of narrow domain for example?
+        this.gridCellWidth = Math.max(simX/nX, minWidth);
+
+        this.nX += 2;
+        this.nY += 2;
+        this.originX = -gridCellWidth;
+        this.originY = -gridCellWidth;
+
+        if(cellHead.length < nX*nY) cellHead = new int[nX*nY];
+        Arrays.fill(cellHead, -1);
+        Arrays.fill(slotCell, -1);
+        Arrays.fill(binned, null);
+        nBinned = 0;
+    }
+
+    /** Grid cell of a bacterium; bacteria beyond the grid are put in its outermost cells. */
+    int cellOf(BSimCapsuleBacterium b) {
+        int bInX = (int)Math.floor((b.position.x - originX)/gridCellWidth);
+        int bInY = (int)Math.floor((b.position.y - originY)/gridCellWidth);
+        if(bInX < 0) bInX = 0; else if(bInX >= nX) bInX = nX - 1;
+        if(bInY < 0) bInY = 0; else if(bInY >= nY) bInY = nY - 1;
+        return bInX*nY + bInY;
+    }
+
+    void link(int slot, int cell) {
+        int head = cellHead[cell];
+        cellNext[slot] = head;
+        cellPrev[slot] = -1;
+        if(head >= 0) cellPrev[head] = slot;
+        cellHead[cell] = slot;
+        slotCell[slot] = cell;
+    }
+
+    void unlink(int slot) {
+        int cell = slotCell[slot];
+        if(cell < 0) return;
+        int prev = cellPrev[slot], next = cellNext[slot];
+        if(prev >= 0) cellNext[prev] = next;
+        else cellHead[cell] = next;
+        if(next >= 0) cellPrev[next] = prev;
+        slotCell[slot] = -1;
+    }
+
+    /**
+     * Brings the grid up to date with the current positions. Only the bacteria whose cell has changed since
+     * the previous update are moved.
+     */
+    void updateGrid() {
+        // Grow the cells as soon as the longest capsule needs it; shrink them when they have become much too
+        // wide (after the population has changed), as wide cells hold more pairs that are not in contact.
+        double width = requiredCellWidth();
+        if(width > gridCellWidth || width < 0.5*gridCellWidth) resizeGrid(width);
+
+        int n = allBacteria.size();
+        if(slotCell.length < n) {
+            int capacity = Math.max(n, 2*slotCell.length);
+            int old = slotCell.length;
+            cellNext = Arrays.copyOf(cellNext, capacity);
+            cellPrev = Arrays.copyOf(cellPrev, capacity);
+            slotCell = Arrays.copyOf(slotCell, capacity);
+            Arrays.fill(slotCell, old, capacity, -1);
+            binned = Arrays.copyOf(binned, capacity);
+        }
+
+        int slot = 0;
+        for(BSimCapsuleBacterium b : allBacteria){
+            int cell = cellOf(b);
+            if(binned[slot] != b || slotCell[slot] != cell) {
+                unlink(slot);
+                link(slot, cell);
+                binned[slot] = b;
+            }
+            slot++;
+        }
+        // Slots left over after removals
+        for(; slot < nBinned; slot++){
+            unlink(slot);
+            binned[slot] = null;
+        }
+        nBinned = n;
+    }
+
+    /**
+     * Rebuilds the grid and the pair list from the current positions: every pair of bacteria in the same or neighbouring
+     * grid cells that is within the contact range plus the skin, once per pair. Each bacterium is paired with those
+     * after it in its own cell, and with all those in the four neighbouring cells 'ahead' of it (x+1 and y-1..y+1,
+     * and x and y+1); the other four neighbours see it from their side.
+     */
+    public void build() {
+        updateGrid();
+        nPairs = 0;
+        if(listX.length < nBinned) {
+            listX = new double[binned.length];
+            listY = new double[binned.length];
+            listZ = new double[binned.length];
+            listL = new double[binned.length];
+        }
+        for(int slot = 0; slot < nBinned; slot++){
+            BSimCapsuleBacterium b1 = binned[slot];
+            listX[slot] = b1.position.x;
+            listY[slot] = b1.position.y;
+            listZ[slot] = b1.position.z;
+            listL[slot] = b1.L;
+            int cell = slotCell[slot];
+            int iX = cell/nY, iY = cell%nY;
+
+            addPairs(slot, cellNext[slot]);
+            if(iY + 1 < nY) addPairs(slot, cellHead[cell + 1]);
+            if(iX + 1 < nX) {
+                int next = cell + nY;
+                for(int neighbourY = Math.max(iY - 1, 0); neighbourY <= Math.min(iY + 1, nY - 1); neighbourY++){
+                    addPairs(slot, cellHead[next - iY + neighbourY]);
+                }
+            }
+        }
+        indexPairs();
+        pairListBuilds++;
+    }
+
+    /** Lists the pairs of each slot, in the order of the pair list (a counting sort of the pair ends). */
+    void indexPairs() {
+        if(slotPairStart.length < nBinned + 1) slotPairStart = new int[binned.length + 1];
+        if(slotPairs.length < 2*nPairs) slotPairs = new int[2*pairFirst.length];
+        Arrays.fill(slotPairStart, 0, nBinned + 1, 0);
+        for(int i = 0; i < nPairs; i++){
+            slotPairStart[pairFirst[i] + 1]++;
+            slotPairStart[pairSecond[i] + 1]++;
+        }
+        for(int slot = 0; slot < nBinned; slot++) slotPairStart[slot + 1] += slotPairStart[slot];
+        int[] fill = Arrays.copyOf(slotPairStart, nBinned);
+        for(int i = 0; i < nPairs; i++){
+            slotPairs[fill[pairFirst[i]]++] = 2*i;
+            slotPairs[fill[pairSecond[i]]++] = 2*i + 1;
+        }
+    }
+
+    /** Adds the pairs of a slot with the slots of a cell list, starting from first, that are within range. */
+    void addPairs(int slot, int first) {
+        BSimCapsuleBacterium b1 = binned[slot];
+        for(int other = first; other >= 0; other = cellNext[other]){
+            BSimCapsuleBacterium b2 = binned[other];
+            double range = (b1.L + b2.L)*0.5 + (b1.radius + b2.radius) + skin;
+            double dx = b1.position.x - b2.position.x;
+            double dy = b1.position.y - b2.position.y;
+            double dz = b1.position.z - b2.position.z;
+            if(dx*dx + dy*dy + dz*dz < range*range) {
+                if(nPairs == pairFirst.length) {
+                    pairFirst = Arrays.copyOf(pairFirst, Math.max(16, 2*nPairs));
+                    pairSecond = Arrays.copyOf(pairSecond, pairFirst.length);
+                }
+                pairFirst[nPairs] = slot;
+                pairSecond[nPairs] = other;
+                nPairs++;
+            }
+        }
+    }
+
+    /**
+     * True if a bacterium has moved, plus half its growth, more than half the skin since the pair list was built,
+     * so that a pair that was not in the list may now be in contact.
+     */
+    public boolean expired() {
+        double limit = 0.5*skin;
+        for(int slot = 0; slot < nBinned; slot++){
+            BSimCapsuleBacterium b = binned[slot];
+            double dx = b.position.x - listX[slot], dy = b.position.y - listY[slot], dz = b.position.z - listZ[slot];
+            double growth = 0.5*(b.L - listL[slot]);
+            if(growth < 0) growth = 0;
+            double moved = limit - growth;
+            if(moved < 0 || dx*dx + dy*dy + dz*dz > moved*moved) return true;
+        }
+        return false;
+    }
+
+    /** True if bacteria have been added to or removed from the list (or reordered) since the last update. */
+    public boolean changed() {
+        if(allBacteria.size() != nBinned) return true;
+        int slot = 0;
+        for(BSimCapsuleBacterium b : allBacteria){
+            if(binned[slot++] != b) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Rebuilds the pair list if the population has changed or a bacterium has moved too far since it was built,
+     * so that a list from a previous timestep can be reused.
+     */
+    public void update() {
+        if(changed() || expired()) build();
+    }
+
+    /** Number of bacteria at the last update. */
+    public int size() { return nBinned; }
+
+    /** Number of pairs in the pair list. */
+    public int getPairCount() { return nPairs; }
+
+    /** Bacterium in a slot. */
+    public BSimCapsuleBacterium get(int slot) { return binned[slot]; }
+
+    /** Sets the skin (um): the margin added to the contact range when building the pair list. */
+    public void setSkin(double skin) {
+        this.skin = skin;
+    }
+
+    public double getSkin() { return skin; }
+
+    /** Number of times the pair list has been built, for monitoring the choice of skin. */
+    public long getPairListBuilds() { return pairListBuilds; }
+}
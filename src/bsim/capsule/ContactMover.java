@@ -0,0 +1,274 @@
+package bsim.capsule;
+
+import bsim.BSim;
+
+import java.util.List;
+
+/**
+ * Position-constraint solver for capsules, in place of integrating the contact forces over a relaxation time
+ * (RelaxationMover, RelaxationMoverGrid).
+ *
+ * Each iteration is a projected Gauss-Seidel sweep over the constraints: every pair of overlapping capsules is
+ * pushed apart along the line between their closest points, by the overlap shared between the four end points
+ * with the same weights as the contact force (1-sc, sc, 1-tc, tc); every capsule is brought back to its length
+ * L; and the end points are moved back inside the walls of computeWallForce(). Corrections are applied
+ * straight away, so later constraints in a sweep see them. The sweeps stop when the largest violation (overlap,
+ * length error or wall penetration, in um) seen in a sweep is below the tolerance, or after maxIterations.
+ *
+ * Contacts are found with a ContactGrid. The number of iterations and the residual of the last move() are
+ * available from getIterations() and getResidual() and are passed to the MoverMetrics if one is set; the
+ * totals over all moves are available from getTotalIterations() and getContactEvaluations().
+ */
+public class ContactMover implements Mover {
+
+    List<BSimCapsuleBacterium> allBacteria;
+    BSim sim;
+    ContactGrid contacts;
+
+    /** Default largest violation (um) at which the sweeps stop. */
+    public static final double DEFAULT_TOLERANCE = 1e-3;
+    /** Default limit on the number of sweeps per move(). */
+    public static final int DEFAULT_MAX_ITERATIONS = 200;
+
+    double tolerance = DEFAULT_TOLERANCE;
+    int maxIterations = DEFAULT_MAX_ITERATIONS;
+    /** Fraction of each violation corrected in a sweep (1 for plain Gauss-Seidel, up to 2 for over-relaxation). */
+    double relaxation = 1.0;
+
+    int iterations;
+    double residual;
+    long totalIterations;
+    long contactEvaluations;
+    MoverMetrics metrics;
+
+    private static final double EPS = 1e-12;
+
+    /*
+    Closest points of the last pair passed to closestPoints(): parameters sc and tc along the two segments,
+    and the vector (dPx, dPy, dPz) from the point on the second segment to the point on the first.
+     */
+    double sc, tc, dPx, dPy, dPz;
+
+    public ContactMover(List<BSimCapsuleBacterium> _allBacteria, BSim _sim){
+        this.allBacteria = _allBacteria;
+        this.sim = _sim;
+        this.contacts = new ContactGrid(_allBacteria, _sim);
+    }
+
+    public void move() {
+        // Before solving the position constraint, we need to compute other velocities
+        // (flow etc.) and apply these to the cells.
+        for(BSimCapsuleBacterium b : allBacteria){
+            b.setAllForcesZero();
+            b.computeFlowForce();
+            b.updatePosition();
+        }
+
+        contacts.build();
+        residual = Double.POSITIVE_INFINITY;
+        for(iterations = 0; iterations < maxIterations && residual > tolerance; iterations++){
+            if(iterations > 0) {
+                updateMidpoints();
+                if(contacts.expired()) contacts.build();
+            }
+            residual = sweep();
+        }
+        updateMidpoints();
+        totalIterations += iterations;
+        if(metrics != null) metrics.moved(this, iterations, residual);
+    }
+
+    /** One Gauss-Seidel sweep over all constraints. Returns the largest violation found before correcting it. */
+    double sweep() {
+        double maxViolation = 0;
+        int nPairs = contacts.nPairs;
+        int[] pairFirst = contacts.pairFirst, pairSecond = contacts.pairSecond;
+        BSimCapsuleBacterium[] binned = contacts.binned;
+
+        for(int i = 0; i < nPairs; i++){
+            double overlap = projectContact(binned[pairFirst[i]], binned[pairSecond[i]]);
+            if(overlap > maxViolation) maxViolation = overlap;
+        }
+        contactEvaluations += nPairs;
+
+        double boundX = sim.getBound().x, boundZ = sim.getBound().z;
+        for(int slot = 0; slot < contacts.size(); slot++){
+            BSimCapsuleBacterium b = binned[slot];
+            double error = projectLength(b);
+            if(error > maxViolation) maxViolation = error;
+
+            double lowX = b.radius, highX = boundX - b.radius;
+            double lowZ = b.radius, highZ = boundZ - b.radius;
+            if(highZ < lowZ) lowZ = highZ = 0.5*boundZ;
+            error = Math.max(
+                    Math.max(wall(b.x1.x, lowX, highX), wall(b.x2.x, lowX, highX)),
+                    Math.max(wall(b.x1.z, lowZ, highZ), wall(b.x2.z, lowZ, highZ)));
+            // As in computeWallForce(), the bottom wall (y = bound) is left open for the flow.
+            error = Math.max(error, Math.max(b.radius - b.x1.y, b.radius - b.x2.y));
+            if(error > maxViolation) maxViolation = error;
+            b.x1.x = clamp(b.x1.x, lowX, highX);
+            b.x2.x = clamp(b.x2.x, lowX, highX);
+            b.x1.z = clamp(b.x1.z, lowZ, highZ);
+            b.x2.z = clamp(b.x2.z, lowZ, highZ);
+            if(b.x1.y < b.radius) b.x1.y = b.radius;
+            if(b.x2.y < b.radius) b.x2.y = b.radius;
+        }
+        return maxViolation;
+    }
+
+    /** Penetration of a coordinate into the walls at low and high (0 if inside). */
+    static double wall(double v, double low, double high) {
+        return Math.max(low - v, v - high);
+    }
+
+    static double clamp(double v, double low, double high) {
+        return (v < low ? low : (v > high ? high : v));
+    }
+
+    /**
+     * Pushes two capsules apart if they overlap, and returns the overlap (0 if they do not touch).
+     */
+    double projectContact(BSimCapsuleBacterium b1, BSimCapsuleBacterium b2) {
+        // Cheap bounding-sphere test on the current midpoints
+        double mx = 0.5*(b1.x1.x + b1.x2.x - b2.x1.x - b2.x2.x);
+        double my = 0.5*(b1.x1.y + b1.x2.y - b2.x1.y - b2.x2.y);
+        double mz = 0.5*(b1.x1.z + b1.x2.z - b2.x1.z - b2.x2.z);
+        double contact = b1.radius + b2.radius;
+        double rDist = (b1.L + b2.L)*0.5 + contact;
+        if(mx*mx + my*my + mz*mz >= rDist*rDist) return 0;
+
+        closestPoints(b1, b2);
+        double dist = Math.sqrt(dPx*dPx + dPy*dPy + dPz*dPz);
+        double overlap = contact - dist;
+        if(overlap <= 0) return 0;
+
+        // Direction from the second capsule to the first (the midpoints if the segments cross)
+        double nx = dPx, ny = dPy, nz = dPz, n = dist;
+        if(n < EPS) {
+            nx = mx; ny = my; nz = mz;
+            n = Math.sqrt(nx*nx + ny*ny + nz*nz);
+            if(n < EPS) { nx = 1; ny = 0; nz = 0; n = 1; }
+        }
+
+        double w1 = 1.0 - sc, w2 = sc, w3 = 1.0 - tc, w4 = tc;
+        double scale = relaxation*overlap/((w1*w1 + w2*w2 + w3*w3 + w4*w4)*n);
+        nx *= scale; ny *= scale; nz *= scale;
+        b1.x1.x += w1*nx; b1.x1.y += w1*ny; b1.x1.z += w1*nz;
+        b1.x2.x += w2*nx; b1.x2.y += w2*ny; b1.x2.z += w2*nz;
+        b2.x1.x -= w3*nx; b2.x1.y -= w3*ny; b2.x1.z -= w3*nz;
+        b2.x2.x -= w4*nx; b2.x2.y -= w4*ny; b2.x2.z -= w4*nz;
+        return overlap;
+    }
+
+    /** Moves the end points of a capsule symmetrically to restore its length. Returns the length error. */
+    double projectLength(BSimCapsuleBacterium b) {
+        double ux = b.x2.x - b.x1.x, uy = b.x2.y - b.x1.y, uz = b.x2.z - b.x1.z;
+        double length = Math.sqrt(ux*ux + uy*uy + uz*uz);
+        if(length < EPS) return 0;
+        double diff = length - b.L;
+        double scale = 0.5*relaxation*diff/length;
+        b.x1.x += scale*ux; b.x1.y += scale*uy; b.x1.z += scale*uz;
+        b.x2.x -= scale*ux; b.x2.y -= scale*uy; b.x2.z -= scale*uz;
+        return Math.abs(diff);
+    }
+
+    /**
+     * Closest points of the segments of two capsules (as in BSimCapsuleBacterium.contactForce()), into sc, tc
+     * and dP.
+     */
+    void closestPoints(BSimCapsuleBacterium b1, BSimCapsuleBacterium b2) {
+        double ux = b1.x2.x - b1.x1.x, uy = b1.x2.y - b1.x1.y, uz = b1.x2.z - b1.x1.z;
+        double vx = b2.x2.x - b2.x1.x, vy = b2.x2.y - b2.x1.y, vz = b2.x2.z - b2.x1.z;
+        double wx = b1.x1.x - b2.x1.x, wy = b1.x1.y - b2.x1.y, wz = b1.x1.z - b2.x1.z;
+        double a = ux*ux + uy*uy + uz*uz;
+        double b = ux*vx + uy*vy + uz*vz;
+        double c = vx*vx + vy*vy + vz*vz;
+        double d = ux*wx + uy*wy + uz*wz;
+        double e = vx*wx + vy*wy + vz*wz;
+        double D = a*c - b*b;
+        double sN, sD = D, tN, tD = D;
+
+        if(D < EPS) {
+            sN = 0.0;
+            sD = 1.0;
+            tN = e;
+            tD = c;
+        } else {
+            sN = (b*e - c*d);
+            tN = (a*e - b*d);
+            if(sN < 0.0) {
+                sN = 0.0;
+                tN = e;
+                tD = c;
+            } else if(sN > sD) {
+                sN = sD;
+                tN = e + b;
+                tD = c;
+            }
+        }
+
+        if(tN < 0.0) {
+            tN = 0.0;
+            if(-d < 0.0) sN = 0.0;
+            else if(-d > a) sN = sD;
+            else {
+                sN = -d;
+                sD = a;
+            }
+        } else if(tN > tD) {
+            tN = tD;
+            if((-d + b) < 0.0) sN = 0;
+            else if((-d + b) > a) sN = sD;
+            else {
+                sN = (-d + b);
+                sD = a;
+            }
+        }
+
+        sc = (Math.abs(sN) < EPS ? 0.0 : sN/sD);
+        tc = (Math.abs(tN) < EPS ? 0.0 : tN/tD);
+        dPx = wx + sc*ux - tc*vx;
+        dPy = wy + sc*uy - tc*vy;
+        dPz = wz + sc*uz - tc*vz;
+    }
+
+    /** Sets the midpoints from the end points, for the pair list. */
+    void updateMidpoints() {
+        for(int slot = 0; slot < contacts.size(); slot++){
+            BSimCapsuleBacterium b = contacts.binned[slot];
+            b.position.set(0.5*(b.x1.x + b.x2.x), 0.5*(b.x1.y + b.x2.y), 0.5*(b.x1.z + b.x2.z));
+        }
+    }
+
+    /** Sets the largest violation (um) at which the sweeps stop. */
+    public void setTolerance(double tolerance) { this.tolerance = tolerance; }
+    public double getTolerance() { return tolerance; }
+
+    /** Sets the limit on the number of sweeps per move(). */
+    public void setMaxIterations(int maxIterations) { this.maxIterations = maxIterations; }
+    public int getMaxIterations() { return maxIterations; }
+
+    /** Sets the fraction of each violation corrected per sweep (1 by default; between 1 and 2 over-relaxes). */
+    public void setRelaxation(double relaxation) {
+        if(relaxation <= 0 || relaxation >= 2) throw new IllegalArgumentException("ContactMover - relaxation must be in (0, 2)");
+        this.relaxation = relaxation;
+    }
+
+    /** Sets the object told of the iterations and residual of each move(), or null. */
+    public void setMetrics(MoverMetrics metrics) { this.metrics = metrics; }
+
+    /** Sets the skin (um) of the pair list. */
+    public void setSkin(double skin) { contacts.setSkin(skin); }
+
+    /** Number of sweeps of the last move(). */
+    public int getIterations() { return iterations; }
+
+    /** Largest violation (um) in the last sweep of the last move(). */
+    public double getResidual() { return residual; }
+
+    /** Number of sweeps over all moves. */
+    public long getTotalIterations() { return totalIterations; }
+
+    /** Number of pair contact evaluations over all moves. */
+    public long getContactEvaluations() { return contactEvaluations; }
+}
@@ -1,23 +1,109 @@
 package bsim.capsule;
 
+import bsim.BSim;
+
 import java.util.List;
 
 /**
+ * Relaxes contacts by repeated explicit force steps.
+ *
+ * Created with a BSim, it finds contacts with a ContactGrid, which is kept from one timestep to the next and only
+ * rebuilt when the population has changed or bacteria have moved too far (warm start), and it stops when the
+ * largest displacement of an end point in an iteration, relative to the radius of its bacterium, is below
+ * DISPLACEMENT_TOLERANCE. Without a BSim it tests all pairs and stops when the summed force is below
+ * FORCE_TOLERANCE.
+ *
+ * The number of iterations and the residual of the last move() are available from getIterations() and
+ * getResidual(), and are passed to the MoverMetrics if one is set.
  */
 public class IteratorMover implements Mover{
 
     int MAX_ITER = 2500;
     double FORCE_TOLERANCE = 0.5;
+    double DISPLACEMENT_TOLERANCE = 1e-3;
 
     double forceAccumulator = 1;
 
     List<BSimCapsuleBacterium> allBacteria;
+    BSim sim;
+
+    /** Contacts, or null to test all pairs. */
+    ContactGrid contacts;
+
+    int iterations;
+    double residual;
+    MoverMetrics metrics;
 
     public IteratorMover(List<BSimCapsuleBacterium> _allBacteria) {
         this.allBacteria = _allBacteria;
     }
 
+    /** Creates a mover that finds contacts on a grid and stops on the relative displacement. */
+    public IteratorMover(List<BSimCapsuleBacterium> _allBacteria, BSim _sim) {
+        this.allBacteria = _allBacteria;
+        this.sim = _sim;
+        this.contacts = new ContactGrid(_allBacteria, _sim);
+    }
+
     public void move() {
+        if(contacts != null) {
+            moveGrid();
+        } else {
+            moveAllPairs();
+        }
+        if(metrics != null) metrics.moved(this, iterations, residual);
+    }
+
+    /**
+     * Iterates on the contacts of the grid until the largest displacement of an end point in an iteration,
+     * divided by the radius of its bacterium, is below DISPLACEMENT_TOLERANCE.
+     */
+    void moveGrid() {
+        for (BSimCapsuleBacterium b : allBacteria) {
+            b.position.set(0.5*(b.x1.x + b.x2.x), 0.5*(b.x1.y + b.x2.y), 0.5*(b.x1.z + b.x2.z));
+        }
+        // Reuse the pair list of the previous timestep if it is still valid
+        contacts.update();
+
+        residual = Double.POSITIVE_INFINITY;
+        for(iterations = 0; residual > DISPLACEMENT_TOLERANCE && iterations < MAX_ITER; iterations++) {
+            if(iterations > 0 && contacts.expired()) contacts.build();
+
+            BSimCapsuleBacterium[] binned = contacts.binned;
+            int n = contacts.size();
+            for (int slot = 0; slot < n; slot++) {
+                binned[slot].computeSelfForce();
+                binned[slot].computeWallForce();
+            }
+
+            // Interaction
+            int nPairs = contacts.nPairs;
+            int[] pairFirst = contacts.pairFirst, pairSecond = contacts.pairSecond;
+            for (int i = 0; i < nPairs; i++) {
+                binned[pairFirst[i]].computeNeighbourForce(binned[pairSecond[i]]);
+            }
+
+            double dt = sim.getDt();
+            residual = 0;
+            for (int slot = 0; slot < n; slot++) {
+                BSimCapsuleBacterium b = binned[slot];
+                double f = Math.max(b.x1force.lengthSquared(), b.x2force.lengthSquared());
+                double displacement = dt*Math.sqrt(f)/b.radius;
+                if(displacement > residual) residual = displacement;
+
+                b.updatePosition();
+                b.position.set(0.5*(b.x1.x + b.x2.x), 0.5*(b.x1.y + b.x2.y), 0.5*(b.x1.z + b.x2.z));
+            }
+        }
+
+        // Only need to apply flow one time (not iteratively)
+        for (BSimCapsuleBacterium b : allBacteria) {
+            b.computeFlowForce();
+        }
+    }
+
+    /** Iterates on all pairs until the summed force is below FORCE_TOLERANCE. */
+    void moveAllPairs() {
 
         forceAccumulator = 2*FORCE_TOLERANCE;
 
@@ -53,6 +139,8 @@ public class IteratorMover implements Mover{
             }
 //                    System.out.format("Iteration %d. Total force: %f%n", relax_iter, forceAccumulator);
         }
+        iterations = relax_iter;
+        residual = forceAccumulator;
 
         // Only need to apply flow one time (not iteratively)
         for (BSimCapsuleBacterium b : allBacteria) {
@@ -61,4 +149,22 @@ public class IteratorMover implements Mover{
 
 //        System.out.format("Collision Iterations: %d %n", relax_iter);
     }
-}
\ No newline at end of file
+
+    /** Sets the object told of the iterations and residual of each move(), or null. */
+    public void setMetrics(MoverMetrics metrics) { this.metrics = metrics; }
+
+    /** Sets the residual at which the grid mode stops (largest end point displacement per iteration / radius). */
+    public void setTolerance(double tolerance) { this.DISPLACEMENT_TOLERANCE = tolerance; }
+
+    /** Sets the limit on the number of iterations per move(). */
+    public void setMaxIterations(int maxIterations) { this.MAX_ITER = maxIterations; }
+
+    /** Number of iterations of the last move(). */
+    public int getIterations() { return iterations; }
+
+    /**
+     * Residual of the last move(): the relative displacement of the last iteration in grid mode, or the summed
+     * force otherwise.
+     */
+    public double getResidual() { return residual; }
+}
@@ -0,0 +1,10 @@
+package bsim.capsule;
+
+/**
+ * Receives the convergence of a Mover after each move(): the number of iterations it took and the residual
+ * it stopped at (in the units of the mover's stopping criterion), e.g. to log them or to choose a mover and
+ * tolerance for a simulation.
+ */
+public interface MoverMetrics {
+    public void moved(Mover mover, int iterations, double residual);
+}
@@ -1,14 +1,15 @@
 package bsim.capsule;
 
 import bsim.BSim;
+import bsim.BSimParallel;
 import org.opensourcephysics.numerics.ODE;
 import org.opensourcephysics.numerics.ode_solvers.InterpolatorEventSolver;
 import org.opensourcephysics.numerics.ode_solvers.SolverEngineDiscreteTime;
 import org.opensourcephysics.numerics.ode_solvers.rk.*;
 
 import javax.vecmath.Vector3d;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * TODO: Finally, we are integrating the positions for all bacteria, so if the integrator is slow that will be a limiting factor.
@@ -17,69 +18,133 @@ import java.util.List;
  */
 public class RelaxationMoverGrid implements Mover {
 
-    class Box {
-        List<BSimCapsuleBacterium> bacsInside;
-
-        public Box(){
-            this.bacsInside = new ArrayList<BSimCapsuleBacterium>();
-        }
-    }
-
     List<BSimCapsuleBacterium> allBacteria;
     BSim sim;
     Vector3d simDims;
-    Box[][] grid;
-    int nX;
-    int nY;
-    double gridCellWidth;
-    double originX;
-    double originY;
+
+    /** Grid and pair list of the contacts, built once per timestep and reused by every rate evaluation. */
+    ContactGrid contacts;
+
+    /*
+    Parallel contact pass (when a pool is set): the force of each pair is computed in parallel into
+    pairForce (CONTACT_SIZE values per pair, pairTouching[i] if the pair is in contact), then each bacterium
+    adds up the forces of its pairs (ContactGrid.slotPairs). The pairs of a bacterium are listed in the
+    order of the pair list, so the forces are added in the same order as by the serial pass, and are the same.
+     */
+    ForkJoinPool pool;
+    double[] pairForce = new double[0];
+    boolean[] pairTouching = new boolean[0];
+
+    /** Default factor applied to every contact force (see setContactScale()). */
+    public static final double DEFAULT_CONTACT_SCALE = 2.0;
+
+    /*
+    The grid mover used to visit every pair from both sides (a full 3x3 stencil), and so applied each contact
+    force twice. The pair list visits each pair once, so the forces are scaled by 2 by default to keep the
+    contact stiffness, and hence the dynamics of existing simulations, as they were.
+     */
+    double contactScale = DEFAULT_CONTACT_SCALE;
+    final double[] contactForce = new double[BSimCapsuleBacterium.CONTACT_SIZE];
 
     public RelaxationMoverGrid(List<BSimCapsuleBacterium> _allBacteria, BSim _sim){
         this.sim = _sim;
         this.allBacteria = _allBacteria;
         this.simDims = sim.getBound();
+        this.contacts = new ContactGrid(_allBacteria, _sim);
+    }
+
+    /**
+     * Computes the force between every pair of bacteria in the pair list, rebuilding the list first if a
+     * bacterium has moved too far since it was built.
+     */
+    void computeNeighbourForces() {
+        if(contacts.expired()) contacts.build();
+        final int nPairs = contacts.nPairs;
+        final int[] pairFirst = contacts.pairFirst, pairSecond = contacts.pairSecond;
+        final BSimCapsuleBacterium[] binned = contacts.binned;
+        final double scale = contactScale;
+        if(pool == null || pool.getParallelism() < 2) {
+            final double[] f = contactForce;
+            for(int i = 0; i < nPairs; i++){
+                BSimCapsuleBacterium b1 = binned[pairFirst[i]], b2 = binned[pairSecond[i]];
+                if(!b1.contactForce(b2, f, 0)) continue;
+                b1.x1force.x += scale*f[0]; b1.x1force.y += scale*f[1]; b1.x1force.z += scale*f[2];
+                b1.x2force.x += scale*f[3]; b1.x2force.y += scale*f[4]; b1.x2force.z += scale*f[5];
+                b2.x1force.x += scale*f[6]; b2.x1force.y += scale*f[7]; b2.x1force.z += scale*f[8];
+                b2.x2force.x += scale*f[9]; b2.x2force.y += scale*f[10]; b2.x2force.z += scale*f[11];
+            }
+            return;
+        }
+
+        if(pairTouching.length < nPairs) {
+            pairTouching = new boolean[pairFirst.length];
+            pairForce = new double[pairFirst.length*BSimCapsuleBacterium.CONTACT_SIZE];
+        }
+        final int[] slotPairStart = contacts.slotPairStart, slotPairs = contacts.slotPairs;
+        BSimParallel.forRange(pool, 0, nPairs, BSimParallel.grain(pool, nPairs), new BSimParallel.Range() {
+            public void run(int from, int to) {
+                for(int i = from; i < to; i++){
+                    pairTouching[i] = binned[pairFirst[i]].contactForce(binned[pairSecond[i]], pairForce,
+                            i*BSimCapsuleBacterium.CONTACT_SIZE);
+                }
+            }
+        });
+        int n = contacts.size();
+        BSimParallel.forRange(pool, 0, n, BSimParallel.grain(pool, n), new BSimParallel.Range() {
+            public void run(int from, int to) {
+                for(int slot = from; slot < to; slot++){
+                    BSimCapsuleBacterium b = binned[slot];
+                    for(int k = slotPairStart[slot]; k < slotPairStart[slot + 1]; k++){
+                        int pair = slotPairs[k] >> 1;
+                        if(!pairTouching[pair]) continue;
+                        // Forces on x1 and x2 of the first bacterium of the pair, then of the second
+                        int o = pair*BSimCapsuleBacterium.CONTACT_SIZE + 6*(slotPairs[k] & 1);
+                        b.x1force.x += scale*pairForce[o]; b.x1force.y += scale*pairForce[o + 1]; b.x1force.z += scale*pairForce[o + 2];
+                        b.x2force.x += scale*pairForce[o + 3]; b.x2force.y += scale*pairForce[o + 4]; b.x2force.z += scale*pairForce[o + 5];
+                    }
+                }
+            }
+        });
+    }
 
-        // Generate the grid
-        // all we need to do each timestep is update where cells are in the grid.
-        double simX = simDims.x;
-        double simY = simDims.y;
-
-        // An initial approximate (desired) grid cell width.
-        // Care; if this is too small, it is actually possible for cells to
-        //  a) not be able to collide with a cell that is outside of its grid box's neighbours, even though they're slightly overlapping
-        //  b) end up outside the 'bounds' of the domain enclosed by the grid, as a result of a cell division
-        this.gridCellWidth = 6.5;
-
-        // We want the cell size to be >= minimum width
-        this.nX = (int)Math.floor(simX/gridCellWidth);
-        this.nY = (int)Math.floor(simY/gridCellWidth);
-
-        // Check validity (e.g., if bad aspect ratio domain etc.)
-        assert(nX > 0);
-        assert(nY > 0);
-
-        // TODO: max(simX/nX, simY/nX)? in case of narrow domain for example?
-        this.gridCellWidth = simX/(float)nX;
-
-        // And, we want there to be grid cells on the outside of the domain in case there's an open edge.
-        this.nX += 2;
-        this.nY += 2;
-
-        simX += gridCellWidth;
-        simY += gridCellWidth;
-        this.originX = -gridCellWidth;
-        this.originY = -gridCellWidth;
-
-        // initialise the grid
-        this.grid = new Box[nX][nY];
-        for(int iX = 0; iX < nX; iX++){
-            for(int iY = 0; iY < nY; iY++){
-                grid[iX][iY] = new Box();
+    /** Self and wall forces of the bacteria in a range of slots. */
+    final BSimParallel.Range selfForces = new BSimParallel.Range() {
+        public void run(int from, int to) {
+            for(int slot = from; slot < to; slot++){
+                contacts.binned[slot].computeSelfForce();
+                contacts.binned[slot].computeWallForce();
             }
         }
+    };
+
+    /**
+     * Sets the pool the contact, self and wall forces are computed in (e.g. that of a BSimForkJoinTicker), or
+     * null to compute them in the calling thread. The forces are the same either way.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the factor applied to every contact force: 2 (the default) keeps the contact stiffness of the
+     * original grid mover, 1 gives the stiffness of RelaxationMover and IteratorMover.
+     */
+    public void setContactScale(double contactScale) {
+        this.contactScale = contactScale;
+    }
+
+    public double getContactScale() { return contactScale; }
+
+    /** Sets the skin (um): the margin added to the contact range when building the pair list. */
+    public void setSkin(double skin) {
+        contacts.setSkin(skin);
     }
 
+    public double getSkin() { return contacts.getSkin(); }
+
+    /** Number of times the pair list has been built, for monitoring the choice of skin. */
+    public long getPairListBuilds() { return contacts.getPairListBuilds(); }
+
     public int getSystemDimension(){
         return this.allBacteria.size();
     }
@@ -99,25 +164,7 @@ public class RelaxationMoverGrid implements Mover {
         double DT_RELAX = 0.01;
 
         for(int iter = 0; iter < OUTER_ITER; iter++) {
-            // For a first approximation.
-            // The bacteria should not move a 'significant' relative distance in the grid.
-            // Therefore we can generate the grid once per timestep, for now.
-            // Updating the grid could be optimised to make use of temporal coherence between timesteps.
-            for(int iX = 0; iX < nX; iX++){
-                for(int iY = 0; iY < nY; iY++){
-                    grid[iX][iY].bacsInside.clear();
-                }
-            }
-
-            for(BSimCapsuleBacterium b : allBacteria){
-                int bInX = (int)Math.floor(b.position.x/gridCellWidth) + 1;
-                int bInY = (int)Math.floor(b.position.y/gridCellWidth) + 1;
-//                if(bInX >= nX || bInY >= nY){
-//                    System.out.println();
-//                }
-                grid[bInX][bInY].bacsInside.add(b);
-            }
-
+            contacts.build();
 
             // Construct ODEs for solving all contact constraints
             ODE moverEquations = new MoverODESystem();
@@ -237,6 +284,8 @@ public class RelaxationMoverGrid implements Mover {
                 b.x2.x = y[bac_i++];
                 b.x2.y = y[bac_i++];
                 b.x2.z = y[bac_i++];
+                // Keep the midpoint up to date for the contact test and the pair list.
+                b.position.set(0.5*(b.x1.x + b.x2.x), 0.5*(b.x1.y + b.x2.y), 0.5*(b.x1.z + b.x2.z));
 
                 b.x1force.set(0.0, 0.0, 0.0);
                 b.x2force.set(0.0, 0.0, 0.0);
@@ -244,63 +293,17 @@ public class RelaxationMoverGrid implements Mover {
 
 //                forceAccumulator = 0;
 
-            for (BSimCapsuleBacterium b : allBacteria) {
-                b.computeSelfForce();
-                b.computeWallForce();
+            if(pool == null) {
+                for (BSimCapsuleBacterium b : allBacteria) {
+                    b.computeSelfForce();
+                    b.computeWallForce();
+                }
+            } else {
+                BSimParallel.forRange(pool, 0, contacts.size(), BSimParallel.grain(pool, contacts.size()), selfForces);
             }
 
             // Interaction on a grid...
-
-            List<BSimCapsuleBacterium> bacsThisGridCell = new ArrayList<BSimCapsuleBacterium>();
-            List<BSimCapsuleBacterium> bacsNeighbourGridCell = new ArrayList<BSimCapsuleBacterium>();
-            int prevX, prevY, nextX, nextY;
-
-            // Loop over every grid cell...
-            for(int iX = 0; iX < nX; iX++){
-//                System.out.println("iX: " + iX);
-
-                prevX = iX - 1;
-                nextX = iX + 2;
-                if(prevX < 0) prevX = 0;
-                if(nextX > nX) nextX = nX;
-
-//                System.out.println("pX, nX: " + prevX + ", " + nextX);
-
-                for(int iY = 0; iY < nY; iY++){
-
-                    prevY = iY - 1;
-                    nextY = iY + 2;
-                    if(prevY < 0) prevY = 0;
-                    if(nextY > nY) nextY = nY;
-
-
-                    bacsThisGridCell = grid[iX][iY].bacsInside;
-
-//                    System.out.println("This X,Y: " + iX + ", " + iY);
-//                    System.out.println("Prev X,Y: " + prevX + ", " + prevY);
-//                    System.out.println("Next X,Y: " + nextX + ", " + nextY);
-
-                    // Loop over neighbouring grid elements
-                    for(int neighbourX = prevX; neighbourX < nextX; neighbourX++){
-                        for(int neighbourY = prevY; neighbourY < nextY; neighbourY++) {
-//                            System.out.println("neighbour X,Y: " + neighbourX + ", " + neighbourY);
-                            bacsNeighbourGridCell = grid[neighbourX][neighbourY].bacsInside;
-
-                            // Iterate over all possible pairs of bacteria
-                            for (BSimCapsuleBacterium b1 : bacsThisGridCell) {
-                                for (BSimCapsuleBacterium b2 : bacsNeighbourGridCell) {
-                                    // In the case that we are testing against bacs in the same box...
-                                    // We need to check that we are not doing a self-intersection, which is impossible
-                                    if (b1 != b2) {
-                                        b1.computeNeighbourForce(b2);
-                                    }
-                                }
-                            }
-
-                        }
-                    }
-                }
-            }
+            computeNeighbourForces();
 
 //                for (BSimCapsuleBacterium b : allBacteria) {
 //
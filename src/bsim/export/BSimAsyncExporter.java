@@ -0,0 +1,166 @@
+package bsim.export;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs another exporter in the background.
+ * At each export the wrapped exporter takes a snapshot of what it needs at the
+ * tick boundary (BSimExporter.snapshot(), e.g. the rendered frame), and the
+ * writing of the snapshot (image encoding, movie compression, file output) is
+ * handed to a thread of its own while the simulation carries on. Snapshots are
+ * written in order, and after() waits until all of them and the wrapped
+ * exporter's after() have finished:
+ * <pre>
+ * sim.addExporter(new BSimAsyncExporter(new BSimMovExporter(sim, drawer, "run.mov")));
+ * </pre>
+ * At most capacity snapshots wait to be written. When the queue is full the
+ * simulation either waits for the writer (Backpressure.BLOCK, the default) or
+ * the snapshot is dropped (Backpressure.DROP, for previews where missing frames
+ * do not matter). Exporters that do not support snapshots are run inline; a
+ * BSimLogger only supports them after setAsync(true).
+ */
+public class BSimAsyncExporter extends BSimExporter {
+
+	/** Default number of snapshots that may wait to be written. */
+	public static int DEFAULT_CAPACITY = 8;
+
+	/** What happens when a snapshot is taken while the queue is full. */
+	public enum Backpressure { BLOCK, DROP }
+
+	/** Exporter that is run in the background. */
+	protected BSimExporter exporter;
+	/** Behaviour when the queue is full. */
+	protected Backpressure backpressure = Backpressure.BLOCK;
+	/** Free places in the queue. */
+	protected Semaphore free;
+	/** Thread that writes the snapshots. */
+	protected ExecutorService writer;
+	/** Number of snapshots dropped because the queue was full. */
+	protected volatile long dropped;
+	/** First error raised while writing. */
+	protected volatile Throwable error;
+
+	/**
+	 * Runs exporter in the background with the default queue capacity.
+	 */
+	public BSimAsyncExporter(BSimExporter exporter) {
+		this(exporter, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Runs exporter in the background, with at most capacity snapshots waiting.
+	 */
+	public BSimAsyncExporter(BSimExporter exporter, int capacity) {
+		super(exporter.sim);
+		assert (capacity > 0) : "Async exporter - the queue must hold at least one snapshot";
+		this.exporter = exporter;
+		this.free = new Semaphore(capacity);
+	}
+
+	/** Set the behaviour when the queue is full. */
+	public void setBackpressure(Backpressure b) { backpressure = b; }
+	/** Return the number of snapshots dropped because the queue was full. */
+	public long getDropped() { return dropped; }
+	/** Return the exporter run in the background. */
+	public BSimExporter getExporter() { return exporter; }
+
+	/** The export interval is that of the wrapped exporter. */
+	@Override
+	public void setDt(double d) { exporter.setDt(d); }
+	@Override
+	public double getDt() { return exporter.getDt(); }
+
+	/**
+	 * Starts the writer thread and calls the wrapped exporter's before().
+	 */
+	@Override
+	public void before() {
+		dropped = 0;
+		error = null;
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BSim exporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		exporter.before();
+	}
+
+	/**
+	 * Takes a snapshot and queues it for writing (or exports inline if the wrapped
+	 * exporter does not support snapshots).
+	 */
+	@Override
+	public void during() {
+		check();
+		if (backpressure == Backpressure.DROP && !free.tryAcquire()) {
+			dropped++;
+			return;
+		}
+		if (backpressure == Backpressure.BLOCK) free.acquireUninterruptibly();
+		final Runnable write;
+		try {
+			write = exporter.snapshot();
+		} catch (RuntimeException e) {
+			free.release();
+			throw e;
+		}
+		if (write == null) {
+			free.release();
+			exporter.during();
+			return;
+		}
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					if (error == null) write.run();
+				} catch (Throwable t) {
+					if (error == null) error = t;
+				} finally {
+					free.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for the queued snapshots to be written, then calls the wrapped
+	 * exporter's after() on the writer thread and stops it.
+	 */
+	@Override
+	public void after() {
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					exporter.after();
+				} catch (Throwable t) {
+					if (error == null) error = t;
+				}
+			}
+		});
+		writer.shutdown();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (writer.awaitTermination(1, TimeUnit.SECONDS)) break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		check();
+	}
+
+	/** Rethrows an error raised while writing. */
+	protected void check() {
+		Throwable t = error;
+		if (t == null) return;
+		error = null;
+		throw new IllegalStateException("Async exporter - writing failed", t);
+	}
+}
@@ -29,6 +29,14 @@ public abstract class BSimExporter {
 	/** Called after a simulation finishes (overwrite). */
 	public abstract void after();
 	
+	/**
+	 * Captures, at the tick boundary, the data that during() would export and returns
+	 * the work that writes it, which may run on another thread while the simulation
+	 * continues (see BSimAsyncExporter). Returns null if the exporter does not
+	 * support this, in which case during() is called instead (default).
+	 */
+	public Runnable snapshot() { return null; }
+	
 	/**
 	 * Set the time interval that the exporter is called. 
 	 * The exporter is called every d seconds in simulation time. 
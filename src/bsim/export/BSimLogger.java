@@ -18,6 +18,10 @@ public abstract class BSimLogger extends BSimExporter {
 	protected BufferedWriter bufferedWriter;
 	/** Filename of output. */
 	protected String filename;
+	/** Text written by during() while a snapshot is taken. */
+	protected StringBuilder captured;
+	/** Whether snapshot() may capture the text written by during(). */
+	protected boolean async = false;
 	
 	/**
 	 * Constructor for a file logger. Will output data to a specified file.
@@ -47,6 +51,10 @@ public abstract class BSimLogger extends BSimExporter {
 	 * @param text Text to write to file.
 	 */
 	public void write(String text) {		
+		if (captured != null) {
+			captured.append(text).append(System.getProperty("line.separator"));
+			return;
+		}
 		try {			
 			bufferedWriter.write(text);
 			bufferedWriter.newLine();
@@ -55,6 +63,39 @@ public abstract class BSimLogger extends BSimExporter {
 		}		
 	}	
 	
+	/**
+	 * Lets snapshot() capture the text written by during(), so that a BSimAsyncExporter
+	 * can write it in the background (off by default). Only enable this if during()
+	 * writes all its output through write().
+	 */
+	public void setAsync(boolean async) { this.async = async; }
+	public boolean isAsync() { return async; }
+	
+	/**
+	 * Runs during(), keeping the text it writes; the returned work writes the text to
+	 * the file. Returns null, so that during() is run inline, unless setAsync(true).
+	 */
+	@Override
+	public Runnable snapshot() {
+		if (!async) return null;
+		final StringBuilder text = new StringBuilder();
+		captured = text;
+		try {
+			during();
+		} finally {
+			captured = null;
+		}
+		return new Runnable() {
+			public void run() {
+				try {
+					bufferedWriter.write(text.toString());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+	
 	/**
 	 * Called after a simulation ends. Can be extended by a user if necessary.
 	 */
@@ -63,15 +63,27 @@ public class BSimMovExporter extends BSimExporter {
 	 */
 	@Override
 	public void during() {			
-		BufferedImage img = new BufferedImage(drawer.getWidth(), drawer.getHeight(), BufferedImage.TYPE_INT_RGB);
+		snapshot().run();
+	}
+	
+	/**
+	 * Draws the current frame; the returned work compresses it into the movie.
+	 */
+	@Override
+	public Runnable snapshot() {
+		final BufferedImage img = new BufferedImage(drawer.getWidth(), drawer.getHeight(), BufferedImage.TYPE_INT_RGB);
 		Graphics2D g = img.createGraphics();
 		drawer.draw(g);
 		g.dispose();
-		try {
-			outputStream.writeFrame(img, 1);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		return new Runnable() {
+			public void run() {
+				try {
+					outputStream.writeFrame(img, 1);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
 	}
 	
 	/**
@@ -45,17 +45,28 @@ public class BSimPngExporter extends BSimExporter {
 	 */
 	@Override
 	public void during() {				
-		BufferedImage img = new BufferedImage(drawer.getWidth(), drawer.getHeight(), BufferedImage.TYPE_INT_RGB);
+		snapshot().run();
+	}
+	
+	/**
+	 * Draws the current image; the returned work encodes it and writes the file.
+	 */
+	@Override
+	public Runnable snapshot() {
+		final BufferedImage img = new BufferedImage(drawer.getWidth(), drawer.getHeight(), BufferedImage.TYPE_INT_RGB);
 		Graphics2D g = img.createGraphics();				
 		drawer.draw(g);
 		g.dispose();
-		try {
-			File file = new File(directory + "/" + sim.getFormattedTime() + ".png");
-			ImageIO.write(img, "png", file);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
+		final File file = new File(directory + "/" + sim.getFormattedTime() + ".png");
+		return new Runnable() {
+			public void run() {
+				try {
+					ImageIO.write(img, "png", file);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
 	}
 	
 	/**
@@ -0,0 +1,234 @@
+package bsim.field;
+
+import java.util.concurrent.ForkJoinPool;
+
+import bsim.BSimParallel;
+
+/**
+ * Alternating direction implicit (ADI) diffusion solver for a uniform box grid.
+ * Uses the Douglas form of Crank-Nicolson, which is unconditionally stable in
+ * three dimensions (Peaceman-Rachford is not):
+ * <pre>
+ * (I - A_x/2) u1 = (I + A) u(t) - A_x u(t)/2
+ * (I - A_y/2) u2 = u1 - A_y u(t)/2
+ * (I - A_z/2) u(t+dt) = u2 - A_z u(t)/2
+ * </pre>
+ * where A = A_x + A_y + A_z is the explicit step of BSimDiffusionKernel, so both
+ * schemes converge to the same solution as dt goes to zero. Each implicit stage
+ * is a set of tridiagonal systems along one axis, solved with the Thomas
+ * algorithm (solid boundaries) or its cyclic Sherman-Morrison variant (wrapping
+ * boundaries). The matrix is the same for every line of an axis, so it is
+ * factorised once per step and the sweeps run over whole panels of lines.
+ * <p>
+ * Stability does not imply accuracy: with steps far beyond the explicit limit the
+ * shortest (box to box) modes decay only slowly, so a sharp point source stays
+ * peaked and may undershoot slightly below zero around it. Smooth fields, or steps
+ * that resolve the diffusion time of the features of interest, are unaffected.
+ */
+public class BSimAdiSolver {
+
+	/** Number of neighbouring lines swept together along a strided axis. */
+	protected static final int PANEL = 256;
+
+	/** Number of boxes in the (x,y,z) directions. */
+	protected int[] boxes;
+	/** Strides of the (x,y,z) axes in the flat array. */
+	protected int[] stride;
+	/** Total number of boxes. */
+	protected int size;
+	/** Kernel that performs the explicit part of the step. */
+	protected BSimDiffusionKernel kernel;
+
+	/* Per-axis coefficients of the implicit part: h = c/2 = k, leaks halved */
+	protected double[] h = new double[3];
+	protected boolean[] wrap = new boolean[3];
+	protected double[] leakLo = new double[3];
+	protected double[] leakHi = new double[3];
+	/* Per-axis Thomas factorisation: modified super-diagonal and inverse pivots */
+	protected double[][] cp = new double[3][];
+	protected double[][] den = new double[3][];
+	/* Per-axis cyclic correction: solution z of the bordered system and its scale */
+	protected double[][] z = new double[3][];
+	protected double[] zScale = new double[3];
+	protected double[] zRatio = new double[3];
+
+	/**
+	 * Creates a solver for a grid with the given number of boxes.
+	 * @param boxes Number of boxes in the (x,y,z) directions.
+	 * @param kernel Explicit kernel for the same grid (its pool is also used here).
+	 */
+	public BSimAdiSolver(int[] boxes, BSimDiffusionKernel kernel) {
+		this.boxes = boxes;
+		this.kernel = kernel;
+		this.stride = new int[] {boxes[1]*boxes[2], boxes[2], 1};
+		this.size = boxes[0]*boxes[1]*boxes[2];
+		for (int d = 0; d < 3; d++) {
+			cp[d] = new double[boxes[d]];
+			den[d] = new double[boxes[d]];
+			z[d] = new double[boxes[d]];
+		}
+	}
+
+	/**
+	 * Sets the coefficients for the next steps, as for BSimDiffusionKernel.configure().
+	 * @param k D*dt/dx^2 in each direction (x,y,z).
+	 * @param solid Whether the boundary in each direction is solid (true) or wrapping (false).
+	 * @param leak Fraction of a boundary box lost per step through each face
+	 * 		(x_top, x_bottom, y_top, y_bottom, z_top, z_bottom), 0 if not leaky.
+	 */
+	public void configure(double[] k, boolean[] solid, double[] leak) {
+		kernel.configure(k, solid, leak);
+		for (int d = 0; d < 3; d++) {
+			int n = boxes[d];
+			h[d] = (n > 1 ? k[d] : 0);
+			wrap[d] = !solid[d];
+			leakHi[d] = (solid[d] ? 0.5*leak[2*d] : 0);
+			leakLo[d] = (solid[d] ? 0.5*leak[2*d + 1] : 0);
+			if (wrap[d] && n >= 3) factoriseCyclic(d);
+			else if (!wrap[d]) factorise(d);
+		}
+	}
+
+	/**
+	 * Thomas factorisation of (I - A_d/2) for a solid axis. Off-diagonals are -h,
+	 * diagonal 1 + h per neighbour plus the leak through a missing face.
+	 */
+	protected void factorise(int d) {
+		int n = boxes[d];
+		double off = -h[d];
+		double prev = 0;
+		for (int x = 0; x < n; x++) {
+			double b = 1 + (x > 0 ? h[d] : leakLo[d]) + (x < n - 1 ? h[d] : leakHi[d]);
+			double piv = b - (x > 0 ? off*prev : 0);
+			den[d][x] = 1/piv;
+			cp[d][x] = (x < n - 1 ? off/piv : 0);
+			prev = cp[d][x];
+		}
+	}
+
+	/**
+	 * Sherman-Morrison factorisation of the cyclic system (I - A_d/2) for a wrapping
+	 * axis with at least three boxes.
+	 */
+	protected void factoriseCyclic(int d) {
+		int n = boxes[d];
+		double off = -h[d];
+		double b = 1 + 2*h[d];
+		double gamma = -b;
+		/* Tridiagonal part with corrected first and last pivots */
+		double prev = 0;
+		for (int x = 0; x < n; x++) {
+			double bb = (x == 0 ? b - gamma : (x == n - 1 ? b - off*off/gamma : b));
+			double piv = bb - (x > 0 ? off*prev : 0);
+			den[d][x] = 1/piv;
+			cp[d][x] = (x < n - 1 ? off/piv : 0);
+			prev = cp[d][x];
+		}
+		/* Solve for the correction vector u = (gamma, 0, ..., 0, off) */
+		double[] zd = z[d];
+		for (int x = 0; x < n; x++) {
+			double r = (x == 0 ? gamma : (x == n - 1 ? off : 0));
+			zd[x] = (r - (x > 0 ? off*zd[x - 1] : 0))*den[d][x];
+		}
+		for (int x = n - 2; x >= 0; x--) zd[x] -= cp[d][x]*zd[x + 1];
+		zRatio[d] = off/gamma;
+		zScale[d] = 1/(1 + zd[0] + zRatio[d]*zd[n - 1]);
+	}
+
+	/**
+	 * Advances the field by one step from src into dst, then scales dst by scale.
+	 * src is not modified.
+	 */
+	public void step(double[] src, double[] dst, double scale) {
+		kernel.step(src, dst, 1);
+		for (int d = 0; d < 3; d++) sweep(src, dst, d);
+		if (scale != 1) for (int i = 0; i < size; i++) dst[i] *= scale;
+	}
+
+	/**
+	 * Implicit stage along axis d: dst = (I - A_d/2)^-1 (dst - A_d src/2).
+	 */
+	protected void sweep(final double[] src, final double[] dst, final int d) {
+		final int n = boxes[d];
+		if (n == 1 && (wrap[d] || leakLo[d] + leakHi[d] == 0)) return;
+		if (h[d] == 0 && leakLo[d] + leakHi[d] == 0) return;
+
+		/* Lines along d are laid out as [outer][n][s]: sweep panels of neighbouring lines together */
+		final int s = stride[d];
+		final int outer = size/(n*s);
+		final int width = Math.min(s, PANEL);
+		final int chunks = (s + width - 1)/width;
+		ForkJoinPool p = (size >= kernel.parallelThreshold ? kernel.getPool() : null);
+		BSimParallel.forRange(p, 0, outer*chunks, 1, new BSimParallel.Range() {
+			public void run(int from, int to) {
+				for (int t = from; t < to; t++) {
+					int base = (t / chunks)*n*s;
+					int i0 = (t % chunks)*width;
+					int i1 = Math.min(s, i0 + width);
+					panel(src, dst, d, base + i0, base + i1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Solves the lines starting at [first, last) of axis d in place in dst.
+	 */
+	protected void panel(double[] src, double[] dst, int d, int first, int last) {
+		final int n = boxes[d];
+		final int s = stride[d];
+		final double hd = h[d];
+		final double[] cpd = cp[d], dend = den[d];
+
+		/* Right hand side: dst - A_d src/2 */
+		for (int x = 0; x < n; x++) {
+			int row = x*s;
+			for (int i = first + row; i < last + row; i++) {
+				double v = src[i];
+				double a = 0;
+				if (x < n - 1) a += hd*(src[i + s] - v);
+				else if (wrap[d]) a += hd*(src[i - (n - 1)*s] - v);
+				else a -= leakHi[d]*v;
+				if (x > 0) a += hd*(src[i - s] - v);
+				else if (wrap[d]) a += hd*(src[i + (n - 1)*s] - v);
+				else a -= leakLo[d]*v;
+				dst[i] -= a;
+			}
+		}
+
+		if (wrap[d] && n == 2) {
+			/* Both neighbours are the other box: [[1+2h, -2h], [-2h, 1+2h]] */
+			double pd = 1 + 2*hd, q = -2*hd, det = pd*pd - q*q;
+			for (int i = first; i < last; i++) {
+				double r0 = dst[i], r1 = dst[i + s];
+				dst[i] = (pd*r0 - q*r1)/det;
+				dst[i + s] = (pd*r1 - q*r0)/det;
+			}
+			return;
+		}
+
+		/* Thomas forward elimination and back substitution (off-diagonal -h) */
+		for (int i = first; i < last; i++) dst[i] *= dend[0];
+		for (int x = 1; x < n; x++) {
+			int row = x*s;
+			double inv = dend[x];
+			for (int i = first + row; i < last + row; i++) dst[i] = (dst[i] + hd*dst[i - s])*inv;
+		}
+		for (int x = n - 2; x >= 0; x--) {
+			int row = x*s;
+			double c = cpd[x];
+			for (int i = first + row; i < last + row; i++) dst[i] -= c*dst[i + s];
+		}
+
+		if (wrap[d]) {
+			/* Sherman-Morrison correction for the periodic corners */
+			final double[] zd = z[d];
+			final double ratio = zRatio[d], scale = zScale[d];
+			int lastRow = (n - 1)*s;
+			for (int i = first; i < last; i++) {
+				double f = (dst[i] + ratio*dst[i + lastRow])*scale;
+				for (int x = 0; x < n; x++) dst[i + x*s] -= f*zd[x];
+			}
+		}
+	}
+}
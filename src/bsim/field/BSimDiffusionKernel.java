@@ -0,0 +1,288 @@
+package bsim.field;
+
+import java.util.concurrent.ForkJoinPool;
+
+import bsim.BSimParallel;
+
+/**
+ * Explicit (forward Euler) diffusion kernel for a uniform box grid.
+ * The field is held in one flat array indexed (i*ny + j)*nz + k. Boxes that have
+ * a neighbour in every direction (the interior) are updated with a branch-free
+ * stencil, tiled so that neighbouring planes stay in cache; the boundary slabs
+ * are handled separately with the wrapping, solid and leaky rules. Tiles and
+ * slabs are split across a ForkJoinPool for large fields.
+ *
+ * Each pair of neighbouring boxes exchanges -2*k*(N(neighbour)-N(box)) molecules
+ * per step, with k = D*dt/dx^2, which is the exchange the original
+ * BSimChemicalField.diffuse() loop made (once from each side of the face).
+ *
+ * Fields held in other storage (BSimFieldStorage) are updated one row at a
+ * time: the row and its neighbouring rows are copied into double buffers, the
+ * stencil is applied there and the result is written back.
+ */
+public class BSimDiffusionKernel {
+
+	/** Fields smaller than this (boxes) are updated in the calling thread. */
+	public static int DEFAULT_PARALLEL_THRESHOLD = 1 << 15;
+	/** Approximate number of doubles held by one interior tile plane. */
+	protected static final int TILE_DOUBLES = 4096;
+	/** Number of planes along the outermost axis handled by one tile. */
+	protected static final int TILE_PLANES = 16;
+
+	/** Number of boxes in the (x,y,z) directions. */
+	protected int[] boxes;
+	/** Total number of boxes. */
+	protected int size;
+
+	/*
+	 * Canonical layout: axes of length one are moved to the front so that the last
+	 * axis is always the contiguous one. n = length, s = stride in the flat array,
+	 * c = exchange coefficient (2k), wrap = periodic, leakLo/leakHi = fraction lost
+	 * through the lower/upper face of a solid leaky boundary per step.
+	 */
+	protected int[] n = new int[3];
+	protected int[] s = new int[3];
+	protected int[] axis = new int[3];
+	protected double[] c = new double[3];
+	protected boolean[] wrap = new boolean[3];
+	protected double[] leakLo = new double[3];
+	protected double[] leakHi = new double[3];
+	/** Neighbour offsets used by the interior stencil (0 for axes of length one). */
+	protected int[] o = new int[3];
+	/** Interior range [lo, hi) along each canonical axis. */
+	protected int[] lo = new int[3];
+	protected int[] hi = new int[3];
+	/** Fraction lost per step by every box through leaky faces of axes of length one. */
+	protected double selfLeak;
+	/** Interior rows per tile along the middle axis. */
+	protected int tileRows;
+
+	protected ForkJoinPool pool = ForkJoinPool.commonPool();
+	protected int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+	/**
+	 * Creates a kernel for a grid with the given number of boxes.
+	 * @param boxes Number of boxes in the (x,y,z) directions.
+	 */
+	public BSimDiffusionKernel(int[] boxes) {
+		this.boxes = boxes;
+		this.size = boxes[0]*boxes[1]*boxes[2];
+
+		/* Axes of length one first, then the others in their original order */
+		int a = 0;
+		for (int d = 0; d < 3; d++) if (boxes[d] == 1) axis[a++] = d;
+		for (int d = 0; d < 3; d++) if (boxes[d] != 1) axis[a++] = d;
+		int[] stride = {boxes[1]*boxes[2], boxes[2], 1};
+		for (int d = 0; d < 3; d++) {
+			n[d] = boxes[axis[d]];
+			s[d] = stride[axis[d]];
+			o[d] = (n[d] > 1 ? s[d] : 0);
+			lo[d] = (n[d] > 1 ? 1 : 0);
+			hi[d] = (n[d] > 1 ? n[d] - 1 : 1);
+		}
+		tileRows = Math.max(1, TILE_DOUBLES/n[2]);
+	}
+
+	/** Set the pool used for large fields (null to always run in the calling thread). */
+	public void setPool(ForkJoinPool pool) { this.pool = pool; }
+	/** Set the number of boxes above which the update is split across the pool. */
+	public void setParallelThreshold(int boxes) { parallelThreshold = boxes; }
+	/** Return the pool used for large fields. */
+	public ForkJoinPool getPool() { return pool; }
+
+	/**
+	 * Sets the coefficients for the next steps.
+	 * @param k D*dt/dx^2 in each direction (x,y,z).
+	 * @param solid Whether the boundary in each direction is solid (true) or wrapping (false).
+	 * @param leak Fraction of a boundary box lost per step through each face
+	 * 		(x_top, x_bottom, y_top, y_bottom, z_top, z_bottom), 0 if not leaky.
+	 */
+	public void configure(double[] k, boolean[] solid, double[] leak) {
+		selfLeak = 0;
+		for (int d = 0; d < 3; d++) {
+			int ax = axis[d];
+			c[d] = (n[d] > 1 ? 2*k[ax] : 0);
+			wrap[d] = !solid[ax];
+			leakHi[d] = (solid[ax] ? leak[2*ax] : 0);
+			leakLo[d] = (solid[ax] ? leak[2*ax + 1] : 0);
+			if (n[d] == 1) selfLeak += leakHi[d] + leakLo[d];
+		}
+	}
+
+	/**
+	 * Performs one explicit diffusion step from src into dst, then scales dst by scale
+	 * (e.g. 1 - decayRate*dt to fold decay into the same pass). src is not modified.
+	 */
+	public void step(final double[] src, final double[] dst, final double scale) {
+		final ForkJoinPool p = (size >= parallelThreshold ? pool : null);
+
+		/* Interior tiles: blocks of rows along the middle axis by blocks of planes along the first */
+		final int rows = hi[1] - lo[1];
+		final int planes = hi[0] - lo[0];
+		if (rows > 0 && planes > 0 && hi[2] > lo[2]) {
+			final int rowBlocks = (rows + tileRows - 1)/tileRows;
+			final int planeBlocks = (planes + TILE_PLANES - 1)/TILE_PLANES;
+			BSimParallel.forRange(p, 0, rowBlocks*planeBlocks, 1, new BSimParallel.Range() {
+				public void run(int from, int to) {
+					for (int t = from; t < to; t++) {
+						int r0 = lo[1] + (t % rowBlocks)*tileRows;
+						int r1 = Math.min(hi[1], r0 + tileRows);
+						int p0 = lo[0] + (t / rowBlocks)*TILE_PLANES;
+						int p1 = Math.min(hi[0], p0 + TILE_PLANES);
+						interiorTile(src, dst, scale, p0, p1, r0, r1);
+					}
+				}
+			});
+		}
+
+		/* Boundary slabs, one plane of the first axis at a time */
+		BSimParallel.forRange(p, 0, n[0], BSimParallel.grain(p, n[0]), new BSimParallel.Range() {
+			public void run(int from, int to) {
+				for (int x0 = from; x0 < to; x0++) boundaryPlane(src, dst, scale, x0);
+			}
+		});
+	}
+
+	/**
+	 * Performs one explicit diffusion step from src into dst (as step(double[], double[], double)).
+	 * Double storage is updated in place in its arrays; other storage row by row.
+	 */
+	public void step(final BSimFieldStorage src, final BSimFieldStorage dst, final double scale) {
+		if (src instanceof BSimDoubleStorage && dst instanceof BSimDoubleStorage) {
+			step(((BSimDoubleStorage)src).array(), ((BSimDoubleStorage)dst).array(), scale);
+			return;
+		}
+		final ForkJoinPool p = (size >= parallelThreshold ? pool : null);
+		BSimParallel.forRange(p, 0, n[0], BSimParallel.grain(p, n[0]), new BSimParallel.Range() {
+			public void run(int from, int to) {
+				/* Centre row, the rows above and below along the first two axes, and the result */
+				double[][] rows = new double[6][n[2]];
+				double[] coef = new double[4];
+				for (int x0 = from; x0 < to; x0++)
+					for (int x1 = 0; x1 < n[1]; x1++) row(src, dst, scale, x0, x1, rows, coef);
+			}
+		});
+	}
+
+	/**
+	 * Updates the row (x0, x1, *) of storage through the row buffers (coef holds the
+	 * coefficients of the four neighbouring rows; a missing row is the centre row with
+	 * coefficient 0, so the inner loop has no branches).
+	 */
+	protected void row(BSimFieldStorage src, BSimFieldStorage dst, double scale, int x0, int x1, double[][] rows, double[] coef) {
+		final int len = n[2];
+		final int base = x0*s[0] + x1*s[1];
+		final double[] v = rows[0], out = rows[5];
+		src.read(base, v, 0, len);
+
+		/* Neighbouring rows along the first two axes, or a leak if the face is missing */
+		double lost = selfLeak;
+		for (int d = 0; d < 2; d++) {
+			int x = (d == 0 ? x0 : x1);
+			for (int side = 0; side < 2; side++) {
+				int r = 1 + 2*d + side;
+				int nb = -1;
+				if (n[d] > 1) {
+					if (side == 0) nb = (x < n[d] - 1 ? base + s[d] : (wrap[d] ? base - (n[d] - 1)*s[d] : -1));
+					else nb = (x > 0 ? base - s[d] : (wrap[d] ? base + (n[d] - 1)*s[d] : -1));
+					if (nb < 0) lost += (side == 0 ? leakHi[d] : leakLo[d]);
+				}
+				if (nb >= 0) {
+					src.read(nb, rows[r], 0, len);
+					coef[r - 1] = c[d];
+				} else {
+					System.arraycopy(v, 0, rows[r], 0, len);
+					coef[r - 1] = 0;
+				}
+			}
+		}
+
+		final double[] r1 = rows[1], r2 = rows[2], r3 = rows[3], r4 = rows[4];
+		final double a1 = coef[0], a2 = coef[1], a3 = coef[2], a4 = coef[3], c2 = c[2];
+		final double keep = 1 - lost;
+		for (int k = 1; k < len - 1; k++) {
+			double x = v[k];
+			out[k] = scale*(keep*x + a1*(r1[k] - x) + a2*(r2[k] - x) + a3*(r3[k] - x) + a4*(r4[k] - x)
+					+ c2*(v[k + 1] + v[k - 1] - 2*x));
+		}
+		/* Ends of the row, with the boundary rules of the contiguous axis */
+		for (int k = 0; k < len; k += Math.max(1, len - 1)) {
+			double x = v[k];
+			double flux = a1*(r1[k] - x) + a2*(r2[k] - x) + a3*(r3[k] - x) + a4*(r4[k] - x);
+			double kLost = lost;
+			if (len > 1) {
+				if (k < len - 1) flux += c2*(v[k + 1] - x);
+				else if (wrap[2]) flux += c2*(v[0] - x);
+				else kLost += leakHi[2];
+				if (k > 0) flux += c2*(v[k - 1] - x);
+				else if (wrap[2]) flux += c2*(v[len - 1] - x);
+				else kLost += leakLo[2];
+			}
+			out[k] = scale*(x + flux - kLost*x);
+		}
+		dst.write(base, out, 0, len);
+	}
+
+	/**
+	 * Updates the interior rows [r0, r1) of planes [p0, p1). Every box in the tile has
+	 * a neighbour on each side, so no boundary tests are needed.
+	 */
+	protected void interiorTile(double[] src, double[] dst, double scale, int p0, int p1, int r0, int r1) {
+		final double c0 = c[0], c1 = c[1], c2 = c[2];
+		final int o0 = o[0], o1 = o[1], o2 = o[2];
+		final double keep = 1 - selfLeak;
+		final int k0 = lo[2], k1 = hi[2];
+		for (int x0 = p0; x0 < p1; x0++) {
+			for (int x1 = r0; x1 < r1; x1++) {
+				int row = x0*s[0] + x1*s[1];
+				for (int idx = row + k0; idx < row + k1; idx++) {
+					double v = src[idx];
+					dst[idx] = scale*(keep*v
+							+ c0*(src[idx + o0] + src[idx - o0] - 2*v)
+							+ c1*(src[idx + o1] + src[idx - o1] - 2*v)
+							+ c2*(src[idx + o2] + src[idx - o2] - 2*v));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates all boxes of plane x0 (first canonical axis) that are not interior.
+	 */
+	protected void boundaryPlane(double[] src, double[] dst, double scale, int x0) {
+		boolean inner0 = (x0 >= lo[0] && x0 < hi[0]);
+		for (int x1 = 0; x1 < n[1]; x1++) {
+			if (inner0 && x1 >= lo[1] && x1 < hi[1]) {
+				/* Interior row: only the two end boxes of the contiguous axis */
+				if (n[2] > 1) {
+					boundaryBox(src, dst, scale, x0, x1, 0);
+					boundaryBox(src, dst, scale, x0, x1, n[2] - 1);
+				}
+			} else {
+				for (int x2 = 0; x2 < n[2]; x2++) boundaryBox(src, dst, scale, x0, x1, x2);
+			}
+		}
+	}
+
+	/**
+	 * Updates a single box, applying the boundary rules along every axis.
+	 */
+	protected void boundaryBox(double[] src, double[] dst, double scale, int x0, int x1, int x2) {
+		int idx = x0*s[0] + x1*s[1] + x2*s[2];
+		double v = src[idx];
+		double flux = 0, lost = 0;
+		int x;
+		for (int d = 0; d < 3; d++) {
+			x = (d == 0 ? x0 : (d == 1 ? x1 : x2));
+			/* Box above */
+			if (x < n[d] - 1) flux += c[d]*(src[idx + s[d]] - v);
+			else if (wrap[d]) flux += c[d]*(src[idx - (n[d] - 1)*s[d]] - v);
+			else lost += leakHi[d];
+			/* Box below */
+			if (x > 0) flux += c[d]*(src[idx - s[d]] - v);
+			else if (wrap[d]) flux += c[d]*(src[idx + (n[d] - 1)*s[d]] - v);
+			else lost += leakLo[d];
+		}
+		dst[idx] = scale*(v + flux - lost*v);
+	}
+}
@@ -0,0 +1,88 @@
+package bsim.field;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Field storage in direct (off-heap) ByteBuffers, as doubles or floats.
+ * A single buffer is limited to 2GB, so the boxes are split into chunks of
+ * 2^26 values, each in its own buffer. Only absolute get/put are used, so
+ * distinct boxes can be written from several threads.
+ */
+public class BSimDirectStorage extends BSimFieldStorage {
+
+	/** log2 of the number of values per buffer. */
+	protected static final int CHUNK_BITS = 26;
+	protected static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	/** Whether values are stored as floats. */
+	protected boolean single;
+	protected DoubleBuffer[] doubles;
+	protected FloatBuffer[] floats;
+
+	/**
+	 * @param size Number of boxes.
+	 * @param single Store floats (true) or doubles (false).
+	 */
+	public BSimDirectStorage(int size, boolean single) {
+		super(size);
+		this.single = single;
+		int chunks = (size + CHUNK_MASK) >>> CHUNK_BITS;
+		if (single) floats = new FloatBuffer[chunks];
+		else doubles = new DoubleBuffer[chunks];
+		for (int c = 0; c < chunks; c++) {
+			int n = Math.min(CHUNK_MASK + 1, size - (c << CHUNK_BITS));
+			ByteBuffer b = ByteBuffer.allocateDirect(n*(single ? 4 : 8)).order(ByteOrder.nativeOrder());
+			if (single) floats[c] = b.asFloatBuffer();
+			else doubles[c] = b.asDoubleBuffer();
+		}
+	}
+
+	@Override
+	public Type getType() { return (single ? Type.DIRECT_FLOAT : Type.DIRECT_DOUBLE); }
+
+	@Override
+	public double get(int i) {
+		return (single ? floats[i >>> CHUNK_BITS].get(i & CHUNK_MASK) : doubles[i >>> CHUNK_BITS].get(i & CHUNK_MASK));
+	}
+
+	@Override
+	public void set(int i, double v) {
+		if (single) floats[i >>> CHUNK_BITS].put(i & CHUNK_MASK, (float)v);
+		else doubles[i >>> CHUNK_BITS].put(i & CHUNK_MASK, v);
+	}
+
+	@Override
+	public void read(int from, double[] dst, int off, int len) {
+		while (len > 0) {
+			int c = from >>> CHUNK_BITS, p = from & CHUNK_MASK;
+			int n = Math.min(len, CHUNK_MASK + 1 - p);
+			if (single) {
+				FloatBuffer b = floats[c];
+				for (int i = 0; i < n; i++) dst[off + i] = b.get(p + i);
+			} else {
+				DoubleBuffer b = doubles[c];
+				for (int i = 0; i < n; i++) dst[off + i] = b.get(p + i);
+			}
+			from += n; off += n; len -= n;
+		}
+	}
+
+	@Override
+	public void write(int from, double[] src, int off, int len) {
+		while (len > 0) {
+			int c = from >>> CHUNK_BITS, p = from & CHUNK_MASK;
+			int n = Math.min(len, CHUNK_MASK + 1 - p);
+			if (single) {
+				FloatBuffer b = floats[c];
+				for (int i = 0; i < n; i++) b.put(p + i, (float)src[off + i]);
+			} else {
+				DoubleBuffer b = doubles[c];
+				for (int i = 0; i < n; i++) b.put(p + i, src[off + i]);
+			}
+			from += n; off += n; len -= n;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package bsim.field;
+
+import java.util.Arrays;
+
+/**
+ * Field storage in an on-heap double[]. The array is exposed so that the
+ * diffusion kernels and solvers can work on it directly.
+ */
+public class BSimDoubleStorage extends BSimFieldStorage {
+
+	/** Value of each box. */
+	protected double[] data;
+
+	/** Creates zeroed storage for size boxes. */
+	public BSimDoubleStorage(int size) {
+		super(size);
+		data = new double[size];
+	}
+
+	/** Return the backing array. */
+	public double[] array() { return data; }
+
+	@Override
+	public Type getType() { return Type.DOUBLE; }
+	@Override
+	public double get(int i) { return data[i]; }
+	@Override
+	public void set(int i, double v) { data[i] = v; }
+	@Override
+	public void fill(double v) { Arrays.fill(data, v); }
+	@Override
+	public void read(int from, double[] dst, int off, int len) { System.arraycopy(data, from, dst, off, len); }
+	@Override
+	public void write(int from, double[] src, int off, int len) { System.arraycopy(src, off, data, from, len); }
+}
@@ -0,0 +1,142 @@
+package bsim.field;
+
+/**
+ * Complex fast Fourier transform of a fixed length.
+ * Powers of two use an iterative radix-2 transform; other lengths use
+ * Bluestein's algorithm (a chirp convolution done with a power of two
+ * transform), so any length is O(n log n). Both directions are unnormalised.
+ * <p>
+ * A plan holds only read-only tables and can be shared between threads; the
+ * work arrays passed to transform() must not be.
+ */
+public class BSimFFT {
+
+	/** Length of the transform. */
+	protected int n;
+	/** Length of the radix-2 transform used internally (n, or the Bluestein length). */
+	protected int m;
+	/** Twiddle factors cos/sin(2*pi*k/m), k < m/2. */
+	protected double[] cos, sin;
+	/** Bit reversal permutation of length m. */
+	protected int[] rev;
+	/* Bluestein chirp exp(-i*pi*k^2/n) and the transform of its conjugate filter */
+	protected double[] chirpRe, chirpIm;
+	protected double[] filterRe, filterIm;
+
+	/**
+	 * Creates a plan for transforms of length n.
+	 */
+	public BSimFFT(int n) {
+		this.n = n;
+		this.m = (Integer.bitCount(n) == 1 ? n : Integer.highestOneBit(2*n - 1) << 1);
+		cos = new double[m/2];
+		sin = new double[m/2];
+		for (int k = 0; k < m/2; k++) {
+			cos[k] = Math.cos(2*Math.PI*k/m);
+			sin[k] = Math.sin(2*Math.PI*k/m);
+		}
+		rev = new int[m];
+		int bits = Integer.numberOfTrailingZeros(m);
+		for (int k = 0; k < m; k++) rev[k] = (bits == 0 ? 0 : Integer.reverse(k) >>> (32 - bits));
+
+		if (m != n) {
+			chirpRe = new double[n];
+			chirpIm = new double[n];
+			for (int k = 0; k < n; k++) {
+				/* k^2 mod 2n keeps the angle small and exact */
+				long k2 = ((long)k*k) % (2L*n);
+				double a = Math.PI*k2/n;
+				chirpRe[k] = Math.cos(a);
+				chirpIm[k] = -Math.sin(a);
+			}
+			filterRe = new double[m];
+			filterIm = new double[m];
+			for (int k = 0; k < n; k++) {
+				filterRe[k] = chirpRe[k];
+				filterIm[k] = -chirpIm[k];
+				if (k > 0) {
+					filterRe[m - k] = chirpRe[k];
+					filterIm[m - k] = -chirpIm[k];
+				}
+			}
+			radix2(filterRe, filterIm);
+		}
+	}
+
+	/** Returns the length of the transform. */
+	public int length() { return n; }
+
+	/** Returns the length of each work array needed by transform(). */
+	public int workLength() { return (m == n ? 0 : m); }
+
+	/**
+	 * Transforms re + i*im (length n) in place.
+	 * @param inverse Use exp(+2*pi*i*jk/n) instead of exp(-2*pi*i*jk/n).
+	 * @param wr Work array of at least workLength() doubles.
+	 * @param wi Work array of at least workLength() doubles.
+	 */
+	public void transform(double[] re, double[] im, boolean inverse, double[] wr, double[] wi) {
+		/* The inverse is the conjugate of the forward transform of the conjugate */
+		if (inverse) for (int k = 0; k < n; k++) im[k] = -im[k];
+		if (m == n) radix2(re, im);
+		else bluestein(re, im, wr, wi);
+		if (inverse) for (int k = 0; k < n; k++) im[k] = -im[k];
+	}
+
+	/**
+	 * Forward transform of length n by convolution with the chirp.
+	 */
+	protected void bluestein(double[] re, double[] im, double[] wr, double[] wi) {
+		for (int k = 0; k < n; k++) {
+			wr[k] = re[k]*chirpRe[k] - im[k]*chirpIm[k];
+			wi[k] = re[k]*chirpIm[k] + im[k]*chirpRe[k];
+		}
+		for (int k = n; k < m; k++) {
+			wr[k] = 0;
+			wi[k] = 0;
+		}
+		radix2(wr, wi);
+		/* Multiply by the filter and take the conjugate, so that a second forward transform inverts */
+		for (int k = 0; k < m; k++) {
+			double r = wr[k]*filterRe[k] - wi[k]*filterIm[k];
+			double i = wr[k]*filterIm[k] + wi[k]*filterRe[k];
+			wr[k] = r;
+			wi[k] = -i;
+		}
+		radix2(wr, wi);
+		double scale = 1.0/m;
+		for (int k = 0; k < n; k++) {
+			double r = wr[k]*scale, i = -wi[k]*scale;
+			re[k] = r*chirpRe[k] - i*chirpIm[k];
+			im[k] = r*chirpIm[k] + i*chirpRe[k];
+		}
+	}
+
+	/**
+	 * In-place forward radix-2 transform of length m.
+	 */
+	protected void radix2(double[] re, double[] im) {
+		for (int k = 0; k < m; k++) {
+			int r = rev[k];
+			if (r > k) {
+				double t = re[k]; re[k] = re[r]; re[r] = t;
+				t = im[k]; im[k] = im[r]; im[r] = t;
+			}
+		}
+		for (int size = 2; size <= m; size <<= 1) {
+			int half = size >> 1, step = m/size;
+			for (int i = 0; i < m; i += size) {
+				for (int j = 0; j < half; j++) {
+					double c = cos[j*step], s = -sin[j*step];
+					int a = i + j, b = a + half;
+					double tr = re[b]*c - im[b]*s;
+					double ti = re[b]*s + im[b]*c;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+}
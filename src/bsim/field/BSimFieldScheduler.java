@@ -0,0 +1,168 @@
+package bsim.field;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bsim.BSim;
+import bsim.BSimChemicalField;
+
+/**
+ * Multi-rate stepping of chemical fields.
+ * Each field is advanced on its own internal step instead of once per
+ * simulation tick. When the simulation dt is larger than the field's stable
+ * step (BSimChemicalField.getStableDt()) the tick is split into equal
+ * sub-steps. When the simulation dt is much smaller than the field needs,
+ * the field can be given a minimum step, and ticks are then accumulated and
+ * applied together.
+ * <p>
+ * Use in a ticker in place of the field updates:
+ * <pre>
+ * BSimFieldScheduler fields = new BSimFieldScheduler(sim);
+ * fields.add(fastField);
+ * fields.add(slowField, 0.5); // at most one update per 0.5 s of simulation time
+ * ...
+ * public void tick() {
+ *     ...
+ *     fields.update();
+ * }
+ * </pre>
+ */
+public class BSimFieldScheduler {
+
+	/** Relative slack when comparing accumulated time against a step. */
+	protected static final double EPS = 1e-9;
+
+	/** Simulation the fields belong to. */
+	protected BSim sim;
+	/** Scheduled fields. */
+	protected List<Entry> entries = new ArrayList<Entry>();
+	/** Fraction of the stable step used for sub-steps. */
+	protected double safety = 1;
+	/** Number of calls to update(). */
+	protected long ticks;
+
+	/** Scheduling state of one field. */
+	protected static class Entry {
+		BSimChemicalField field;
+		/** Time to accumulate before the field is advanced. */
+		double minDt;
+		/** Time accumulated since the field was last advanced. */
+		double pending;
+		/** Sub-steps taken at the last call to update() (0 if it was batched). */
+		int lastSteps;
+		/** Length of the last sub-step. */
+		double lastDt;
+		/** Sub-steps taken since the field was added. */
+		long totalSteps;
+	}
+
+	/**
+	 * Creates a scheduler for the fields of a simulation.
+	 * @param sim Associated simulation, whose dt is used by update().
+	 */
+	public BSimFieldScheduler(BSim sim) {
+		this.sim = sim;
+	}
+
+	/** Adds a field that is advanced at every call to update(). */
+	public void add(BSimChemicalField field) {
+		add(field, 0);
+	}
+
+	/**
+	 * Adds a field that is advanced once at least minDt of simulation time has
+	 * accumulated. Chemical added to the field in the meantime stays in its box
+	 * until then. field.getStableDt() is a natural choice for fields that change
+	 * slowly compared to the simulation dt.
+	 */
+	public void add(BSimChemicalField field, double minDt) {
+		if (field instanceof BSimMultiSpeciesField.SpeciesView)
+			throw new IllegalArgumentException("Field scheduler - species views cannot be scheduled on their own; "
+					+ "update their BSimMultiSpeciesField instead");
+		Entry e = new Entry();
+		e.field = field;
+		e.minDt = minDt;
+		entries.add(e);
+	}
+
+	/** Set the fraction (0,1] of the stable step used for sub-steps (default 1). */
+	public void setSafety(double s) {
+		assert (s > 0 && s <= 1) : "Field scheduler - safety factor out of range (0,1]";
+		safety = s;
+	}
+
+	/** Advances all fields by one simulation tick. */
+	public void update() {
+		update(sim.getDt());
+	}
+
+	/** Advances all fields by dt, sub-stepping or batching each as needed. */
+	public void update(double dt) {
+		ticks++;
+		for (Entry e : entries) {
+			e.pending += dt;
+			if (e.pending >= e.minDt*(1 - EPS)) advance(e);
+			else e.lastSteps = 0;
+		}
+	}
+
+	/** Applies any batched time to every field, e.g. before the fields are exported. */
+	public void flush() {
+		for (Entry e : entries) if (e.pending > 0) advance(e);
+	}
+
+	/**
+	 * Advances a field over its accumulated time in the fewest equal sub-steps that
+	 * stay within the stable step.
+	 */
+	protected void advance(Entry e) {
+		double max = safety*e.field.getStableDt();
+		int n = (e.pending <= max ? 1 : (int)Math.ceil(e.pending/max - EPS));
+		double h = e.pending/n;
+		for (int i = 0; i < n; i++) e.field.update(h);
+		e.pending = 0;
+		e.lastSteps = n;
+		e.lastDt = h;
+		e.totalSteps += n;
+	}
+
+	/** Returns the sub-steps taken by field at the last update() (0 if batched). */
+	public int getSubSteps(BSimChemicalField field) {
+		return entry(field).lastSteps;
+	}
+
+	/** Returns the sub-steps taken by field since it was added. */
+	public long getTotalSubSteps(BSimChemicalField field) {
+		return entry(field).totalSteps;
+	}
+
+	/** Returns the time accumulated by field that has not yet been applied. */
+	public double getPending(BSimChemicalField field) {
+		return entry(field).pending;
+	}
+
+	/** Returns the number of calls to update(). */
+	public long getTicks() { return ticks; }
+
+	/**
+	 * Returns one line per field with the sub-steps of the last tick, their length,
+	 * and the mean number of sub-steps per tick so far.
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < entries.size(); i++) {
+			Entry e = entries.get(i);
+			sb.append("field ").append(i)
+				.append(": ").append(e.lastSteps).append(" sub-steps of ").append((float)e.lastDt)
+				.append(" s, ").append((float)(ticks > 0 ? e.totalSteps/(double)ticks : 0)).append(" per tick on average")
+				.append(System.getProperty("line.separator"));
+		}
+		return sb.toString();
+	}
+
+	/** Returns the scheduling state of field. */
+	protected Entry entry(BSimChemicalField field) {
+		for (Entry e : entries) if (e.field == field) return e;
+		throw new IllegalArgumentException("Field is not scheduled");
+	}
+}
@@ -0,0 +1,183 @@
+package bsim.field;
+
+import java.util.Arrays;
+
+import bsim.BSimChemicalField;
+
+/**
+ * Deferred chemical sources, so that agents can add chemical to fields from
+ * several threads at once (e.g. the workers of a BSimThreadedTicker).
+ * Each worker binds itself to a lane; while bound, calls to
+ * BSimChemicalField.addQuantity() on the fields registered here are appended to
+ * that lane's log instead of changing the field. A lane is only written by its own
+ * thread, so no locks are needed, and the logs are reused so that no allocation
+ * takes place once they have grown to the size of a tick.
+ * <p>
+ * apply() replays the lanes in order, once per tick before the fields are
+ * updated. If each lane handles a contiguous block of the population in order,
+ * the additions reach the field in the same order as with one lane, so the result
+ * does not depend on the number of threads. Within a tick, agents see the fields
+ * as they were at the start of the tick. Threads that are not bound (and any call
+ * when no lane is bound) add to the field directly.
+ * <pre>
+ * BSimFieldSources sources = new BSimFieldSources(threads);
+ * sources.add(field);
+ * ...
+ * public void threadedTick(int threadID, int threads) {
+ *     sources.bind(threadID);
+ *     ... // bacteria action(), calling field.addQuantity()
+ * }
+ * ...
+ * public void sequentialAfter() {
+ *     sources.apply();
+ *     field.update();
+ * }
+ * </pre>
+ */
+public class BSimFieldSources {
+
+	/** Initial number of entries held by a lane for each field. */
+	protected static final int INITIAL_CAPACITY = 256;
+
+	/** Fields whose sources are deferred. */
+	protected BSimChemicalField[] fields = new BSimChemicalField[0];
+	/** Logs of each lane. */
+	protected Lane[] lanes;
+	/** Lane bound to the calling thread, if any. */
+	protected ThreadLocal<Lane> bound = new ThreadLocal<Lane>();
+
+	/** Chemical added by one lane since the last apply(), per field. */
+	protected static class Lane {
+		int[][] index = new int[0][];
+		double[][] amount = new double[0][];
+		int[] count = new int[0];
+
+		/** Appends an entry for field f. */
+		void add(int f, int idx, double q) {
+			int n = count[f];
+			if (n == index[f].length) {
+				index[f] = Arrays.copyOf(index[f], 2*n);
+				amount[f] = Arrays.copyOf(amount[f], 2*n);
+			}
+			index[f][n] = idx;
+			amount[f][n] = q;
+			count[f] = n + 1;
+		}
+
+		/** Adds an empty log for a new field. */
+		void grow() {
+			int f = count.length;
+			index = Arrays.copyOf(index, f + 1);
+			amount = Arrays.copyOf(amount, f + 1);
+			count = Arrays.copyOf(count, f + 1);
+			index[f] = new int[INITIAL_CAPACITY];
+			amount[f] = new double[INITIAL_CAPACITY];
+		}
+	}
+
+	/**
+	 * Creates deferred sources with a number of lanes, normally one per worker thread.
+	 */
+	public BSimFieldSources(int lanes) {
+		assert (lanes > 0) : "Field sources - at least one lane is needed";
+		this.lanes = new Lane[lanes];
+		for (int i = 0; i < lanes; i++) this.lanes[i] = new Lane();
+	}
+
+	/**
+	 * Defers the sources of field. Fields should be added before the lanes are used.
+	 */
+	public void add(BSimChemicalField field) {
+		if (slot(field) >= 0) return;
+		fields = Arrays.copyOf(fields, fields.length + 1);
+		fields[fields.length - 1] = field;
+		for (Lane l : lanes) l.grow();
+		field.setSources(this);
+	}
+
+	/** Stops deferring the sources of field, applying any that are pending. */
+	public void remove(BSimChemicalField field) {
+		int f = slot(field);
+		if (f < 0) return;
+		apply();
+		field.setSources(null);
+		BSimChemicalField[] kept = new BSimChemicalField[fields.length - 1];
+		for (int i = 0, j = 0; i < fields.length; i++) if (i != f) kept[j++] = fields[i];
+		for (Lane l : lanes) {
+			l.index = remove(l.index, f);
+			l.amount = remove(l.amount, f);
+			int[] count = new int[kept.length];
+			System.arraycopy(l.count, 0, count, 0, f);
+			System.arraycopy(l.count, f + 1, count, f, kept.length - f);
+			l.count = count;
+		}
+		fields = kept;
+	}
+
+	/** Binds the calling thread to a lane until unbind() or the next bind(). */
+	public void bind(int lane) {
+		bound.set(lanes[lane]);
+	}
+
+	/** Unbinds the calling thread, whose sources then go directly to the fields. */
+	public void unbind() {
+		bound.remove();
+	}
+
+	/** Returns the number of lanes. */
+	public int getLanes() { return lanes.length; }
+
+	/**
+	 * Records chemical added to box idx of field by the calling thread. Returns false
+	 * (and records nothing) if the thread is not bound to a lane, in which case the
+	 * field applies the quantity itself.
+	 */
+	public boolean record(BSimChemicalField field, int idx, double q) {
+		Lane l = bound.get();
+		if (l == null) return false;
+		int f = slot(field);
+		if (f < 0) return false;
+		l.add(f, idx, q);
+		return true;
+	}
+
+	/**
+	 * Adds the recorded chemical to the fields, lane by lane in order, and clears
+	 * the lanes. Must not run while workers are recording.
+	 */
+	public void apply() {
+		for (int f = 0; f < fields.length; f++) {
+			for (Lane l : lanes) {
+				fields[f].addQuantities(l.index[f], l.amount[f], l.count[f]);
+				l.count[f] = 0;
+			}
+		}
+	}
+
+	/** Returns the number of entries waiting to be applied. */
+	public int getPending() {
+		int n = 0;
+		for (Lane l : lanes) for (int c : l.count) n += c;
+		return n;
+	}
+
+	/** Returns the position of field in fields, or -1. */
+	protected int slot(BSimChemicalField field) {
+		for (int f = 0; f < fields.length; f++) if (fields[f] == field) return f;
+		return -1;
+	}
+
+	private static int[][] remove(int[][] a, int f) {
+		int[][] b = new int[a.length - 1][];
+		System.arraycopy(a, 0, b, 0, f);
+		System.arraycopy(a, f + 1, b, f, b.length - f);
+		return b;
+	}
+
+	private static double[][] remove(double[][] a, int f) {
+		double[][] b = new double[a.length - 1][];
+		System.arraycopy(a, 0, b, 0, f);
+		System.arraycopy(a, f + 1, b, f, b.length - f);
+		return b;
+	}
+}
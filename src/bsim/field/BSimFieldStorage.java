@@ -0,0 +1,83 @@
+package bsim.field;
+
+/**
+ * Storage of the boxes of a chemical field, one value per box in a flat array
+ * indexed (i*ny + j)*nz + k. The backends trade precision and location:
+ * double[] (default, fastest), float[] (half the memory and bandwidth), and
+ * direct ByteBuffers outside the Java heap in either precision, for fields
+ * larger than the heap (the JVM may need -XX:MaxDirectMemorySize).
+ * Distinct indices can be written concurrently.
+ */
+public abstract class BSimFieldStorage {
+
+	/**
+	 * Available backends.
+	 */
+	public static enum Type {
+		/** On-heap double[]. */ DOUBLE,
+		/** On-heap float[]. */ FLOAT,
+		/** Off-heap doubles. */ DIRECT_DOUBLE,
+		/** Off-heap floats. */ DIRECT_FLOAT,
+		/**
+		 * One species of a BSimMultiSpeciesField: the values live in that field.
+		 * New storage of this type is a plain double[].
+		 */
+		SPECIES;
+
+		/** Creates zeroed storage of this type for size boxes. */
+		public BSimFieldStorage create(int size) {
+			switch(this) {
+			case FLOAT: return new BSimFloatStorage(size);
+			case DIRECT_DOUBLE: return new BSimDirectStorage(size, false);
+			case DIRECT_FLOAT: return new BSimDirectStorage(size, true);
+			default: return new BSimDoubleStorage(size);
+			}
+		}
+	}
+
+	/** Number of boxes. */
+	protected int size;
+
+	protected BSimFieldStorage(int size) {
+		this.size = size;
+	}
+
+	/** Return the number of boxes. */
+	public int size() { return size; }
+	/** Return the backend of this storage. */
+	public abstract Type getType();
+	/** Return a new zeroed storage of the same type and size. */
+	public BSimFieldStorage create() { return getType().create(size); }
+
+	/** Returns the value of box i. */
+	public abstract double get(int i);
+	/** Sets the value of box i. */
+	public abstract void set(int i, double v);
+
+	/** Sets every box to v. */
+	public void fill(double v) {
+		for (int i = 0; i < size; i++) set(i, v);
+	}
+
+	/** Multiplies every box by f. */
+	public void scale(double f) {
+		for (int i = 0; i < size; i++) set(i, get(i)*f);
+	}
+
+	/** Returns the sum over all boxes. */
+	public double sum() {
+		double t = 0;
+		for (int i = 0; i < size; i++) t += get(i);
+		return t;
+	}
+
+	/** Copies boxes [from, from+len) into dst starting at off. */
+	public void read(int from, double[] dst, int off, int len) {
+		for (int i = 0; i < len; i++) dst[off + i] = get(from + i);
+	}
+
+	/** Copies len values of src starting at off into boxes [from, from+len). */
+	public void write(int from, double[] src, int off, int len) {
+		for (int i = 0; i < len; i++) set(from + i, src[off + i]);
+	}
+}
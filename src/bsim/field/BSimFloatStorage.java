@@ -0,0 +1,36 @@
+package bsim.field;
+
+import java.util.Arrays;
+
+/**
+ * Field storage in an on-heap float[]: half the memory of double storage,
+ * with about seven significant digits per box.
+ */
+public class BSimFloatStorage extends BSimFieldStorage {
+
+	/** Value of each box. */
+	protected float[] data;
+
+	/** Creates zeroed storage for size boxes. */
+	public BSimFloatStorage(int size) {
+		super(size);
+		data = new float[size];
+	}
+
+	@Override
+	public Type getType() { return Type.FLOAT; }
+	@Override
+	public double get(int i) { return data[i]; }
+	@Override
+	public void set(int i, double v) { data[i] = (float)v; }
+	@Override
+	public void fill(double v) { Arrays.fill(data, (float)v); }
+	@Override
+	public void read(int from, double[] dst, int off, int len) {
+		for (int i = 0; i < len; i++) dst[off + i] = data[from + i];
+	}
+	@Override
+	public void write(int from, double[] src, int off, int len) {
+		for (int i = 0; i < len; i++) data[from + i] = (float)src[off + i];
+	}
+}
@@ -0,0 +1,381 @@
+package bsim.field;
+
+import java.util.concurrent.ForkJoinPool;
+
+import javax.vecmath.Vector3d;
+
+import bsim.BSim;
+import bsim.BSimChemicalField;
+import bsim.BSimParallel;
+
+/**
+ * Chemical field holding several species on the same boxes.
+ * Concentrations are stored interleaved per box (index box*species + s), so one
+ * sweep over the field diffuses and decays every species with the explicit scheme
+ * of BSimDiffusionKernel, and applies an optional local reaction term while each
+ * row is still in cache. Each species has its own diffusivity and decay rate.
+ * <p>
+ * species(s) returns a BSimChemicalField view of one species, so bacteria,
+ * drawers and exporters written for single fields work unchanged. Updating a
+ * view advances this whole field, at most once per simulation timestep, so a
+ * ticker that updates every view still steps the field once.
+ */
+public class BSimMultiSpeciesField {
+
+	/**
+	 * Local reaction term, e.g. H + I -> 0 or degradation of AHL by lactonase.
+	 */
+	public interface Reaction {
+		/**
+		 * Adds dt times the reaction rates, evaluated at the concentrations c, to out for
+		 * boxes [from, to). Both arrays hold the species interleaved per box, index
+		 * box*species + s, in molecules/(micron)^3. Called from several threads at once
+		 * for different ranges of boxes.
+		 */
+		void react(double[] c, double[] out, int from, int to, double dt);
+	}
+
+	/** Simulation the field is associated with. */
+	protected BSim sim;
+	/** Number of species. */
+	protected int species;
+	/** Number of boxes in each dimension. */
+	protected int[] boxes;
+	/** Box size. */
+	protected double[] box = new double[3];
+	/** Volume of each box (microns^3). */
+	protected double boxVolume;
+	/** Total number of boxes. */
+	protected int size;
+	/** Diffusivity of each species (microns^2/s). */
+	protected double[] diffusivity;
+	/** Decay rate of each species (1/s). */
+	protected double[] decayRate;
+	/** Concentrations (molecules/micron^3), interleaved per box. */
+	protected double[] conc;
+	/** Work array the next state is written into, then swapped with conc. */
+	protected double[] next;
+	/** Local reaction term (null for none). */
+	protected Reaction reaction;
+	/** Single species views, created when first needed. */
+	protected BSimChemicalField[] views;
+	/** Timestep of the simulation at the last update (NaN before the first). */
+	protected double updatedAt = Double.NaN;
+
+	/* Canonical axes as in BSimDiffusionKernel: axes of length one first, the last is contiguous */
+	protected int[] n = new int[3];
+	protected int[] s = new int[3];
+	protected int[] axis = new int[3];
+	/* Per-step coefficients: exchange per canonical axis and species, leaks, decay per species */
+	protected double[][] c;
+	protected boolean[] wrap = new boolean[3];
+	protected double[] leakLo = new double[3];
+	protected double[] leakHi = new double[3];
+	protected double selfLeak;
+	protected double[] scale;
+
+	protected ForkJoinPool pool = ForkJoinPool.commonPool();
+	protected int parallelThreshold = BSimDiffusionKernel.DEFAULT_PARALLEL_THRESHOLD;
+
+	/**
+	 * Creates a field of diffusivity.length species.
+	 * @param sim Associated simulation.
+	 * @param boxes Number of boxes in the (x,y,z) directions.
+	 * @param diffusivity Diffusivity of each species (microns)^2/s.
+	 * @param decayRate Decay rate of each species (1/s).
+	 */
+	public BSimMultiSpeciesField(BSim sim, int[] boxes, double[] diffusivity, double[] decayRate) {
+		assert (diffusivity.length == decayRate.length) :
+			"Multi-species field - one diffusivity and one decay rate are needed per species";
+		this.sim = sim;
+		this.boxes = boxes;
+		this.species = diffusivity.length;
+		this.diffusivity = diffusivity.clone();
+		this.decayRate = decayRate.clone();
+		Vector3d bound = sim.getBound();
+		box[0] = bound.x/boxes[0];
+		box[1] = bound.y/boxes[1];
+		box[2] = bound.z/boxes[2];
+		boxVolume = box[0]*box[1]*box[2];
+		size = boxes[0]*boxes[1]*boxes[2];
+		conc = new double[size*species];
+		next = new double[size*species];
+		c = new double[3][species];
+		scale = new double[species];
+
+		int a = 0;
+		for (int d = 0; d < 3; d++) if (boxes[d] == 1) axis[a++] = d;
+		for (int d = 0; d < 3; d++) if (boxes[d] != 1) axis[a++] = d;
+		int[] stride = {boxes[1]*boxes[2], boxes[2], 1};
+		for (int d = 0; d < 3; d++) {
+			n[d] = boxes[axis[d]];
+			s[d] = stride[axis[d]];
+		}
+	}
+
+	/** Return the number of species. */
+	public int getSpecies() { return species; }
+	/** Return the number of boxes in (x,y,z) directions. */
+	public int[] getBoxes() { return boxes; }
+	/** Return the size of each box (x,y,z) in microns. */
+	public double[] getBox() { return box; }
+	/** Set the local reaction term applied in the update sweep (null for none). */
+	public void setReaction(Reaction r) { reaction = r; }
+	/** Set the pool used for large fields (null to always run in the calling thread). */
+	public void setPool(ForkJoinPool pool) { this.pool = pool; }
+
+	/** Returns the position of the box (x,y,z) in the box numbering (times species for the array). */
+	public int index(int x, int y, int z) {
+		return (x*boxes[1] + y)*boxes[2] + z;
+	}
+
+	/** Returns the number of the box containing the position v. */
+	public int boxIndex(Vector3d v) {
+		int x = (int)(v.x/box[0]);
+		int y = (int)(v.y/box[1]);
+		int z = (int)(v.z/box[2]);
+		x = (x >= boxes[0] ? boxes[0]-1 : (x < 0 ? 0 : x));
+		y = (y >= boxes[1] ? boxes[1]-1 : (y < 0 ? 0 : y));
+		z = (z >= boxes[2] ? boxes[2]-1 : (z < 0 ? 0 : z));
+		return (x*boxes[1] + y)*boxes[2] + z;
+	}
+
+	/** Adds a quantity (molecules) of species sp to the box containing position v. */
+	public void addQuantity(int sp, Vector3d v, double q) {
+		addQuantity(sp, boxIndex(v), q);
+	}
+	/** Adds a quantity (molecules) of species sp to the box (x,y,z). */
+	public void addQuantity(int sp, int x, int y, int z, double q) {
+		addQuantity(sp, index(x,y,z), q);
+	}
+	/** Adds a quantity (molecules) of species sp to box b, keeping it non-negative. */
+	protected void addQuantity(int sp, int b, double q) {
+		int i = b*species + sp;
+		conc[i] += q/boxVolume;
+		if (conc[i] < 0) conc[i] = 0;
+	}
+
+	/** Sets the concentration of species sp in the box (x,y,z). */
+	public void setConc(int sp, int x, int y, int z, double v) {
+		conc[index(x,y,z)*species + sp] = v;
+	}
+	/** Sets the concentration of species sp in every box. */
+	public void setConc(int sp, double v) {
+		for (int b = 0; b < size; b++) conc[b*species + sp] = v;
+	}
+	/** Gets the concentration of species sp at the position v in molecules/(micron)^3. */
+	public double getConc(int sp, Vector3d v) {
+		return conc[boxIndex(v)*species + sp];
+	}
+	/** Gets the concentration of species sp in the box (x,y,z) in molecules/(micron)^3. */
+	public double getConc(int sp, int x, int y, int z) {
+		return conc[index(x,y,z)*species + sp];
+	}
+	/** Returns the total quantity of species sp in the field. */
+	public double totalQuantity(int sp) {
+		double t = 0;
+		for (int b = 0; b < size; b++) t += conc[b*species + sp];
+		return t*boxVolume;
+	}
+
+	/**
+	 * Returns the largest dt for which the explicit update of every species is stable and
+	 * non-negative (as BSimChemicalField.getStableDt()). The reaction term is not included.
+	 */
+	public double getStableDt() {
+		double dt = Double.POSITIVE_INFINITY;
+		for (int sp = 0; sp < species; sp++) dt = Math.min(dt, species(sp).getStableDt());
+		return dt;
+	}
+
+	/** Diffuses, decays and reacts every species over one simulation step. */
+	public void update() {
+		update(sim.getDt());
+	}
+
+	/** Diffuses, decays and reacts every species over a step of length dt, in one sweep. */
+	public void update(double dt) {
+		update(dt, true);
+	}
+
+	/**
+	 * Diffuses and reacts every species over a step of length dt, decaying them if withDecay is set.
+	 * Synchronized, so that species views updated from concurrent phases advance the field once.
+	 */
+	protected synchronized void update(final double dt, boolean withDecay) {
+		updatedAt = sim.getTimestep();
+		configure(dt);
+		if (!withDecay) for (int sp = 0; sp < species; sp++) scale[sp] = 1;
+		final ForkJoinPool p = (size >= parallelThreshold ? pool : null);
+		/* Tiles of rows by planes, as in BSimDiffusionKernel, so neighbouring rows are reused from cache */
+		final int tileRows = Math.max(1, BSimDiffusionKernel.TILE_DOUBLES/(n[2]*species));
+		final int rowBlocks = (n[1] + tileRows - 1)/tileRows;
+		final int planeBlocks = (n[0] + BSimDiffusionKernel.TILE_PLANES - 1)/BSimDiffusionKernel.TILE_PLANES;
+		BSimParallel.forRange(p, 0, rowBlocks*planeBlocks, 1, new BSimParallel.Range() {
+			public void run(int from, int to) {
+				double[][] a = new double[4][species];
+				int[] o = new int[4];
+				for (int t = from; t < to; t++) {
+					int r0 = (t % rowBlocks)*tileRows, r1 = Math.min(n[1], r0 + tileRows);
+					int p0 = (t / rowBlocks)*BSimDiffusionKernel.TILE_PLANES;
+					int p1 = Math.min(n[0], p0 + BSimDiffusionKernel.TILE_PLANES);
+					for (int x0 = p0; x0 < p1; x0++)
+						for (int x1 = r0; x1 < r1; x1++) row(x0, x1, dt, a, o);
+				}
+			}
+		});
+		double[] t = conc;
+		conc = next;
+		next = t;
+	}
+
+	/**
+	 * Sets the per-species coefficients for a step of length dt (see BSimChemicalField.configureKernel()).
+	 */
+	protected void configure(double dt) {
+		boolean[] solid = sim.getSolid();
+		boolean[] leaky = sim.getLeaky();
+		double[] leakyRate = sim.getLeakyRate();
+		selfLeak = 0;
+		for (int d = 0; d < 3; d++) {
+			int ax = axis[d];
+			double norm = dt/(box[ax]*box[ax]);
+			for (int sp = 0; sp < species; sp++) c[d][sp] = (n[d] > 1 ? 2*diffusivity[sp]*norm : 0);
+			wrap[d] = !solid[ax];
+			leakHi[d] = (solid[ax] && leaky[2*ax] ? norm*leakyRate[2*ax] : 0);
+			leakLo[d] = (solid[ax] && leaky[2*ax + 1] ? norm*leakyRate[2*ax + 1] : 0);
+			if (n[d] == 1) selfLeak += leakHi[d] + leakLo[d];
+		}
+		for (int sp = 0; sp < species; sp++) scale[sp] = 1 - decayRate[sp]*dt;
+	}
+
+	/**
+	 * Updates the row (x0, x1, *) of every species from conc into next, then applies the
+	 * reaction term to it. a and o are work arrays for the coefficients and offsets of the
+	 * four neighbouring rows; a missing row is the row itself with coefficient 0.
+	 */
+	protected void row(int x0, int x1, double dt, double[][] a, int[] o) {
+		final int S = species;
+		final int len = n[2];
+		final int base = x0*s[0] + x1*s[1];
+		double lost = selfLeak;
+		for (int d = 0; d < 2; d++) {
+			int x = (d == 0 ? x0 : x1);
+			for (int side = 0; side < 2; side++) {
+				int r = 2*d + side;
+				int off = 0;
+				boolean present = false;
+				if (n[d] > 1) {
+					if (side == 0) {
+						if (x < n[d] - 1) { off = s[d]; present = true; }
+						else if (wrap[d]) { off = -(n[d] - 1)*s[d]; present = true; }
+						else lost += leakHi[d];
+					} else {
+						if (x > 0) { off = -s[d]; present = true; }
+						else if (wrap[d]) { off = (n[d] - 1)*s[d]; present = true; }
+						else lost += leakLo[d];
+					}
+				}
+				o[r] = off*S;
+				for (int sp = 0; sp < S; sp++) a[r][sp] = (present ? c[d][sp] : 0);
+			}
+		}
+
+		final double[] src = conc, dst = next;
+		final double[] a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], c2 = c[2];
+		final int o0 = o[0], o1 = o[1], o2 = o[2], o3 = o[3];
+		final double keep = 1 - lost;
+		/* One species at a time along the row: the row stays in cache, the coefficients in registers */
+		for (int sp = 0; sp < S; sp++) {
+			final double b0 = a0[sp], b1 = a1[sp], b2 = a2[sp], b3 = a3[sp], b4 = c2[sp], sc = scale[sp];
+			final int last = (base + len - 1)*S + sp;
+			for (int i = (base + 1)*S + sp; i < last; i += S) {
+				double v = src[i];
+				dst[i] = sc*(keep*v + b0*(src[i + o0] - v) + b1*(src[i + o1] - v)
+						+ b2*(src[i + o2] - v) + b3*(src[i + o3] - v)
+						+ b4*(src[i + S] + src[i - S] - 2*v));
+			}
+		}
+		/* Ends of the row, with the boundary rules of the contiguous axis */
+		for (int k = 0; k < len; k += Math.max(1, len - 1)) {
+			int i = (base + k)*S;
+			for (int sp = 0; sp < S; sp++, i++) {
+				double v = src[i];
+				double flux = a0[sp]*(src[i + o0] - v) + a1[sp]*(src[i + o1] - v)
+						+ a2[sp]*(src[i + o2] - v) + a3[sp]*(src[i + o3] - v);
+				double kLost = lost;
+				if (len > 1) {
+					if (k < len - 1) flux += c2[sp]*(src[i + S] - v);
+					else if (wrap[2]) flux += c2[sp]*(src[i - (len - 1)*S] - v);
+					else kLost += leakHi[2];
+					if (k > 0) flux += c2[sp]*(src[i - S] - v);
+					else if (wrap[2]) flux += c2[sp]*(src[i + (len - 1)*S] - v);
+					else kLost += leakLo[2];
+				}
+				dst[i] = scale[sp]*(v + flux - kLost*v);
+			}
+		}
+
+		if (reaction != null) {
+			reaction.react(src, dst, base, base + len, dt);
+			for (int i = base*S; i < (base + len)*S; i++) if (dst[i] < 0) dst[i] = 0;
+		}
+	}
+
+	/**
+	 * Returns a BSimChemicalField view of species sp. Reads and writes go to this field.
+	 * update() (or diffuse()) on the view advances this whole field unless it has already
+	 * been advanced in the current timestep; decay() on the view decays only species sp.
+	 * The implicit and steady state diffusion modes are not available on views. Views may be
+	 * updated from concurrent phases; BSimPipeline treats them as their multi-species field.
+	 */
+	public BSimChemicalField species(int sp) {
+		if (views == null) views = new BSimChemicalField[species];
+		if (views[sp] == null) views[sp] = new SpeciesView(sp);
+		return views[sp];
+	}
+
+	/** Single species view over the interleaved array. */
+	protected class SpeciesView extends BSimChemicalField {
+		BSimMultiSpeciesField owner() { return BSimMultiSpeciesField.this; }
+		SpeciesView(int sp) {
+			super(BSimMultiSpeciesField.this.sim, BSimMultiSpeciesField.this.boxes,
+					BSimMultiSpeciesField.this.diffusivity[sp], BSimMultiSpeciesField.this.decayRate[sp], new SpeciesStorage(sp));
+		}
+		@Override
+		protected void step(double dt, boolean withDecay) {
+			synchronized (BSimMultiSpeciesField.this) {
+				if (sim.getTimestep() != updatedAt) BSimMultiSpeciesField.this.update(dt, withDecay);
+			}
+		}
+		@Override
+		public void setDiffusionMode(DiffusionMode m) {
+			if (m != DiffusionMode.EXPLICIT)
+				throw new IllegalArgumentException("Multi-species field - species views only support explicit diffusion");
+			super.setDiffusionMode(m);
+		}
+	}
+
+	/**
+	 * Returns the multi-species field that o is a species view of, or o itself, so that
+	 * code tracking which fields are read and written sees the views of one field as one.
+	 */
+	public static Object owner(Object o) {
+		return (o instanceof SpeciesView ? ((SpeciesView)o).owner() : o);
+	}
+
+	/** Storage of one species, in molecules per box as BSimChemicalField expects. */
+	protected class SpeciesStorage extends BSimFieldStorage {
+		protected int sp;
+		SpeciesStorage(int sp) {
+			super(BSimMultiSpeciesField.this.size);
+			this.sp = sp;
+		}
+		@Override
+		public Type getType() { return Type.SPECIES; }
+		@Override
+		public double get(int i) { return conc[i*species + sp]*boxVolume; }
+		@Override
+		public void set(int i, double v) { conc[i*species + sp] = v/boxVolume; }
+	}
+}
@@ -0,0 +1,304 @@
+package bsim.field;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import bsim.BSimParallel;
+
+/**
+ * Geometric multigrid solver for the steady state of a chemical field,
+ * <pre>
+ * D*lap(c) - k*c + s = 0
+ * </pre>
+ * discretised on the boxes of BSimChemicalField with the same exchange,
+ * wrapping and leaky rules as BSimDiffusionKernel (c and s per unit volume).
+ * Coarse grids halve every axis longer than one box ((n+1)/2 boxes, so with
+ * an odd number the last coarse box covers a single fine box) and
+ * rediscretise the operator at the coarse spacing. Each V-cycle uses
+ * red-black Gauss-Seidel smoothing, averaging restriction (over the fine
+ * boxes a coarse box covers) and piecewise constant prolongation; cycles run until the residual falls
+ * below a fraction of the source. The initial value of c is used as the
+ * starting guess, so a field that barely changes needs few or no cycles.
+ */
+public class BSimMultigridSolver {
+
+	/** Levels are not coarsened below this number of boxes. */
+	protected static final int COARSEST = 8;
+	/** Maximum number of smoothing sweeps on the coarsest level. */
+	protected static final int COARSE_SWEEPS = 1000;
+
+	/** One grid of the hierarchy. */
+	protected static class Level {
+		int[] n = new int[3];
+		int[] stride = new int[3];
+		int size;
+		/** Box size along each axis. */
+		double[] h = new double[3];
+		/** Whether each axis is halved to make the next level. */
+		boolean[] halve = new boolean[3];
+		/** Exchange coefficient with each neighbour per unit volume (0 for axes of length one). */
+		double[] a = new double[3];
+		/** Loss coefficient of the lower and upper faces of solid leaky axes. */
+		double[] leakLo = new double[3], leakHi = new double[3];
+		/** Solution, right hand side and residual. */
+		double[] c, f, r;
+		/** Whether red-black sweeps can update one colour in parallel. */
+		boolean colourSafe;
+	}
+
+	protected List<Level> levels = new ArrayList<Level>();
+	protected boolean[] wrap = new boolean[3];
+	protected double decay;
+
+	/** Relative residual (L2, against the source) at which the solve stops. */
+	protected double tolerance = 1e-6;
+	/** Maximum number of V-cycles per solve. */
+	protected int maxCycles = 50;
+	/** Smoothing sweeps before and after each coarse grid correction. */
+	protected int preSweeps = 2, postSweeps = 2;
+
+	/** V-cycles taken by the last solve. */
+	protected int cycles;
+	/** Relative residual after the last solve. */
+	protected double residual;
+
+	protected ForkJoinPool pool = ForkJoinPool.commonPool();
+	protected int parallelThreshold = BSimDiffusionKernel.DEFAULT_PARALLEL_THRESHOLD;
+
+	/**
+	 * Creates a solver for a grid with the given boxes.
+	 * @param boxes Number of boxes in the (x,y,z) directions.
+	 * @param box Box size in the (x,y,z) directions.
+	 */
+	public BSimMultigridSolver(int[] boxes, double[] box) {
+		Level l = new Level();
+		for (int d = 0; d < 3; d++) {
+			l.n[d] = boxes[d];
+			l.h[d] = box[d];
+		}
+		while (true) {
+			l.stride[0] = l.n[1]*l.n[2];
+			l.stride[1] = l.n[2];
+			l.stride[2] = 1;
+			l.size = l.n[0]*l.n[1]*l.n[2];
+			l.c = (levels.isEmpty() ? null : new double[l.size]);
+			l.f = (levels.isEmpty() ? null : new double[l.size]);
+			l.r = new double[l.size];
+			levels.add(l);
+
+			boolean any = false;
+			for (int d = 0; d < 3; d++) {
+				l.halve[d] = (l.n[d] > 1);
+				any |= l.halve[d];
+			}
+			if (!any || l.size <= COARSEST) {
+				for (int d = 0; d < 3; d++) l.halve[d] = false;
+				break;
+			}
+			Level c = new Level();
+			for (int d = 0; d < 3; d++) {
+				c.n[d] = (l.halve[d] ? (l.n[d] + 1)/2 : l.n[d]);
+				c.h[d] = (l.halve[d] ? 2*l.h[d] : l.h[d]);
+			}
+			l = c;
+		}
+	}
+
+	/** Set the pool used for large levels (null to always run in the calling thread). */
+	public void setPool(ForkJoinPool pool) { this.pool = pool; }
+	/** Set the relative residual at which the solve stops. */
+	public void setTolerance(double t) { tolerance = t; }
+	/** Set the maximum number of V-cycles per solve. */
+	public void setMaxCycles(int m) { maxCycles = m; }
+	/** Return the number of levels in the hierarchy. */
+	public int getLevels() { return levels.size(); }
+	/** Return the number of V-cycles taken by the last solve. */
+	public int getCycles() { return cycles; }
+	/** Return the relative residual after the last solve. */
+	public double getResidual() { return residual; }
+
+	/**
+	 * Sets the operator for the next solves.
+	 * @param diffusivity Diffusivity D (microns^2/s).
+	 * @param decayRate Decay rate k (1/s).
+	 * @param solid Whether the boundary in each direction is solid (true) or wrapping (false).
+	 * @param leakRate Leak rate through each face (x_top, x_bottom, y_top, y_bottom, z_top, z_bottom),
+	 * 		0 if not leaky, as for BSim.setLeakyRate().
+	 * @throws IllegalStateException If there is neither decay nor a leak, so no steady state exists.
+	 */
+	public void configure(double diffusivity, double decayRate, boolean[] solid, double[] leakRate) {
+		boolean loss = decayRate > 0;
+		decay = decayRate;
+		double[] h0 = levels.get(0).h;
+		for (int d = 0; d < 3; d++) {
+			wrap[d] = !solid[d];
+			if (solid[d] && (leakRate[2*d] > 0 || leakRate[2*d + 1] > 0)) loss = true;
+		}
+		if (!loss)
+			throw new IllegalStateException("Steady state needs a decay rate or a leaky boundary");
+		for (Level l : levels) {
+			l.colourSafe = true;
+			for (int d = 0; d < 3; d++) {
+				l.a[d] = (l.n[d] > 1 ? 2*diffusivity/(l.h[d]*l.h[d]) : 0);
+				/* The leak is a property of the finest boxes: flux (r/h0)*c through the face */
+				l.leakHi[d] = (solid[d] ? leakRate[2*d]/(h0[d]*l.h[d]) : 0);
+				l.leakLo[d] = (solid[d] ? leakRate[2*d + 1]/(h0[d]*l.h[d]) : 0);
+				if (wrap[d] && l.n[d] > 1 && l.n[d] % 2 == 1) l.colourSafe = false;
+			}
+		}
+	}
+
+	/**
+	 * Solves for c in place, starting from its current value.
+	 * @param c Solution per unit volume, flat array indexed as BSimChemicalField.index().
+	 * @param f Source per unit volume and second.
+	 * @return Number of V-cycles taken.
+	 */
+	public int solve(double[] c, double[] f) {
+		Level top = levels.get(0);
+		top.c = c;
+		top.f = f;
+		double norm = norm(f, top.size);
+		cycles = 0;
+		if (norm == 0) {
+			for (int i = 0; i < top.size; i++) c[i] = 0;
+			residual = 0;
+			return 0;
+		}
+		residual = norm(residual(top), top.size)/norm;
+		while (residual > tolerance && cycles < maxCycles) {
+			vcycle(0);
+			cycles++;
+			residual = norm(residual(top), top.size)/norm;
+		}
+		return cycles;
+	}
+
+	/** One V-cycle from level i downwards. */
+	protected void vcycle(int i) {
+		Level l = levels.get(i);
+		if (i == levels.size() - 1) {
+			coarsest(l);
+			return;
+		}
+		for (int s = 0; s < preSweeps; s++) smooth(l);
+		residual(l);
+		Level c = levels.get(i + 1);
+		restrict(l, c);
+		for (int k = 0; k < c.size; k++) c.c[k] = 0;
+		vcycle(i + 1);
+		prolongAdd(c, l);
+		for (int s = 0; s < postSweeps; s++) smooth(l);
+	}
+
+	/** Smooths the coarsest level until its residual has dropped well below its source. */
+	protected void coarsest(Level l) {
+		double norm = norm(l.f, l.size);
+		for (int s = 0; s < COARSE_SWEEPS; s += 10) {
+			for (int k = 0; k < 10; k++) smooth(l);
+			if (norm(residual(l), l.size) <= 1e-3*tolerance*norm) return;
+		}
+	}
+
+	/** One red-black Gauss-Seidel sweep. */
+	protected void smooth(final Level l) {
+		ForkJoinPool p = (l.colourSafe && l.size >= parallelThreshold ? pool : null);
+		for (int colour = 0; colour < 2; colour++) {
+			final int col = colour;
+			BSimParallel.forRange(p, 0, l.n[0], BSimParallel.grain(p, l.n[0]), new BSimParallel.Range() {
+				public void run(int from, int to) {
+					for (int i = from; i < to; i++)
+						for (int j = 0; j < l.n[1]; j++)
+							for (int k = (i + j + col) & 1; k < l.n[2]; k += 2) relax(l, i, j, k);
+				}
+			});
+		}
+	}
+
+	/** Gauss-Seidel update of box (i,j,k). */
+	protected void relax(Level l, int i, int j, int k) {
+		int idx = i*l.stride[0] + j*l.stride[1] + k;
+		double[] c = l.c;
+		double diag = decay, off = 0;
+		for (int d = 0; d < 3; d++) {
+			int x = (d == 0 ? i : (d == 1 ? j : k));
+			int n = l.n[d], s = l.stride[d];
+			double a = l.a[d];
+			if (x < n - 1) { off += a*c[idx + s]; diag += a; }
+			else if (wrap[d]) { off += a*c[idx - (n - 1)*s]; diag += a; }
+			else diag += l.leakHi[d];
+			if (x > 0) { off += a*c[idx - s]; diag += a; }
+			else if (wrap[d]) { off += a*c[idx + (n - 1)*s]; diag += a; }
+			else diag += l.leakLo[d];
+		}
+		c[idx] = (l.f[idx] + off)/diag;
+	}
+
+	/** Computes r = f - A c on level l and returns r. */
+	protected double[] residual(final Level l) {
+		ForkJoinPool p = (l.size >= parallelThreshold ? pool : null);
+		BSimParallel.forRange(p, 0, l.n[0], BSimParallel.grain(p, l.n[0]), new BSimParallel.Range() {
+			public void run(int from, int to) {
+				double[] c = l.c;
+				for (int i = from; i < to; i++)
+					for (int j = 0; j < l.n[1]; j++)
+						for (int k = 0; k < l.n[2]; k++) {
+							int idx = i*l.stride[0] + j*l.stride[1] + k;
+							double v = c[idx];
+							double ac = decay*v;
+							for (int d = 0; d < 3; d++) {
+								int x = (d == 0 ? i : (d == 1 ? j : k));
+								int n = l.n[d], s = l.stride[d];
+								double a = l.a[d];
+								if (x < n - 1) ac += a*(v - c[idx + s]);
+								else if (wrap[d]) ac += a*(v - c[idx - (n - 1)*s]);
+								else ac += l.leakHi[d]*v;
+								if (x > 0) ac += a*(v - c[idx - s]);
+								else if (wrap[d]) ac += a*(v - c[idx + (n - 1)*s]);
+								else ac += l.leakLo[d]*v;
+							}
+							l.r[idx] = l.f[idx] - ac;
+						}
+			}
+		});
+		return l.r;
+	}
+
+	/** Sets the source of the coarse level to the average of the fine residual over each coarse box. */
+	protected void restrict(Level fine, Level coarse) {
+		int di = (fine.halve[0] ? 2 : 1), dj = (fine.halve[1] ? 2 : 1), dk = (fine.halve[2] ? 2 : 1);
+		for (int i = 0; i < coarse.n[0]; i++) {
+			int ni = Math.min(di, fine.n[0] - i*di);
+			for (int j = 0; j < coarse.n[1]; j++) {
+				int nj = Math.min(dj, fine.n[1] - j*dj);
+				for (int k = 0; k < coarse.n[2]; k++) {
+					int nk = Math.min(dk, fine.n[2] - k*dk);
+					double sum = 0;
+					for (int a = 0; a < ni; a++)
+						for (int b = 0; b < nj; b++)
+							for (int e = 0; e < nk; e++)
+								sum += fine.r[(i*di + a)*fine.stride[0] + (j*dj + b)*fine.stride[1] + k*dk + e];
+					coarse.f[i*coarse.stride[0] + j*coarse.stride[1] + k] = sum/(ni*nj*nk);
+				}
+			}
+		}
+	}
+
+	/** Adds the coarse solution to every fine box it covers. */
+	protected void prolongAdd(Level coarse, Level fine) {
+		int di = (fine.halve[0] ? 2 : 1), dj = (fine.halve[1] ? 2 : 1), dk = (fine.halve[2] ? 2 : 1);
+		for (int i = 0; i < fine.n[0]; i++)
+			for (int j = 0; j < fine.n[1]; j++)
+				for (int k = 0; k < fine.n[2]; k++)
+					fine.c[i*fine.stride[0] + j*fine.stride[1] + k] +=
+						coarse.c[(i/di)*coarse.stride[0] + (j/dj)*coarse.stride[1] + k/dk];
+	}
+
+	/** L2 norm of the first n entries of v. */
+	protected static double norm(double[] v, int n) {
+		double s = 0;
+		for (int i = 0; i < n; i++) s += v[i]*v[i];
+		return Math.sqrt(s);
+	}
+}
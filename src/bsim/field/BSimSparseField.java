@@ -0,0 +1,457 @@
+package bsim.field;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.vecmath.Vector3d;
+
+import bsim.BSim;
+import bsim.BSimChemicalField;
+import bsim.BSimParallel;
+
+/**
+ * Chemical field that only updates the region holding chemical.
+ * A box is active while its concentration is above a threshold. Each step updates
+ * the active boxes and their neighbours (the frontier), so the cost follows the
+ * size of the occupied region rather than of the grid. The region grows as
+ * chemical spreads into the frontier and shrinks as it decays or thins out.
+ * The region is held as one interval of boxes per row along the contiguous axis
+ * (in the canonical layout of BSimDiffusionKernel, so 2D fields have long rows),
+ * which keeps the inner loops contiguous.
+ * <p>
+ * Boxes outside the region are not diffused, but they are decayed: a box keeps the
+ * decay accumulated since it left the region and applies it when it is read or
+ * rejoins, so a decaying signal stays exact. Chemical only moves between boxes
+ * that are both being updated, which conserves the total; the error compared with
+ * the dense explicit mode is the diffusion between boxes that are all below the
+ * threshold. When the region covers more than a fraction of the grid (see
+ * setDenseFraction) the step falls back to the dense kernel.
+ * <p>
+ * Uses the explicit scheme and DOUBLE storage. The other diffusion modes bring the
+ * whole field up to date and step it densely. Call refresh() before reading the
+ * storage directly.
+ */
+public class BSimSparseField extends BSimChemicalField {
+
+	/** Fraction of the boxes above which steps are dense by default. */
+	public static double DEFAULT_DENSE_FRACTION = 0.4;
+	/** Dense steps taken before the region is measured again. */
+	protected static final int DENSE_RECHECK = 16;
+
+	/** Concentration above which a box is active. */
+	protected double threshold;
+	/** Quantity above which a box is active (threshold*boxVolume). */
+	protected double thresholdQ;
+	/** Fraction of the boxes above which steps are dense. */
+	protected double denseFraction = DEFAULT_DENSE_FRACTION;
+	/** Boxes [lo,hi) of each row updated by the next step; empty if hi <= lo. */
+	protected int[] lo, hi;
+	/** Rows with a non-empty interval, and their number. */
+	protected int[] rowList;
+	protected int rowCount;
+	/** Whether rowList is in increasing order. */
+	protected boolean sorted = true;
+	/** Log of the fraction left by all decay so far. */
+	protected double logDecay;
+	/** Value of logDecay when each box was last brought up to date. */
+	protected double[] stamp;
+	/** Whether every box has the same stamp, and that stamp. */
+	protected boolean uniform = true;
+	protected double uniformStamp;
+	/** Dense steps left before the region is measured again. */
+	protected int denseHold;
+	/** Whether boxes of the region may have pending decay. */
+	protected boolean stale;
+	/** Number of boxes updated by the last step. */
+	protected int lastCount;
+	/** Whether the last step was dense. */
+	protected boolean lastDense;
+	/** Number of boxes along each axis of the kernel's canonical layout (the last is contiguous). */
+	protected int[] n;
+	/* Intervals being built for the next step */
+	private int[] spareLo, spareHi, spareList;
+
+	/**
+	 * Creates a sparse field; the other arguments are as for BSimChemicalField.
+	 * @param threshold Concentration (molecules/(micron)^3) above which a box is active.
+	 */
+	public BSimSparseField(BSim sim, int[] boxes, double diffusivity, double decayRate, double threshold) {
+		super(sim, boxes, diffusivity, decayRate);
+		this.n = kernel.n;
+		int rows = n[0]*n[1];
+		this.lo = new int[rows];
+		this.hi = new int[rows];
+		this.rowList = new int[rows];
+		this.spareLo = new int[rows];
+		this.spareHi = new int[rows];
+		this.spareList = new int[rows];
+		Arrays.fill(lo, n[2]);
+		Arrays.fill(spareLo, n[2]);
+		this.stamp = new double[quantity.length];
+		setThreshold(threshold);
+	}
+
+	/** Set the concentration above which a box is active. */
+	public void setThreshold(double threshold) {
+		assert (threshold >= 0) : "Sparse field - threshold must not be negative";
+		this.threshold = threshold;
+		this.thresholdQ = threshold*boxVolume;
+		rebuild();
+	}
+	/** Return the concentration above which a box is active. */
+	public double getThreshold() { return threshold; }
+
+	/** Set the fraction of the boxes (0,1] above which steps use the dense kernel. */
+	public void setDenseFraction(double f) {
+		assert (f > 0 && f <= 1) : "Sparse field - dense fraction out of range (0,1]";
+		denseFraction = f;
+	}
+
+	/** Return the number of boxes (active and frontier) updated by the next step. */
+	public int getActiveCount() {
+		int n = 0;
+		for (int j = 0; j < rowCount; j++) n += hi[rowList[j]] - lo[rowList[j]];
+		return n;
+	}
+	/** Return the number of boxes updated by the last step. */
+	public int getLastCount() { return lastCount; }
+	/** Return whether the last step used the dense kernel. */
+	public boolean wasDense() { return lastDense; }
+
+	@Override
+	protected void addQuantity(int idx, double q) {
+		refresh(idx);
+		double v = quantity[idx] + q;
+		quantity[idx] = (v < 0 ? 0 : v);
+		if (quantity[idx] > thresholdQ) activate(idx);
+	}
+
+	@Override
+	public void setConc(Vector3d v, double c) {
+		setConc(boxIndex(v), c);
+	}
+	@Override
+	public void setConc(int x, int y, int z, double c) {
+		setConc(index(x,y,z), c);
+	}
+	@Override
+	public void setConc(double c) {
+		super.setConc(c);
+		Arrays.fill(stamp, logDecay);
+		uniform = true;
+		uniformStamp = logDecay;
+		rebuild();
+	}
+	/** Sets the concentration of the box at position idx. */
+	protected void setConc(int idx, double c) {
+		quantity[idx] = c*boxVolume;
+		if (stamp[idx] != logDecay) {
+			stamp[idx] = logDecay;
+			uniform = false;
+		}
+		if (quantity[idx] > thresholdQ) activate(idx);
+	}
+
+	@Override
+	public double getConc(Vector3d v) {
+		return value(boxIndex(v))/boxVolume;
+	}
+	@Override
+	public double getConc(int i, int j, int k) {
+		return value(index(i,j,k))/boxVolume;
+	}
+
+	@Override
+	public double totalQuantity() {
+		double t = 0;
+		for (int i = 0; i < quantity.length; i++) t += value(i);
+		return t;
+	}
+
+	/** Decays the whole field in O(1); boxes apply it when next read or updated. */
+	@Override
+	public void decay(double dt) {
+		logDecay += log(decayFactor(dt));
+		stale = true;
+	}
+
+	/** Returns the current quantity in box idx, including its pending decay. */
+	protected double value(int idx) {
+		return (stamp[idx] == logDecay ? quantity[idx] : quantity[idx]*Math.exp(logDecay - stamp[idx]));
+	}
+
+	/** Applies the pending decay of box idx. */
+	protected void refresh(int idx) {
+		if (stamp[idx] == logDecay) return;
+		quantity[idx] *= Math.exp(logDecay - stamp[idx]);
+		stamp[idx] = logDecay;
+		uniform = false;
+	}
+
+	/** Applies the pending decay of every box, so that the storage holds the current field. */
+	public void refresh() {
+		if (uniform) {
+			if (uniformStamp == logDecay) return;
+			storage.scale(Math.exp(logDecay - uniformStamp));
+			Arrays.fill(stamp, logDecay);
+		}
+		else for (int i = 0; i < quantity.length; i++) {
+			if (stamp[i] == logDecay) continue;
+			quantity[i] *= Math.exp(logDecay - stamp[i]);
+			stamp[i] = logDecay;
+		}
+		uniform = true;
+		uniformStamp = logDecay;
+	}
+
+	/**
+	 * Diffuses the region over dt, or the whole field if the region is large or the
+	 * mode is not explicit, then updates the region from the new field. Once a step
+	 * is dense the region is only measured again every DENSE_RECHECK steps.
+	 */
+	@Override
+	protected void step(double dt, boolean withDecay) {
+		int count = getActiveCount();
+		lastCount = count;
+		if (mode != DiffusionMode.EXPLICIT || denseHold > 0 || count > denseFraction*quantity.length) {
+			refresh();
+			super.step(dt, withDecay);
+			lastDense = true;
+			lastCount = quantity.length;
+			if (denseHold > 0) denseHold--;
+			if (denseHold == 0) {
+				rebuild();
+				if (mode != DiffusionMode.EXPLICIT || getActiveCount() > denseFraction*quantity.length) denseHold = DENSE_RECHECK;
+			}
+			return;
+		}
+		lastDense = false;
+		if (count == 0) {
+			if (withDecay) decay(dt);
+			return;
+		}
+		/* The kernel holds the coefficients in its canonical layout */
+		configureKernel(dt);
+		/* Sorted rows read their neighbours in memory order */
+		if (!sorted) {
+			Arrays.sort(rowList, 0, rowCount);
+			sorted = true;
+		}
+		final int n2 = n[2];
+		if (stale) {
+			for (int j = 0; j < rowCount; j++) {
+				int base = rowList[j]*n2;
+				for (int z = base + lo[rowList[j]]; z < base + hi[rowList[j]]; z++) refresh(z);
+			}
+			stale = false;
+		}
+
+		final double scale = (withDecay ? decayFactor(dt) : 1);
+		final double[] src = quantity, dst = scratch;
+		ForkJoinPool p = (count >= kernel.parallelThreshold ? kernel.getPool() : null);
+		BSimParallel.forRange(p, 0, rowCount, BSimParallel.grain(p, rowCount), new BSimParallel.Range() {
+			public void run(int from, int to) {
+				double[] acc = new double[n2];
+				int[] nb = new int[4];
+				for (int j = from; j < to; j++) row(rowList[j], src, dst, scale, acc, nb);
+			}
+		});
+		logDecay += log(scale);
+		uniform = false;
+		commit();
+	}
+
+	/**
+	 * Explicit update of the interval of row r, exchanging only with boxes that are
+	 * also being updated.
+	 */
+	protected void row(int r, double[] src, double[] dst, double scale, double[] acc, int[] nb) {
+		double[] c = kernel.c, leakHi = kernel.leakHi, leakLo = kernel.leakLo;
+		boolean[] wrap = kernel.wrap;
+		int n2 = n[2], base = r*n2;
+		int l = lo[r], h = hi[r];
+		int[] x = {r / n[1], r % n[1]};
+		int[] rs = {n[1], 1};
+		double lost = 0;
+		boolean covered = true;
+		for (int d = 0; d < 2; d++) {
+			int s = rs[d];
+			for (int side = 0; side < 2; side++) {
+				int nr;
+				if (side == 0) nr = (x[d] < n[d] - 1 ? r + s : (wrap[d] ? r - (n[d] - 1)*s : -1));
+				else nr = (x[d] > 0 ? r - s : (wrap[d] ? r + (n[d] - 1)*s : -1));
+				if (nr < 0) lost += (side == 0 ? leakHi[d] : leakLo[d]);
+				if (nr == r) nr = -1;
+				nb[2*d + side] = nr;
+				if (nr < 0 || lo[nr] > l || hi[nr] < h) covered = false;
+			}
+		}
+
+		double c0 = c[0], c1 = c[1], c2 = c[2];
+		if (covered) {
+			/* Inside the region: every neighbouring row covers the interval, as in the dense kernel */
+			int b0 = nb[0]*n2, b1 = nb[1]*n2, b2 = nb[2]*n2, b3 = nb[3]*n2;
+			for (int z = l + 1; z < h - 1; z++) {
+				double v = src[base + z];
+				dst[base + z] = scale*(v + c0*(src[b0 + z] + src[b1 + z] - 2*v) + c1*(src[b2 + z] + src[b3 + z] - 2*v)
+					+ c2*(src[base + z + 1] + src[base + z - 1] - 2*v));
+			}
+			acc[l] = c0*(src[b0 + l] + src[b1 + l] - 2*src[base + l]) + c1*(src[b2 + l] + src[b3 + l] - 2*src[base + l]);
+			int e = h - 1;
+			acc[e] = c0*(src[b0 + e] + src[b1 + e] - 2*src[base + e]) + c1*(src[b2 + e] + src[b3 + e] - 2*src[base + e]);
+		} else {
+			/* Neighbouring rows along x and y, over the part of their interval that overlaps */
+			for (int z = l; z < h; z++) acc[z] = 0;
+			for (int k = 0; k < 4; k++) {
+				int nr = nb[k];
+				if (nr < 0) continue;
+				int from = Math.max(l, lo[nr]), to = Math.min(h, hi[nr]);
+				int nbase = nr*n2;
+				double cd = c[k/2];
+				for (int z = from; z < to; z++) acc[z] += cd*(src[nbase + z] - src[base + z]);
+			}
+			for (int z = l + 1; z < h - 1; z++) {
+				double v = src[base + z];
+				dst[base + z] = scale*(v + acc[z] + c2*(src[base + z + 1] + src[base + z - 1] - 2*v) - lost*v);
+			}
+		}
+
+		/* Ends of the interval, which may have no neighbour along the row */
+		boolean whole = (l == 0 && h == n2);
+		for (int z = l; z < h; z += Math.max(1, h - 1 - l)) {
+			double v = src[base + z];
+			double flux = acc[z], zLost = lost;
+			if (z + 1 < h) flux += c2*(src[base + z + 1] - v);
+			else if (z + 1 == n2) {
+				if (!wrap[2]) zLost += leakHi[2];
+				else if (whole) flux += c2*(src[base] - v);
+			}
+			if (z - 1 >= l) flux += c2*(src[base + z - 1] - v);
+			else if (z == 0) {
+				if (!wrap[2]) zLost += leakLo[2];
+				else if (whole) flux += c2*(src[base + n2 - 1] - v);
+			}
+			dst[base + z] = scale*(v + flux - zLost*v);
+		}
+	}
+
+	/**
+	 * Copies the updated boxes back into the field, and replaces the region by the
+	 * boxes still above the threshold and their neighbours. Boxes that drop out keep
+	 * their stamp and decay lazily; boxes that join are brought up to date.
+	 */
+	protected void commit() {
+		int[] oldLo = lo, oldHi = hi, oldList = rowList;
+		int oldCount = rowCount;
+		lo = spareLo;
+		hi = spareHi;
+		rowList = spareList;
+		rowCount = 0;
+		int n2 = n[2];
+		for (int j = 0; j < oldCount; j++) {
+			int r = oldList[j], base = r*n2;
+			int a = -1, b = -1;
+			for (int z = oldLo[r]; z < oldHi[r]; z++) {
+				double q = scratch[base + z];
+				quantity[base + z] = q;
+				if (q > thresholdQ) {
+					if (a < 0) a = z;
+					b = z;
+				}
+			}
+			Arrays.fill(stamp, base + oldLo[r], base + oldHi[r], logDecay);
+			if (a >= 0) mark(r, a, b);
+		}
+		for (int j = 0; j < rowCount; j++) {
+			int r = rowList[j], base = r*n2;
+			for (int z = lo[r]; z < Math.min(hi[r], oldLo[r]); z++) refresh(base + z);
+			for (int z = Math.max(lo[r], oldHi[r]); z < hi[r]; z++) refresh(base + z);
+		}
+		for (int j = 0; j < oldCount; j++) {
+			oldLo[oldList[j]] = n2;
+			oldHi[oldList[j]] = 0;
+		}
+		spareLo = oldLo;
+		spareHi = oldHi;
+		spareList = oldList;
+		sorted = false;
+	}
+
+	/** Recomputes the region from every box of the field. */
+	protected void rebuild() {
+		if (lo == null) return;
+		int n2 = n[2];
+		Arrays.fill(lo, n2);
+		Arrays.fill(hi, 0);
+		rowCount = 0;
+		for (int r = 0; r < lo.length; r++) {
+			int a = -1, b = -1;
+			for (int z = 0; z < n2; z++) {
+				if (value(r*n2 + z) > thresholdQ) {
+					if (a < 0) a = z;
+					b = z;
+				}
+			}
+			if (a >= 0) mark(r, a, b);
+		}
+		sorted = false;
+		stale = true;
+	}
+
+	/** Adds box idx and its neighbours to the region between steps. */
+	protected void activate(int idx) {
+		int before = rowCount;
+		if (mark(idx / n[2], idx % n[2], idx % n[2])) stale = true;
+		if (rowCount != before) sorted = false;
+	}
+
+	/**
+	 * Adds boxes [a,b] of row r, the boxes either side of them along the row, and the
+	 * same boxes of the neighbouring rows to the region. Returns whether the region grew.
+	 */
+	protected boolean mark(int r, int a, int b) {
+		boolean[] solid = sim.getSolid();
+		int[] axis = kernel.axis;
+		int n2 = n[2];
+		int l = a - 1, h = b + 2;
+		if (l < 0) {
+			l = 0;
+			if (!solid[axis[2]]) h = n2;
+		}
+		if (h > n2) {
+			h = n2;
+			if (!solid[axis[2]]) l = 0;
+		}
+		boolean grew = extend(r, l, h);
+		int[] x = {r / n[1], r % n[1]};
+		int[] rs = {n[1], 1};
+		for (int d = 0; d < 2; d++) {
+			int s = rs[d];
+			if (n[d] == 1) continue;
+			if (x[d] < n[d] - 1) grew |= extend(r + s, a, b + 1);
+			else if (!solid[axis[d]]) grew |= extend(r - (n[d] - 1)*s, a, b + 1);
+			if (x[d] > 0) grew |= extend(r - s, a, b + 1);
+			else if (!solid[axis[d]]) grew |= extend(r + (n[d] - 1)*s, a, b + 1);
+		}
+		return grew;
+	}
+
+	/** Widens the interval of row r to cover [l,h), returning whether it changed. */
+	private boolean extend(int r, int l, int h) {
+		if (hi[r] <= lo[r]) {
+			rowList[rowCount++] = r;
+			lo[r] = l;
+			hi[r] = h;
+			return true;
+		}
+		if (l >= lo[r] && h <= hi[r]) return false;
+		if (l < lo[r]) lo[r] = l;
+		if (h > hi[r]) hi[r] = h;
+		return true;
+	}
+
+	/** Log of a decay factor; a factor of zero removes the chemical entirely. */
+	private static double log(double f) {
+		return Math.log(f > Double.MIN_VALUE ? f : Double.MIN_VALUE);
+	}
+}
@@ -0,0 +1,234 @@
+package bsim.field;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.vecmath.Vector3d;
+
+import bsim.BSim;
+import bsim.BSimChemicalField;
+import bsim.BSimParallel;
+
+/**
+ * Chemical field for fully wrapping simulations, advanced exactly in Fourier space.
+ * With periodic boundaries the diffusion operator of BSimChemicalField is
+ * diagonal in the Fourier basis, so diffusion and decay over any dt multiply
+ * each mode by exp(dt*(lambda - decayRate)). The step is O(N log N), has no
+ * stability limit and no time discretisation error; its result is the limit of
+ * the explicit and ADI modes as dt goes to zero.
+ * <p>
+ * Chemical added between steps (addQuantity) is held in a separate buffer and is
+ * included by getConc(). At the next step it is treated as released at a
+ * constant rate over the step, which is also integrated exactly. This keeps
+ * batched updates (e.g. BSimFieldScheduler with a minimum step) accurate. The
+ * field and the buffer share one complex transform (as real and imaginary parts).
+ * <p>
+ * Requires BSim.setSolid(false,false,false); update() throws IllegalStateException
+ * otherwise. The diffusion mode of the base class is ignored.
+ */
+public class BSimSpectralField extends BSimChemicalField {
+
+	/** Chemical added since the last step, per box. */
+	protected double[] pending;
+	/** Whether any chemical has been added since the last step. */
+	protected boolean hasPending;
+	/** Eigenvalues of the diffusion operator along each axis, per wavenumber (1/s). */
+	protected double[][] lambda = new double[3][];
+	/** Transform plans along each axis (null for axes of length one). */
+	protected BSimFFT[] plans = new BSimFFT[3];
+	/** Strides of the (x,y,z) axes in the flat array. */
+	protected int[] stride;
+
+	/**
+	 * Creates a spectral field; the arguments are as for BSimChemicalField.
+	 */
+	public BSimSpectralField(BSim sim, int[] boxes, double diffusivity, double decayRate) {
+		super(sim, boxes, diffusivity, decayRate);
+		this.pending = new double[quantity.length];
+		this.stride = new int[] {boxes[1]*boxes[2], boxes[2], 1};
+		for (int d = 0; d < 3; d++) {
+			int n = boxes[d];
+			/* Each pair of neighbours exchanges 2*D/dx^2 of their difference per second (see BSimDiffusionKernel) */
+			double a = 2*diffusivity/Math.pow(box[d],2);
+			lambda[d] = new double[n];
+			for (int m = 0; m < n; m++) lambda[d][m] = (n > 1 ? a*(2*Math.cos(2*Math.PI*m/n) - 2) : 0);
+			if (n > 1) plans[d] = new BSimFFT(n);
+		}
+	}
+
+	/** Adds a quantity of chemical to the box at position idx, buffered until the next step. */
+	@Override
+	protected void addQuantity(int idx, double q) {
+		pending[idx] += q;
+		if (quantity[idx] + pending[idx] < 0) pending[idx] = -quantity[idx];
+		hasPending = true;
+	}
+
+	@Override
+	public void setConc(Vector3d v, double c) {
+		setConc(boxIndex(v), c);
+	}
+	@Override
+	public void setConc(int x, int y, int z, double c) {
+		setConc(index(x,y,z), c);
+	}
+	@Override
+	public void setConc(double c) {
+		super.setConc(c);
+		Arrays.fill(pending, 0);
+		hasPending = false;
+	}
+	/** Sets the concentration of the box at position idx, discarding its buffered chemical. */
+	protected void setConc(int idx, double c) {
+		quantity[idx] = c*boxVolume;
+		pending[idx] = 0;
+	}
+
+	@Override
+	public double getConc(Vector3d v) {
+		int idx = boxIndex(v);
+		return (quantity[idx] + pending[idx])/boxVolume;
+	}
+	@Override
+	public double getConc(int i, int j, int k) {
+		int idx = index(i,j,k);
+		return (quantity[idx] + pending[idx])/boxVolume;
+	}
+
+	@Override
+	public double totalQuantity() {
+		double t = 0;
+		for (int i = 0; i < quantity.length; i++) t += quantity[i] + pending[i];
+		return t;
+	}
+
+	/** Any dt is stable. */
+	@Override
+	public double getStableDt() {
+		return Double.POSITIVE_INFINITY;
+	}
+
+	@Override
+	protected double decayFactor(double dt) {
+		return Math.exp(-decayRate*dt);
+	}
+
+	@Override
+	public void decay(double dt) {
+		fold();
+		super.decay(dt);
+	}
+
+	/** Moves the buffered chemical into the field without diffusing it. */
+	protected void fold() {
+		if (!hasPending) return;
+		for (int i = 0; i < quantity.length; i++) {
+			quantity[i] += pending[i];
+			pending[i] = 0;
+		}
+		hasPending = false;
+	}
+
+	/**
+	 * Advances the field and the buffered chemical exactly over dt.
+	 */
+	@Override
+	protected void step(double dt, boolean withDecay) {
+		boolean[] solid = sim.getSolid();
+		if (solid[0] || solid[1] || solid[2])
+			throw new IllegalStateException("BSimSpectralField requires wrapping boundaries in every direction");
+
+		final double[] re = quantity, im = pending;
+		for (int d = 0; d < 3; d++) if (plans[d] != null) transform(re, im, d, false);
+		multiply(re, im, dt, (withDecay ? decayRate : 0));
+		for (int d = 0; d < 3; d++) if (plans[d] != null) transform(re, im, d, true);
+		Arrays.fill(im, 0);
+		hasPending = false;
+	}
+
+	/**
+	 * Applies the propagator to the transformed field, including the 1/N of the inverse transform.
+	 * Without sources the spectrum is that of the field alone and every mode is scaled by E;
+	 * otherwise the spectra of the field (Q) and of the sources (S) are separated using their
+	 * conjugate symmetry and recombined as E*Q + P*S, with P = (E - 1)/(dt*(lambda - decayRate)).
+	 */
+	protected void multiply(final double[] re, final double[] im, final double dt, final double decay) {
+		final int n0 = boxes[0], n1 = boxes[1], n2 = boxes[2];
+		final double norm = 1.0/quantity.length;
+		final double[] e0 = factors(0, dt), e1 = factors(1, dt), e2 = factors(2, dt);
+		final double[] l0 = lambda[0], l1 = lambda[1], l2 = lambda[2];
+		final double ed = Math.exp(-decay*dt)*norm;
+		final boolean src = hasPending;
+		ForkJoinPool p = (quantity.length >= kernel.parallelThreshold ? kernel.getPool() : null);
+		BSimParallel.forRange(p, 0, n0, BSimParallel.grain(p, n0), new BSimParallel.Range() {
+			public void run(int from, int to) {
+				for (int m0 = from; m0 < to; m0++) {
+					int c0 = (n0 - m0) % n0;
+					for (int m1 = 0; m1 < n1; m1++) {
+						int c1 = (n1 - m1) % n1;
+						for (int m2 = 0; m2 < n2; m2++) {
+							int idx = (m0*n1 + m1)*n2 + m2;
+							double e = e0[m0]*e1[m1]*e2[m2]*ed;
+							if (!src) {
+								re[idx] *= e;
+								im[idx] *= e;
+								continue;
+							}
+							int c2 = (n2 - m2) % n2;
+							int cdx = (c0*n1 + c1)*n2 + c2;
+							/* Each pair of conjugate modes is handled once, at its lower index */
+							if (cdx < idx) continue;
+							double x = dt*(l0[m0] + l1[m1] + l2[m2] - decay);
+							double ph = (x == 0 ? 1 : Math.expm1(x)/x)*norm;
+							double zr = re[idx], zi = im[idx], cr = re[cdx], ci = im[cdx];
+							/* Q = (Z + conj(Zc))/2, S = (Z - conj(Zc))/(2i) */
+							double qr = 0.5*(zr + cr), qi = 0.5*(zi - ci);
+							double sr = 0.5*(zi + ci), si = -0.5*(zr - cr);
+							double wr = e*qr + ph*sr, wi = e*qi + ph*si;
+							re[idx] = wr;
+							im[idx] = wi;
+							re[cdx] = wr;
+							im[cdx] = -wi;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/** Returns exp(dt*lambda) for each wavenumber of axis d. */
+	protected double[] factors(int d, double dt) {
+		double[] e = new double[boxes[d]];
+		for (int m = 0; m < e.length; m++) e[m] = Math.exp(dt*lambda[d][m]);
+		return e;
+	}
+
+	/**
+	 * Transforms every line of the field along axis d.
+	 */
+	protected void transform(final double[] re, final double[] im, final int d, final boolean inverse) {
+		final int n = boxes[d];
+		final int s = stride[d];
+		final int outer = quantity.length/(n*s);
+		final BSimFFT plan = plans[d];
+		ForkJoinPool p = (quantity.length >= kernel.parallelThreshold ? kernel.getPool() : null);
+		BSimParallel.forRange(p, 0, outer*s, BSimParallel.grain(p, outer*s), new BSimParallel.Range() {
+			public void run(int from, int to) {
+				double[] lr = new double[n], li = new double[n];
+				double[] wr = new double[plan.workLength()], wi = new double[plan.workLength()];
+				for (int t = from; t < to; t++) {
+					int base = (t / s)*n*s + (t % s);
+					for (int x = 0; x < n; x++) {
+						lr[x] = re[base + x*s];
+						li[x] = im[base + x*s];
+					}
+					plan.transform(lr, li, inverse, wr, wi);
+					for (int x = 0; x < n; x++) {
+						re[base + x*s] = lr[x];
+						im[base + x*s] = li[x];
+					}
+				}
+			}
+		});
+	}
+}
@@ -1,6 +1,6 @@
 package bsim.particle;
 
-import java.util.Vector;
+import java.util.List;
 
 import javax.vecmath.Vector3d;
 
@@ -58,6 +58,8 @@ public class BSimBacterium extends BSimParticle {
 	protected double longTermMemoryLength;
 	/** Sensitivity to differences in sequential averages (molecules/(micron)^3). */
 	protected double sensitivity = 1;
+	/** Whether the goal field is sampled by trilinear interpolation rather than per box. */
+	protected boolean interpolatedSensing = false;
 			
 	/*
 	 * 
@@ -118,8 +120,17 @@ public class BSimBacterium extends BSimParticle {
 		this.goal = goal; 	
 		setMemoryDuration(shortTermMemoryDuration, longTermMemoryDuration);
 		memory = new double[sim.timesteps(getMemoryDuration())];
-		for(int i=0;i<memory.length;i++) memory[i] = goal.getConc(position);
+		for(int i=0;i<memory.length;i++) memory[i] = senseGoal();
 	} 
+	/**
+	 * Sample the goal field by trilinear interpolation, so that the sensed concentration
+	 * changes smoothly as the cell moves within a box (allows shorter memories and coarser fields).
+	 */
+	public void setInterpolatedSensing(boolean b) { interpolatedSensing = b; }
+	/** Concentration of the goal field sensed at the current position. */
+	protected double senseGoal() {
+		return (interpolatedSensing ? goal.sampleTrilinear(position) : goal.getConc(position));
+	}
 	public void setMemoryDuration(double shortTermMemoryDuration, double longTermMemoryDuration) {
 		this.shortTermMemoryDuration = shortTermMemoryDuration;
 		this.shortTermMemoryLength = sim.timesteps(shortTermMemoryDuration);
@@ -135,9 +146,7 @@ public class BSimBacterium extends BSimParticle {
 	 * Applies the flagellar force.
 	 */
 	public void flagellarForce() {				
-		Vector3d f = new Vector3d();		
-		f.scale(forceMagnitude, direction);
-		addForce(f);	
+		addForce(forceMagnitude*direction.x, forceMagnitude*direction.y, forceMagnitude*direction.z);
 	}
 	
 	/**
@@ -145,7 +154,7 @@ public class BSimBacterium extends BSimParticle {
 	 */
 	public void rotationalDiffusion() {
 		double dTheta = rng.nextGaussian()*Math.sqrt(4*BSim.BOLTZMANN*sim.getTemperature()*sim.getDt()/rotationalStokesCoefficient())*Math.pow(10,9);
-		BSimUtils.rotatePerp(direction, dTheta);
+		BSimUtils.rotatePerp(direction, dTheta, rng);
 	}
 	
 	public double rotationalStokesCoefficient() {
@@ -164,7 +173,7 @@ public class BSimBacterium extends BSimParticle {
 		
 		double tumbleAngle;
 		do {
-			tumbleAngle = BSimUtils.sampleGamma(tumbleShape, tumbleScale) + tumbleLocation;
+			tumbleAngle = rng.nextGamma(tumbleShape, tumbleScale) + tumbleLocation;
 		} while (tumbleAngle > 180);		
 		
 		return Math.toRadians(tumbleAngle);
@@ -179,7 +188,7 @@ public class BSimBacterium extends BSimParticle {
 		double longTermCounter = 0, longTermMean = 0;
 		
 		System.arraycopy(memory, 0, memory, 1, memory.length - 1);
-		memory[0] = goal.getConc(position);
+		memory[0] = senseGoal();
 		
 		for(int i=0; i<memory.length; i++) {
 			if(i < shortTermMemoryLength) {
@@ -216,19 +225,20 @@ public class BSimBacterium extends BSimParticle {
 	protected void setReplicationRadius(double r) { replicationRadius = r; }
 	/** The external list of children. Required when bacteria reach the replicationRadius */
 	@SuppressWarnings("rawtypes")
-	protected Vector childList;
-	public void setChildList(@SuppressWarnings("rawtypes") Vector v) { childList = v; }
+	protected List childList;
+	/** Sets the list that daughters are added to (e.g. BSimPopulation.births() when dividing in parallel). */
+	public void setChildList(@SuppressWarnings("rawtypes") List v) { childList = v; }
 	
 	/** Sets the radius so that the surface area of the bacterium is randomly distributed between surfaceArea(replicationRadius)/2 and surfaceArea(replicationRadius) */  
 	public void setRadius() {
-		setRadiusFromSurfaceArea(surfaceArea(replicationRadius)/2 + Math.random()*surfaceArea(replicationRadius)/2);
+		setRadiusFromSurfaceArea(surfaceArea(replicationRadius)/2 + rng.nextDouble()*surfaceArea(replicationRadius)/2);
 	}	
 	
 	public void grow() {
 		double dS = surfaceAreaGrowthRate*sim.getDt();
 		setRadiusFromSurfaceArea(getSurfaceArea() + dS);
 
-		if(pVesicle > 0 && Math.random() < pVesicle*(dS/typicalVesicleSurfaceArea))
+		if(pVesicle > 0 && rng.nextDouble() < pVesicle*(dS/typicalVesicleSurfaceArea))
 			vesiculate();
 		
 		if (radius > replicationRadius)
@@ -239,6 +249,8 @@ public class BSimBacterium extends BSimParticle {
 	public void replicate() {
 		setRadiusFromSurfaceArea(surfaceArea(replicationRadius)/2);
 		BSimBacterium child = new BSimBacterium(sim, new Vector3d(position));
+		child.setRandom(rng.split());
+		child.setDirection(child.randomDirection());
 		child.setRadius(radius);
 		child.setSurfaceAreaGrowthRate(surfaceAreaGrowthRate);
 		child.setChildList(childList);
@@ -266,13 +278,15 @@ public class BSimBacterium extends BSimParticle {
 	public void pVesicle(double d) { pVesicle = d; }	
 	/** The external list of vesicles. Required when bacteria vesiculate */
 	@SuppressWarnings("rawtypes")
-	protected Vector vesicleList; 
-	public void setVesicleList(@SuppressWarnings("rawtypes") Vector v) { vesicleList = v; }	
+	protected List vesicleList; 
+	public void setVesicleList(@SuppressWarnings("rawtypes") List v) { vesicleList = v; }	
 	
 	@SuppressWarnings("unchecked")
 	public void vesiculate() {
 		double r = vesicleRadius();
-		vesicleList.add(new BSimVesicle(sim, new Vector3d(position), r));
+		BSimVesicle vesicle = new BSimVesicle(sim, new Vector3d(position), r);
+		vesicle.setRandom(rng.split());
+		vesicleList.add(vesicle);
 		setRadiusFromSurfaceArea(getSurfaceArea()-surfaceArea(r));
 	}
 	
@@ -284,22 +298,27 @@ public class BSimBacterium extends BSimParticle {
 	public BSimBacterium(BSim sim, Vector3d position) {
 		super(sim, position, 1); // default radius 1 micron
 		setMotionState(MotionState.RUNNING);
-		setDirection(new Vector3d(0.5-Math.random(),0.5-Math.random(),0.5-Math.random()));	
+		setDirection(randomDirection());	
 	}				
 		
+	/** Returns a random (non-normalised) direction drawn from the stream of this bacterium. */
+	protected Vector3d randomDirection() {
+		return new Vector3d(0.5-rng.nextDouble(),0.5-rng.nextDouble(),0.5-rng.nextDouble());
+	}
+		
 	@Override
 	public void action() {
 		super.action();
 		
 		switch(motionState) {
 		case RUNNING:
-			if(Math.random() < pEndRun()*sim.getDt())
+			if(rng.nextDouble() < pEndRun()*sim.getDt())
 				motionState = MotionState.TUMBLING;
 			break;
 		case TUMBLING:
-			if(Math.random() < pEndTumble()*sim.getDt()) {
+			if(rng.nextDouble() < pEndTumble()*sim.getDt()) {
 				/* Change the direction at the end of a tumble phase */
-				BSimUtils.rotatePerp(direction, tumbleAngle());
+				BSimUtils.rotatePerp(direction, tumbleAngle(), rng);
 				motionState = MotionState.RUNNING;
 			}
 			break;
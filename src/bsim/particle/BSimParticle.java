@@ -1,18 +1,19 @@
 package bsim.particle;
 
-import java.util.Random;
 import java.util.Vector;
 
 import javax.vecmath.Vector3d;
 
 import bsim.BSim;
+import bsim.BSimRandom;
 
 /**
  * 
  */
 public class BSimParticle {	
 		
-	protected static Random rng = new Random();
+	/** Random number stream of this particle (see BSim.newStream()). */
+	protected BSimRandom rng;
 	
 	protected Vector3d position ; // microns		
 	protected Vector3d force = new Vector3d(); // piconewtons	
@@ -23,6 +24,7 @@ public class BSimParticle {
 	public BSimParticle(BSim sim, Vector3d position, double radius) {	
 		this.sim = sim;
 		this.position = position;
+		this.rng = sim.newStream();
 		setRadius(radius);
 	}	
 	
@@ -35,10 +37,15 @@ public class BSimParticle {
 	public void setRadius(double r) { radius = r; setBrownianForceMagnitude(); }
 	public void setRadiusFromSurfaceArea(double s) { radius = Math.sqrt(s/(4*Math.PI)); }
 	public void addForce(Vector3d f) { force.add(f); }
+	/** Adds the force (x,y,z) without creating a vector. */
+	public void addForce(double x, double y, double z) { force.x += x; force.y += y; force.z += z; }
+	/** Replaces the random number stream, e.g. with a split() of the parent's stream. */
+	public void setRandom(BSimRandom r) { rng = r; }
 	
 	public Vector3d getPosition() { return position; }
 	public Vector3d getForce() { return force; }
 	public double getRadius() { return radius; }
+	public BSimRandom getRandom() { return rng; }
 	public double getSurfaceArea() { return surfaceArea(radius); }
 	public double surfaceArea(double r) { return 4*Math.PI*Math.pow(r,2); }	
 	public double stokesCoefficient() { return 6.0*Math.PI*radius*sim.getVisc(); } // micrometers*Pa sec
@@ -52,9 +59,11 @@ public class BSimParticle {
 	 * Update the position of the particle according to Stokes' law
 	 */
 	public void updatePosition() {		
-		Vector3d velocity = new Vector3d();
-		velocity.scale(1/stokesCoefficient(), force); // pN/(micrometers*Pa sec) = micrometers/sec 
-		position.scaleAdd(sim.getDt(), velocity, position);
+		double k = 1/stokesCoefficient(); // pN/(micrometers*Pa sec) = micrometers/sec 
+		double dt = sim.getDt();
+		position.x = dt*(k*force.x) + position.x;
+		position.y = dt*(k*force.y) + position.y;
+		position.z = dt*(k*force.z) + position.z;
 		force.set(0,0,0); // Payable in force, yarr
 		
 		if(position.x > sim.getBound().x) xAbove();
@@ -71,18 +80,16 @@ public class BSimParticle {
 	 * you should call setBrownianForceMagnitude() again
 	 */
 	public void brownianForce() {						
-		Vector3d f = new Vector3d(rng.nextGaussian(), rng.nextGaussian(), rng.nextGaussian());
-		f.scale(brownianForceMagnitude); 
-		addForce(f);
+		double fx = rng.nextGaussian(), fy = rng.nextGaussian(), fz = rng.nextGaussian();
+		addForce(brownianForceMagnitude*fx, brownianForceMagnitude*fy, brownianForceMagnitude*fz);
 	}
 
 	/**
 	 * Distance between particle centres (always positive)
 	 */
 	public double distance(BSimParticle p) {
-		Vector3d d = new Vector3d();
-        d.sub(this.position, p.position);
-        return d.length();
+		double dx = position.x - p.position.x, dy = position.y - p.position.y, dz = position.z - p.position.z;
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
 	}
 	
 	/**
@@ -107,13 +114,11 @@ public class BSimParticle {
      * and a force on p of magnitude m towards p.
      */
 	public void reaction(BSimParticle p, double m) {
-		Vector3d f = new Vector3d();
-		f.sub(this.position, p.position);			
-		f.normalize();
-		f.scale(m);
-		addForce(f);
-		f.negate();
-		p.addForce(f);
+		double dx = position.x - p.position.x, dy = position.y - p.position.y, dz = position.z - p.position.z;
+		double norm = 1.0/Math.sqrt(dx*dx + dy*dy + dz*dz);
+		dx = dx*norm*m; dy = dy*norm*m; dz = dz*norm*m;
+		addForce(dx, dy, dz);
+		p.addForce(-dx, -dy, -dz);
 	}
 	
     /**
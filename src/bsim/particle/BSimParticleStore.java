@@ -0,0 +1,321 @@
+package bsim.particle;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.vecmath.Vector3d;
+
+import bsim.BSim;
+import bsim.BSimParallel;
+import bsim.BSimRandom;
+
+/**
+ * Population of simple bacteria held as a structure of arrays.
+ * Positions, forces, directions, radii and motion states are kept in contiguous
+ * double[] (and byte[]) arrays indexed by particle, and the standard behaviour
+ * of BSimParticle and BSimBacterium (Brownian motion, run and tumble, rotational
+ * diffusion, flagellar force, Stokes' law update with the simulation boundaries)
+ * runs as loops over those arrays. The loops allocate nothing, so large
+ * populations (10^5 cells and more) do not create millions of short-lived
+ * vectors per tick, and they run in parallel if a pool is set.
+ * <p>
+ * Each particle draws from a random number stream of its own (a SplitMix64
+ * counter seeded from the simulation, see BSim.newStream()), so the results do
+ * not depend on the number of threads. Chemotaxis, growth and division are not
+ * modelled here; use BSimBacterium objects for those.
+ * <pre>
+ * BSimParticleStore cells = new BSimParticleStore(sim, 200000);
+ * for (...) cells.add(x, y, z, 1);
+ * cells.setPool(ticker.getPool());
+ * ... tick(): cells.step();
+ * </pre>
+ * Particles are addressed by index; view(i) returns a light object for code that
+ * prefers methods. Removal moves the last particle into the gap, so indices (and
+ * views) change when particles are removed.
+ */
+public class BSimParticleStore {
+
+	/** Motion states. */
+	public static final byte RUNNING = 0, TUMBLING = 1;
+
+	/** Positions (microns). */
+	public double[] x, y, z;
+	/** Forces accumulated during the tick (pN). */
+	public double[] fx, fy, fz;
+	/** Unit directions of the flagellar force. */
+	public double[] dx, dy, dz;
+	/** Radii (microns). */
+	public double[] radius;
+	/** Motion states (RUNNING or TUMBLING). */
+	public byte[] state;
+	/** Stokes coefficients, Brownian force magnitudes and rotational diffusion steps, per particle. */
+	protected double[] stokes, brownian, rotation;
+	/** Random number state of each particle. */
+	protected long[] rng;
+	/** Number of particles. */
+	protected int size;
+
+	protected BSim sim;
+	/** Pool the loops run in, or null for the calling thread. */
+	protected ForkJoinPool pool;
+
+	/** Flagellar force (pN) and probabilities per unit time of ending a run and a tumble (1/s), as BSimBacterium. */
+	protected double forceMagnitude = 1, pEndRun = 1/0.86, pEndTumble = 1/0.14;
+
+	/** Loop bodies, kept so that a step allocates nothing per particle. */
+	protected final BSimParallel.Range stepBody = new BSimParallel.Range() {
+		public void run(int from, int to) { for (int i = from; i < to; i++) { action(i); updatePosition(i); } }
+	};
+	protected final BSimParallel.Range actionBody = new BSimParallel.Range() {
+		public void run(int from, int to) { for (int i = from; i < to; i++) action(i); }
+	};
+	protected final BSimParallel.Range brownianBody = new BSimParallel.Range() {
+		public void run(int from, int to) { for (int i = from; i < to; i++) brownianForce(i); }
+	};
+	protected final BSimParallel.Range positionBody = new BSimParallel.Range() {
+		public void run(int from, int to) { for (int i = from; i < to; i++) updatePosition(i); }
+	};
+
+	/** Creates an empty store with room for capacity particles (it grows as needed). */
+	public BSimParticleStore(BSim sim, int capacity) {
+		this.sim = sim;
+		allocate(Math.max(capacity, 16));
+	}
+
+	/** Set the pool the loops run in (e.g. that of a BSimForkJoinTicker), or null. */
+	public void setPool(ForkJoinPool p) { pool = p; }
+	public void setForceMagnitude(double d) { forceMagnitude = d; }
+	public void pEndRun(double d) { pEndRun = d; }
+	public void pEndTumble(double d) { pEndTumble = d; }
+
+	/** Return the number of particles. */
+	public int size() { return size; }
+
+	/**
+	 * Adds a RUNNING particle facing in a random direction and returns its index.
+	 */
+	public int add(double px, double py, double pz, double r) {
+		if (size == x.length) allocate(2*size);
+		int i = size++;
+		x[i] = px; y[i] = py; z[i] = pz;
+		fx[i] = fy[i] = fz[i] = 0;
+		rng[i] = sim.newStream().nextLong();
+		state[i] = RUNNING;
+		setRadius(i, r);
+		double ax, ay, az, n;
+		do {
+			ax = 0.5 - uniform(i); ay = 0.5 - uniform(i); az = 0.5 - uniform(i);
+			n = Math.sqrt(ax*ax + ay*ay + az*az);
+		} while (n == 0);
+		dx[i] = ax/n; dy[i] = ay/n; dz[i] = az/n;
+		return i;
+	}
+
+	/** Removes particle i, moving the last particle into its place. */
+	public void remove(int i) {
+		int last = --size;
+		if (i == last) return;
+		x[i] = x[last]; y[i] = y[last]; z[i] = z[last];
+		fx[i] = fx[last]; fy[i] = fy[last]; fz[i] = fz[last];
+		dx[i] = dx[last]; dy[i] = dy[last]; dz[i] = dz[last];
+		radius[i] = radius[last]; state[i] = state[last];
+		stokes[i] = stokes[last]; brownian[i] = brownian[last]; rotation[i] = rotation[last];
+		rng[i] = rng[last];
+	}
+
+	/** Sets the radius of particle i and the coefficients that depend on it. */
+	public void setRadius(int i, double r) {
+		radius[i] = r;
+		double kT = BSim.BOLTZMANN*sim.getTemperature();
+		stokes[i] = 6.0*Math.PI*r*sim.getVisc();
+		brownian[i] = Math.sqrt(2*stokes[i]*kT/sim.getDt())*Math.pow(10,9);
+		rotation[i] = Math.sqrt(4*kT*sim.getDt()/(8.0*Math.PI*sim.getVisc()*Math.pow(r,3)))*Math.pow(10,9);
+	}
+
+	/**
+	 * Recomputes the coefficients of all particles; call if the timestep, viscosity
+	 * or temperature is changed.
+	 */
+	public void refresh() {
+		for (int i = 0; i < size; i++) setRadius(i, radius[i]);
+	}
+
+	/** Applies the forces of this tick and moves every particle (action() then updatePosition()). */
+	public void step() {
+		BSimParallel.forRange(pool, 0, size, BSimParallel.grain(pool, size), stepBody);
+	}
+
+	/** Brownian force, run and tumble, rotational diffusion and flagellar force of every particle. */
+	public void action() {
+		BSimParallel.forRange(pool, 0, size, BSimParallel.grain(pool, size), actionBody);
+	}
+
+	/** Brownian force on every particle. */
+	public void brownianForce() {
+		BSimParallel.forRange(pool, 0, size, BSimParallel.grain(pool, size), brownianBody);
+	}
+
+	/** Moves every particle according to Stokes' law and clears the forces. */
+	public void updatePosition() {
+		BSimParallel.forRange(pool, 0, size, BSimParallel.grain(pool, size), positionBody);
+	}
+
+	/** As BSimBacterium.action() without chemotaxis or growth. */
+	protected void action(int i) {
+		// Four normal values from two polar pairs: three for the Brownian force, one for rotational diffusion
+		double v1, v2, s, w1, w2, t;
+		do {
+			v1 = 2*uniform(i) - 1;
+			v2 = 2*uniform(i) - 1;
+			s = v1*v1 + v2*v2;
+		} while (s >= 1 || s == 0);
+		do {
+			w1 = 2*uniform(i) - 1;
+			w2 = 2*uniform(i) - 1;
+			t = w1*w1 + w2*w2;
+		} while (t >= 1 || t == 0);
+		double m = brownian[i]*Math.sqrt(-2*Math.log(s)/s), n = Math.sqrt(-2*Math.log(t)/t);
+		fx[i] += m*v1;
+		fy[i] += m*v2;
+		fz[i] += brownian[i]*n*w1;
+		if (state[i] == RUNNING) {
+			if (uniform(i) < pEndRun*sim.getDt()) state[i] = TUMBLING;
+		} else if (uniform(i) < pEndTumble*sim.getDt()) {
+			rotatePerp(i, tumbleAngle(i));
+			state[i] = RUNNING;
+		}
+		if (state[i] == RUNNING) {
+			rotatePerp(i, n*w2*rotation[i]);
+			fx[i] += forceMagnitude*dx[i];
+			fy[i] += forceMagnitude*dy[i];
+			fz[i] += forceMagnitude*dz[i];
+		}
+	}
+
+	/** As BSimParticle.brownianForce(). */
+	protected void brownianForce(int i) {
+		double m = brownian[i];
+		fx[i] += m*gaussian(i);
+		fy[i] += m*gaussian(i);
+		fz[i] += m*gaussian(i);
+	}
+
+	/** As BSimParticle.updatePosition(). */
+	protected void updatePosition(int i) {
+		double s = sim.getDt()/stokes[i];
+		Vector3d bound = sim.getBound();
+		boolean[] solid = sim.getSolid();
+		x[i] = boundary(x[i] + s*fx[i], bound.x, solid[0]);
+		y[i] = boundary(y[i] + s*fy[i], bound.y, solid[1]);
+		z[i] = boundary(z[i] + s*fz[i], bound.z, solid[2]);
+		fx[i] = fy[i] = fz[i] = 0;
+	}
+
+	/** Wraps or bounces a coordinate that has left [0, edge], as BSimParticle. */
+	protected static double boundary(double c, double edge, boolean solid) {
+		if (c > edge) c = (solid ? 2*edge - c : c - edge);
+		else if (c < 0) c = (solid ? -c : c + edge);
+		else return c;
+		return (c > edge ? edge : (c < 0 ? 0 : c));
+	}
+
+	/** As BSimBacterium.tumbleAngle() (radians). */
+	protected double tumbleAngle(int i) {
+		double a;
+		do {
+			a = gamma(i, 4)*18.32 - 4.60;
+		} while (a > 180);
+		return Math.toRadians(a);
+	}
+
+	/**
+	 * Rotates the direction of particle i by theta towards a random direction
+	 * perpendicular to it (as BSimUtils.rotatePerp()).
+	 */
+	protected void rotatePerp(int i, double theta) {
+		double vx = dx[i], vy = dy[i], vz = dz[i];
+		double rx = 0.5 - uniform(i), ry = 0.5 - uniform(i), rz = 0.5 - uniform(i);
+		// Axis perpendicular to v
+		double ax = vy*rz - vz*ry, ay = vz*rx - vx*rz, az = vx*ry - vy*rx;
+		double n = Math.sqrt(ax*ax + ay*ay + az*az);
+		if (n == 0) return;
+		ax /= n; ay /= n; az /= n;
+		// Rodrigues' formula, with the axis perpendicular to v
+		double c = Math.cos(theta), s = Math.sin(theta);
+		double ux = c*vx + s*(ay*vz - az*vy);
+		double uy = c*vy + s*(az*vx - ax*vz);
+		double uz = c*vz + s*(ax*vy - ay*vx);
+		double m = Math.sqrt(ux*ux + uy*uy + uz*uz);
+		dx[i] = ux/m; dy[i] = uy/m; dz[i] = uz/m;
+	}
+
+	/** Next uniform value in [0, 1) of the stream of particle i. */
+	protected double uniform(int i) {
+		long s = rng[i] + BSimRandom.GOLDEN_GAMMA;
+		rng[i] = s;
+		return (BSimRandom.mix64(s) >>> 11)*0x1.0p-53;
+	}
+
+	/** Next normal value of the stream of particle i (polar method). */
+	protected double gaussian(int i) {
+		double v1, v2, s;
+		do {
+			v1 = 2*uniform(i) - 1;
+			v2 = 2*uniform(i) - 1;
+			s = v1*v1 + v2*v2;
+		} while (s >= 1 || s == 0);
+		return v1*Math.sqrt(-2*Math.log(s)/s);
+	}
+
+	/** Next gamma value with shape k (at least 1) and scale 1 of the stream of particle i. */
+	protected double gamma(int i, double k) {
+		double d = k - 1.0/3, c = 1/Math.sqrt(9*d);
+		while (true) {
+			double g, v;
+			do {
+				g = gaussian(i);
+				v = 1 + c*g;
+			} while (v <= 0);
+			v = v*v*v;
+			double u = uniform(i), g2 = g*g;
+			if (u < 1 - 0.0331*g2*g2 || Math.log(u) < 0.5*g2 + d*(1 - v + Math.log(v))) return d*v;
+		}
+	}
+
+	/** Returns a view of particle i, valid until particles are removed. */
+	public View view(int i) { return new View(i); }
+
+	/** Method access to one particle of the store. */
+	public class View {
+		protected final int i;
+		View(int i) { this.i = i; }
+		public int getIndex() { return i; }
+		public void getPosition(Vector3d out) { out.set(x[i], y[i], z[i]); }
+		public Vector3d getPosition() { return new Vector3d(x[i], y[i], z[i]); }
+		public void setPosition(double px, double py, double pz) { x[i] = px; y[i] = py; z[i] = pz; }
+		public void getDirection(Vector3d out) { out.set(dx[i], dy[i], dz[i]); }
+		public void setDirection(double ax, double ay, double az) {
+			double n = Math.sqrt(ax*ax + ay*ay + az*az);
+			dx[i] = ax/n; dy[i] = ay/n; dz[i] = az/n;
+		}
+		public void addForce(double ax, double ay, double az) { fx[i] += ax; fy[i] += ay; fz[i] += az; }
+		public double getRadius() { return radius[i]; }
+		public void setRadius(double r) { BSimParticleStore.this.setRadius(i, r); }
+		public byte getMotionState() { return state[i]; }
+		public void setMotionState(byte s) { state[i] = s; }
+	}
+
+	/** Resizes the arrays to hold n particles. */
+	protected void allocate(int n) {
+		x = grow(x, n); y = grow(y, n); z = grow(z, n);
+		fx = grow(fx, n); fy = grow(fy, n); fz = grow(fz, n);
+		dx = grow(dx, n); dy = grow(dy, n); dz = grow(dz, n);
+		radius = grow(radius, n); stokes = grow(stokes, n); brownian = grow(brownian, n); rotation = grow(rotation, n);
+		state = (state == null ? new byte[n] : Arrays.copyOf(state, n));
+		rng = (rng == null ? new long[n] : Arrays.copyOf(rng, n));
+	}
+
+	private static double[] grow(double[] a, int n) {
+		return (a == null ? new double[n] : Arrays.copyOf(a, n));
+	}
+}
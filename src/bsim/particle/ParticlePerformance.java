@@ -0,0 +1,61 @@
+package bsim.particle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Vector3d;
+
+import bsim.BSim;
+import bsim.BSimProfiler;
+
+/**
+ * Benchmark of the per-tick motion kernels of BSimBacterium (action(),
+ * updatePosition() and pairwise reactions), reporting the time and the bytes
+ * allocated per tick. After warm-up the allocation should be close to zero.
+ * <p>
+ * Usage: ParticlePerformance [bacteria] [ticks]
+ */
+public class ParticlePerformance {
+
+	public static void main(String[] args) {
+		int n = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+		int ticks = (args.length > 1 ? Integer.parseInt(args[1]) : 200);
+
+		BSim sim = new BSim();
+		sim.setSeed(1);
+		sim.setDt(0.01);
+		sim.setBound(100, 100, 100);
+
+		List<BSimBacterium> bacteria = new ArrayList<BSimBacterium>(n);
+		for (int i = 0; i < n; i++) {
+			bacteria.add(new BSimBacterium(sim, new Vector3d(100*sim.getRandom().nextDouble(),
+					100*sim.getRandom().nextDouble(), 100*sim.getRandom().nextDouble())));
+		}
+
+		BSimProfiler profiler = new BSimProfiler();
+		if (profiler.allocatedBytes() < 0) System.out.println("Allocation counting is not supported by this JVM.");
+
+		// Warm up the JIT before measuring
+		for (int t = 0; t < ticks/2; t++) tick(bacteria);
+
+		long bytes = profiler.allocatedBytes();
+		long start = System.nanoTime();
+		for (int t = 0; t < ticks; t++) tick(bacteria);
+		long nanos = System.nanoTime() - start;
+		bytes = profiler.allocatedBytes() - bytes;
+
+		System.out.println(n + " bacteria, " + ticks + " ticks: " + (float)(nanos*1e-6/ticks) + " ms/tick, "
+				+ (bytes/ticks) + " bytes/tick (" + (float)((double)bytes/ticks/n) + " bytes/bacterium/tick)");
+	}
+
+	/** One tick: motion of every bacterium and a reaction with its neighbour in the list. */
+	static void tick(List<BSimBacterium> bacteria) {
+		for (int i = 0; i < bacteria.size(); i++) {
+			BSimBacterium b = bacteria.get(i);
+			BSimBacterium c = bacteria.get((i + 1)%bacteria.size());
+			if (b.outerDistance(c) < 0) b.logReaction(c, 1);
+			b.action();
+			b.updatePosition();
+		}
+	}
+}